@@ -2,6 +2,7 @@ plugins {
     java
     `maven-publish`
     alias(libs.plugins.kotlin.jvm)
+    alias(libs.plugins.jmh)
 }
 
 repositories {
@@ -22,7 +23,6 @@ description = "irondad"
 
 dependencies {
     implementation(libs.sqlite.jdbc)
-    implementation(libs.http.request)
     implementation(libs.google.api.services.customsearch)
     implementation(libs.google.http.client.jackson2)
     implementation(libs.commons.lang3)
@@ -42,6 +42,10 @@ publishing {
     }
 }
 
+jmh {
+    resultFormat.set("JSON")
+}
+
 kotlin {
     jvmToolchain {
         languageVersion.set(JavaLanguageVersion.of("11"))
@@ -50,3 +54,4 @@ kotlin {
 
 // `./gradlew refreshVersions` to update dependencies
 // `./gradlew publishToMavenLocal` to publish to the local maven repository
+// `./gradlew jmh` to run the benchmarks in src/jmh (results in build/results/jmh)
@@ -0,0 +1,200 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jraf.irondad.handler.androidstats.AndroidStatsHandler;
+import org.jraf.irondad.handler.bitcoin.BitcoinHandler;
+import org.jraf.irondad.handler.commitstrip.CommitstripHandler;
+import org.jraf.irondad.handler.countdown.CountDownHandler;
+import org.jraf.irondad.handler.countdown.CountDownHandlerConfig;
+import org.jraf.irondad.handler.cyanide.CyanideHandler;
+import org.jraf.irondad.handler.feed.FeedHandler;
+import org.jraf.irondad.handler.feed.FeedHandlerConfig;
+import org.jraf.irondad.handler.frc.FrenchRevolutionaryCalendarHandler;
+import org.jraf.irondad.handler.giphy.GiphyHandler;
+import org.jraf.irondad.handler.giphy.GiphyHandlerConfig;
+import org.jraf.irondad.handler.googlegif.GoogleGifHandler;
+import org.jraf.irondad.handler.googlegif.GoogleGifHandlerConfig;
+import org.jraf.irondad.handler.itsthisforthat.IsThisForThat;
+import org.jraf.irondad.handler.macro.MacroHandler;
+import org.jraf.irondad.handler.macro.MacroHandlerConfig;
+import org.jraf.irondad.handler.mordre.MordreHandler;
+import org.jraf.irondad.handler.opengraph.OpengraphHandler;
+import org.jraf.irondad.handler.pixgame.PixGameHandler;
+import org.jraf.irondad.handler.pixgame.PixGameHandlerConfig;
+import org.jraf.irondad.handler.quote.QuoteHandler;
+import org.jraf.irondad.handler.quote.QuoteHandlerConfig;
+import org.jraf.irondad.handler.srm.SrmHandler;
+import org.jraf.irondad.handler.thatswhatshesaid.ThatsWhatSheSaidHandler;
+import org.jraf.irondad.handler.twitter.links.TwitterLinksHandler;
+import org.jraf.irondad.handler.twitter.links.TwitterLinksHandlerConfig;
+import org.jraf.irondad.handler.wikipedia.WikipediaHandler;
+import org.jraf.irondad.handler.wikipedia.WikipediaHandlerConfig;
+import org.jraf.irondad.handler.xkcd.XkcdHandler;
+import org.jraf.irondad.handler.youtube.YoutubeHandler;
+import org.jraf.irondad.protocol.ClientConfig;
+import org.jraf.irondad.protocol.ClientConfig.HandlerClassAndConfig;
+import org.jraf.irondad.protocol.ClientRuntime;
+import org.jraf.irondad.protocol.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the handler of a message in a channel where all the message handlers are registered, which is what
+ * {@link HandlerManager#handle(String, String, String, Message)} does on the event loop thread: the {@link DispatchIndex} is built the same way.<br/>
+ * Running the handler is not measured: {@code handle} only queues it on the {@link HandlerExecutor}, and benchmarking that would mostly measure the
+ * executor, and soon its rejections since the queue is bounded.<br/>
+ * Background handlers ({@code MonitorPageHandler}, {@code TwitterFollowHandler}) are left out because they never handle messages and would start
+ * polling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerManagerBenchmark {
+    private static final String CHANNEL = "#channel";
+    private static final String FROM_NICKNAME = "nickname";
+
+    //@formatter:off
+    @Param({
+        "Hello everyone, how is it going today?",
+        "I think we should ship it tomorrow, or maybe on friday if the build is green",
+        "!unknown command",
+        "!macro",
+    })
+    //@formatter:on
+    public String text;
+
+    private Message mMessage;
+    private ClientRuntime mClientRuntime;
+    private DispatchIndex mDispatchIndex;
+
+    @Setup
+    public void setup() throws Exception {
+        mMessage = Message.parse(":" + FROM_NICKNAME + "!~username@host.example.com PRIVMSG " + CHANNEL + " :" + text);
+
+        // Same as what HandlerManager does for each channel
+        mClientRuntime = new ClientRuntime();
+        ClientConfig clientConfig = newClientConfig();
+        Map<Handler, HandlerContext> handlerContexts = new LinkedHashMap<Handler, HandlerContext>();
+        for (String configName : clientConfig.getChannelHandlerConfigNames(CHANNEL)) {
+            HandlerClassAndConfig handlerClassAndConfig = clientConfig.getHandlerConfig(configName);
+            Handler handler = mClientRuntime.getHandler(handlerClassAndConfig.handlerClass, clientConfig);
+            HandlerContext handlerContext = new HandlerContext(handlerClassAndConfig.handlerConfig, CHANNEL, mClientRuntime.getScheduler());
+            handlerContexts.put(handler, handlerContext);
+            handler.init(handlerContext);
+        }
+        mDispatchIndex = new DispatchIndex(handlerContexts);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClientRuntime.shutdown();
+    }
+
+    private static ClientConfig newClientConfig() throws IOException {
+        ClientConfig res = new ClientConfig("localhost", 6667, "irondad", "password");
+
+        addChannelHandler(res, AndroidStatsHandler.class, new HandlerConfig());
+        addChannelHandler(res, BitcoinHandler.class, new HandlerConfig());
+        addChannelHandler(res, CommitstripHandler.class, new HandlerConfig());
+        CountDownHandlerConfig countDownHandlerConfig = new CountDownHandlerConfig();
+        countDownHandlerConfig.put("!countdown", "2030-01-01T00:00:00+0100");
+        addChannelHandler(res, CountDownHandler.class, countDownHandlerConfig);
+        addChannelHandler(res, CyanideHandler.class, new HandlerConfig());
+        FeedHandlerConfig feedHandlerConfig = new FeedHandlerConfig();
+        feedHandlerConfig.put("!feed", "https://example.com/feed.xml");
+        addChannelHandler(res, FeedHandler.class, feedHandlerConfig);
+        addChannelHandler(res, FrenchRevolutionaryCalendarHandler.class, new HandlerConfig());
+        GiphyHandlerConfig giphyHandlerConfig = new GiphyHandlerConfig();
+        giphyHandlerConfig.setKey("key");
+        addChannelHandler(res, GiphyHandler.class, giphyHandlerConfig);
+        GoogleGifHandlerConfig googleGifHandlerConfig = new GoogleGifHandlerConfig();
+        googleGifHandlerConfig.setKey("key");
+        googleGifHandlerConfig.setCx("cx");
+        addChannelHandler(res, GoogleGifHandler.class, googleGifHandlerConfig);
+        addChannelHandler(res, IsThisForThat.class, new HandlerConfig());
+        MacroHandlerConfig macroHandlerConfig = new MacroHandlerConfig();
+        macroHandlerConfig.put("!macro", "This is a macro");
+        macroHandlerConfig.put("!other", "This is another macro");
+        addChannelHandler(res, MacroHandler.class, macroHandlerConfig);
+        addChannelHandler(res, MordreHandler.class, new HandlerConfig());
+        addChannelHandler(res, OpengraphHandler.class, new HandlerConfig());
+        PixGameHandlerConfig pixGameHandlerConfig = new PixGameHandlerConfig();
+        pixGameHandlerConfig.setKey("key");
+        pixGameHandlerConfig.setCx("cx");
+        addChannelHandler(res, PixGameHandler.class, pixGameHandlerConfig);
+        QuoteHandlerConfig quoteHandlerConfig = new QuoteHandlerConfig();
+        File dbFile = File.createTempFile("irondad-benchmark", ".db");
+        dbFile.deleteOnExit();
+        quoteHandlerConfig.setDbPath(dbFile.getPath());
+        addChannelHandler(res, QuoteHandler.class, quoteHandlerConfig);
+        addChannelHandler(res, SrmHandler.class, new HandlerConfig());
+        addChannelHandler(res, ThatsWhatSheSaidHandler.class, new HandlerConfig());
+        TwitterLinksHandlerConfig twitterLinksHandlerConfig = new TwitterLinksHandlerConfig();
+        twitterLinksHandlerConfig.setOauthConsumerKey("key");
+        twitterLinksHandlerConfig.setOauthConsumerSecret("secret");
+        twitterLinksHandlerConfig.setOauthAccessToken("token");
+        twitterLinksHandlerConfig.setOauthAccessTokenSecret("secret");
+        addChannelHandler(res, TwitterLinksHandler.class, twitterLinksHandlerConfig);
+        WikipediaHandlerConfig wikipediaHandlerConfig = new WikipediaHandlerConfig();
+        wikipediaHandlerConfig.setKey("key");
+        wikipediaHandlerConfig.setCx("cx");
+        addChannelHandler(res, WikipediaHandler.class, wikipediaHandlerConfig);
+        addChannelHandler(res, XkcdHandler.class, new HandlerConfig());
+        addChannelHandler(res, YoutubeHandler.class, new HandlerConfig());
+        return res;
+    }
+
+    private static void addChannelHandler(ClientConfig clientConfig, Class<? extends Handler> handlerClass, HandlerConfig handlerConfig) {
+        String configName = handlerClass.getSimpleName();
+        clientConfig.addHandlerConfig(configName, handlerClass, handlerConfig);
+        clientConfig.addChannelHandlerConfig(CHANNEL, configName);
+    }
+
+    @Benchmark
+    public int dispatch() {
+        return mDispatchIndex.find(CHANNEL, FROM_NICKNAME, text, new TextAsList(text), mMessage);
+    }
+}
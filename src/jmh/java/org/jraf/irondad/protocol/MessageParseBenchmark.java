@@ -0,0 +1,98 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link String} based {@link Message#parse(String)} with the in place {@link RawMessage} parser, on the kind of lines a busy channel
+ * produces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParseBenchmark {
+    //@formatter:off
+    @Param({
+        ":nickname!~username@host.example.com PRIVMSG #channel :Hello everyone, how is it going today?",
+        ":nickname!~username@host.example.com JOIN #channel",
+        ":nickname!~username@host.example.com PART #channel :Leaving",
+        ":irc.example.com 353 irondad = #channel :irondad nick1 nick2 @nick3 +nick4",
+        "PING :irc.example.com",
+    })
+    //@formatter:on
+    public String line;
+
+    private byte[] mLineBytes;
+    private final RawMessage mRawMessage = new RawMessage();
+
+    @Setup
+    public void setup() {
+        mLineBytes = line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What the receive path used to do: decode the line, then parse it.
+     */
+    @Benchmark
+    public Message messageParse() {
+        return Message.parse(new String(mLineBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * What the receive path does for most lines: parse in place and look at the command.
+     */
+    @Benchmark
+    public Command rawMessageParse() {
+        mRawMessage.parse(mLineBytes, 0, mLineBytes.length);
+        return mRawMessage.getCommand();
+    }
+
+    /**
+     * What the receive path does for lines passed to the handlers: parse in place, then copy.
+     */
+    @Benchmark
+    public Message rawMessageParseToMessage() {
+        mRawMessage.parse(mLineBytes, 0, mLineBytes.length);
+        return mRawMessage.toMessage();
+    }
+}
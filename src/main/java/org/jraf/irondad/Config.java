@@ -25,8 +25,13 @@
  */
 package org.jraf.irondad;
 
+import org.jraf.irondad.util.Log;
+
 public class Config {
 
-    public static final boolean LOGD = true;
+    /**
+     * Whether debug logs are enabled (see {@link Log}). Being a constant, it lets the JIT drop the guarded debug logs entirely when they are not.
+     */
+    public static final boolean LOGD = Log.isLoggable(Log.DEBUG);
 
 }
@@ -29,6 +29,7 @@ import java.util.List;
 
 import org.jraf.irondad.protocol.ClientConfig;
 import org.jraf.irondad.protocol.Connection;
+import org.jraf.irondad.protocol.ConnectionState;
 import org.jraf.irondad.protocol.Message;
 
 public abstract class BaseHandler implements Handler {
@@ -38,6 +39,12 @@ public abstract class BaseHandler implements Handler {
     @Override
     public void init(HandlerContext handlerContext) throws Exception {}
 
+    @Override
+    public void onConnectionStateChanged(ConnectionState connectionState, HandlerContext handlerContext) throws Exception {}
+
+    @Override
+    public void shutdown() {}
+
     @Override
     public void handleMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
@@ -34,7 +34,7 @@ public abstract class CommandHandler extends BaseHandler {
     protected abstract String getCommand();
 
     @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
+    public final boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
         String command = getCommand();
         return text.trim().toLowerCase(Locale.getDefault()).startsWith(command.toLowerCase(Locale.getDefault()));
     }
@@ -0,0 +1,261 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jraf.irondad.protocol.Message;
+
+/**
+ * Finds which handler of a context (a channel, or privmsgs) handles a message, in one pass over its text.<br/>
+ * Built once from the registered handlers:
+ * <ul>
+ * <li>{@link CommandHandler} commands and {@link KeywordHandler} keywords are stored in a trie, walked from the start of the message.</li>
+ * <li>{@link PatternHandler} patterns are combined into a single pattern, searched once.</li>
+ * <li>Any other handler is asked through {@link Handler#isMessageHandled}, only if it could still win.</li>
+ * </ul>
+ * When several handlers match, the first registered one wins, except between pattern handlers where the leftmost match in the text wins.
+ */
+final class DispatchIndex {
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private static class Node {
+        private char[] mChars = new char[0];
+        private Node[] mChildren = new Node[0];
+
+        /**
+         * Index of the first registered command ending at this node.
+         */
+        private int mCommandIndex = NONE;
+
+        /**
+         * Keywords ending at this node (lower cased path), with the index of their handler.
+         */
+        private String[] mKeywords;
+        private int[] mKeywordIndexes;
+
+        private Node get(char c) {
+            for (int i = 0; i < mChars.length; i++) {
+                if (mChars[i] == c) return mChildren[i];
+            }
+            return null;
+        }
+
+        private Node getOrCreate(char c) {
+            Node res = get(c);
+            if (res == null) {
+                res = new Node();
+                mChars = Arrays.copyOf(mChars, mChars.length + 1);
+                mChildren = Arrays.copyOf(mChildren, mChildren.length + 1);
+                mChars[mChars.length - 1] = c;
+                mChildren[mChildren.length - 1] = res;
+            }
+            return res;
+        }
+
+        private void addKeyword(String keyword, int index) {
+            if (mKeywords == null) {
+                mKeywords = new String[] { keyword };
+                mKeywordIndexes = new int[] { index };
+                return;
+            }
+            mKeywords = Arrays.copyOf(mKeywords, mKeywords.length + 1);
+            mKeywordIndexes = Arrays.copyOf(mKeywordIndexes, mKeywordIndexes.length + 1);
+            mKeywords[mKeywords.length - 1] = keyword;
+            mKeywordIndexes[mKeywordIndexes.length - 1] = index;
+        }
+    }
+
+    private final Handler[] mHandlers;
+    private final HandlerContext[] mHandlerContexts;
+    private final Node mRoot = new Node();
+    private final Pattern mPattern;
+    private final int[] mPatternIndexes;
+    private final int[] mPatternGroups;
+    private final int[] mOtherIndexes;
+
+    /**
+     * @param handlerContexts The handlers of the context, in registration order.
+     */
+    DispatchIndex(Map<Handler, HandlerContext> handlerContexts) {
+        int size = handlerContexts.size();
+        mHandlers = new Handler[size];
+        mHandlerContexts = new HandlerContext[size];
+        List<Integer> patternIndexes = new ArrayList<Integer>();
+        List<Integer> patternGroups = new ArrayList<Integer>();
+        List<Integer> otherIndexes = new ArrayList<Integer>();
+        StringBuilder pattern = new StringBuilder();
+        int groupCount = 0;
+        int i = 0;
+        for (Map.Entry<Handler, HandlerContext> entry : handlerContexts.entrySet()) {
+            Handler handler = entry.getKey();
+            HandlerContext handlerContext = entry.getValue();
+            mHandlers[i] = handler;
+            mHandlerContexts[i] = handlerContext;
+            if (handler instanceof CommandHandler) {
+                Node node = getOrCreateNode(((CommandHandler) handler).getCommand());
+                node.mCommandIndex = Math.min(node.mCommandIndex, i);
+            } else if (handler instanceof KeywordHandler) {
+                for (String keyword : ((KeywordHandler) handler).getKeywords(handlerContext)) {
+                    getOrCreateNode(keyword).addKeyword(keyword, i);
+                }
+            } else if (handler instanceof PatternHandler) {
+                Pattern handlerPattern = ((PatternHandler) handler).getPattern();
+                if (pattern.length() > 0) pattern.append('|');
+                // Each handler pattern is wrapped in a capturing group, which tells which one matched
+                patternGroups.add(groupCount + 1);
+                groupCount += 1 + handlerPattern.matcher("").groupCount();
+                pattern.append('(');
+                appendPattern(pattern, handlerPattern);
+                pattern.append(')');
+                patternIndexes.add(i);
+            } else {
+                otherIndexes.add(i);
+            }
+            i++;
+        }
+        mPattern = patternIndexes.isEmpty() ? null : Pattern.compile(pattern.toString());
+        mPatternIndexes = toArray(patternIndexes);
+        mPatternGroups = toArray(patternGroups);
+        mOtherIndexes = toArray(otherIndexes);
+    }
+
+    /**
+     * Paths are lower cased char by char, the same way the text is when walking the trie.
+     */
+    private Node getOrCreateNode(String path) {
+        Node node = mRoot;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.getOrCreate(Character.toLowerCase(path.charAt(i)));
+        }
+        return node;
+    }
+
+    /**
+     * Appends the given pattern as a non capturing group, keeping its flags.
+     */
+    private static void appendPattern(StringBuilder sb, Pattern pattern) {
+        int flags = pattern.flags();
+        sb.append("(?");
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) sb.append('i');
+        if ((flags & Pattern.MULTILINE) != 0) sb.append('m');
+        if ((flags & Pattern.DOTALL) != 0) sb.append('s');
+        if ((flags & Pattern.UNICODE_CASE) != 0) sb.append('u');
+        if ((flags & Pattern.COMMENTS) != 0) sb.append('x');
+        if ((flags & Pattern.UNIX_LINES) != 0) sb.append('d');
+        sb.append(':');
+        if ((flags & Pattern.LITERAL) != 0) {
+            sb.append(Pattern.quote(pattern.pattern()));
+        } else {
+            sb.append(pattern.pattern());
+        }
+        // Line break in case the pattern ends with a COMMENTS mode comment
+        if ((flags & Pattern.COMMENTS) != 0) sb.append('\n');
+        sb.append(')');
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] res = new int[list.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = list.get(i);
+        }
+        return res;
+    }
+
+    /**
+     * @return The index of the handler that handles the message, or {@code -1} if there is none.
+     */
+    int find(String channel, String fromNickname, String text, List<String> textAsList, Message message) {
+        int res = NONE;
+
+        // Same bounds as text.trim(), and the first word as split by \s+
+        int length = text.length();
+        int start = 0;
+        while (start < length && text.charAt(start) <= ' ') start++;
+        int end = length;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        int wordEnd = start;
+        while (wordEnd < end && !isWhitespace(text.charAt(wordEnd))) wordEnd++;
+
+        // Commands and keywords
+        Node node = mRoot;
+        for (int i = start; node != null; i++) {
+            if (node.mCommandIndex < res) res = node.mCommandIndex;
+            if (i == wordEnd && node.mKeywords != null) {
+                for (int k = 0; k < node.mKeywords.length; k++) {
+                    String keyword = node.mKeywords[k];
+                    if (node.mKeywordIndexes[k] < res && keyword.length() == wordEnd - start && text.startsWith(keyword, start)) {
+                        res = node.mKeywordIndexes[k];
+                    }
+                }
+            }
+            if (i == end) break;
+            node = node.get(Character.toLowerCase(text.charAt(i)));
+        }
+
+        // Patterns
+        if (mPattern != null && mPatternIndexes[0] < res) {
+            Matcher matcher = mPattern.matcher(text);
+            if (matcher.find()) {
+                for (int p = 0; p < mPatternIndexes.length; p++) {
+                    if (matcher.start(mPatternGroups[p]) != -1) {
+                        if (mPatternIndexes[p] < res) res = mPatternIndexes[p];
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Other handlers
+        for (int index : mOtherIndexes) {
+            if (index >= res) break;
+            if (mHandlers[index].isMessageHandled(channel, fromNickname, text, textAsList, message, mHandlerContexts[index])) {
+                res = index;
+                break;
+            }
+        }
+
+        return res == NONE ? -1 : res;
+    }
+
+    private static boolean isWhitespace(char c) {
+        // Same as \s
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    Handler getHandler(int index) {
+        return mHandlers[index];
+    }
+
+    HandlerContext getHandlerContext(int index) {
+        return mHandlerContexts[index];
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.jraf.irondad.protocol.ClientConfig.FloodLimit;
+
+/**
+ * Sliding window rate limiter, with one window per key (a channel, or a nickname for private messages).<br/>
+ * The timestamps of the last messages of a key are kept in a {@code long[]} ring buffer, so nothing is allocated per message. Keys are spread over
+ * several stripes, each with its own lock, and the keys that have been idle for longer than the window and the pause are evicted, so nicknames seen
+ * once don't stay in memory forever.<br/>
+ * Thread safe.
+ */
+class FloodControl {
+    private static final int STRIPE_COUNT = 16;
+    private static final long EVICTION_INTERVAL = 60 * 1000; // ms
+
+    public enum Result {
+        /**
+         * The message can be handled.
+         */
+        ALLOWED,
+
+        /**
+         * The message must be ignored.
+         */
+        THROTTLED,
+
+        /**
+         * The message must be ignored, and this is the first one since the pause started: the sender can be warned.
+         */
+        THROTTLED_FIRST,
+    }
+
+    private static class Window {
+        private final long[] mTimes;
+        private int mNext;
+        private int mCount;
+        private long mPauseStart;
+        private boolean mWarned;
+        private long mLastSeen;
+
+        Window(int size) {
+            mTimes = new long[size];
+        }
+    }
+
+    private static class Stripe {
+        private final Map<String, Window> mWindows = new HashMap<String, Window>();
+        private long mLastEviction;
+    }
+
+    private final FloodLimit mFloodLimit;
+    private final long mIdleDuration;
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    FloodControl(FloodLimit floodLimit) {
+        mFloodLimit = floodLimit;
+        mIdleDuration = Math.max(floodLimit.period, floodLimit.pauseDuration);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Account for a new message of the given key.
+     */
+    Result check(String key, long now) {
+        int hash = key.hashCode();
+        Stripe stripe = mStripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+        synchronized (stripe) {
+            if (now - stripe.mLastEviction >= EVICTION_INTERVAL) {
+                evictIdle(stripe, now);
+            }
+            Window window = stripe.mWindows.get(key);
+            if (window == null) {
+                window = new Window(mFloodLimit.messageCountMax);
+                stripe.mWindows.put(key, window);
+            }
+            window.mLastSeen = now;
+
+            if (window.mPauseStart != 0) {
+                if (now - window.mPauseStart < mFloodLimit.pauseDuration) {
+                    // Currently pausing
+                    if (window.mWarned) return Result.THROTTLED;
+                    window.mWarned = true;
+                    return Result.THROTTLED_FIRST;
+                }
+                // End of the pause: start over with an empty window
+                window.mPauseStart = 0;
+                window.mCount = 0;
+            }
+
+            long[] times = window.mTimes;
+            times[window.mNext] = now;
+            window.mNext = (window.mNext + 1) % times.length;
+            if (window.mCount < times.length) window.mCount++;
+            // mNext now points to the oldest of the last messageCountMax messages
+            if (window.mCount == times.length && now - times[window.mNext] < mFloodLimit.period) {
+                // Too many messages in not enough time: this one is still handled, but not the next ones
+                window.mPauseStart = now;
+                window.mWarned = false;
+            }
+            return Result.ALLOWED;
+        }
+    }
+
+    private void evictIdle(Stripe stripe, long now) {
+        stripe.mLastEviction = now;
+        for (Iterator<Window> i = stripe.mWindows.values().iterator(); i.hasNext();) {
+            if (now - i.next().mLastSeen > mIdleDuration) i.remove();
+        }
+    }
+
+    /**
+     * @return The number of keys currently tracked.
+     */
+    int size() {
+        int res = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                res += stripe.mWindows.size();
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "FloodControl[" + mFloodLimit + ", size=" + size() + "]";
+    }
+}
@@ -29,6 +29,7 @@ import java.util.List;
 
 import org.jraf.irondad.protocol.ClientConfig;
 import org.jraf.irondad.protocol.Connection;
+import org.jraf.irondad.protocol.ConnectionState;
 import org.jraf.irondad.protocol.Message;
 
 public interface Handler {
@@ -58,4 +59,16 @@ public interface Handler {
      */
     void handleMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception;
+
+    /**
+     * Called once per context whenever the connection to the server is established or lost, for instance to pause or resume periodic tasks.<br/>
+     * Like {@link #handleMessage}, this is called on the {@link HandlerExecutor}.
+     */
+    void onConnectionStateChanged(ConnectionState connectionState, HandlerContext handlerContext) throws Exception;
+
+    /**
+     * Release the resources of this Handler (dbs, threads...).<br/>
+     * Called once, by {@link org.jraf.irondad.protocol.ClientRuntime#shutdown()}. The handler is not used afterwards.
+     */
+    void shutdown();
 }
@@ -25,18 +25,26 @@
  */
 package org.jraf.irondad.handler;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.jraf.irondad.protocol.Connection;
 
-public class HandlerContext extends HashMap<String, Object> {
+/**
+ * Per context storage for the handlers, plus the config, channel and connection of the context.<br/>
+ * Thread safe: a privmsg context is shared by all the nicknames, whose messages are handled concurrently. Like any {@link ConcurrentHashMap}, it
+ * can't hold {@code null} keys or values.
+ */
+public class HandlerContext extends ConcurrentHashMap<String, Object> {
     private final HandlerConfig mHandlerConfig;
     private final String mChannelName;
-    private Connection mConnection;
+    private final ScheduledExecutorService mScheduler;
+    private volatile Connection mConnection;
 
-    public HandlerContext(HandlerConfig handlerConfig, String channelName) {
+    public HandlerContext(HandlerConfig handlerConfig, String channelName, ScheduledExecutorService scheduler) {
         mHandlerConfig = handlerConfig;
         mChannelName = channelName;
+        mScheduler = scheduler;
     }
 
     public HandlerConfig getHandlerConfig() {
@@ -51,6 +59,13 @@ public class HandlerContext extends HashMap<String, Object> {
         return mConnection;
     }
 
+    /**
+     * @return The scheduler shared by the handlers of all the clients of the runtime, to use for periodic tasks.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
     /**
      * @return {@code null} if this is a privmsg context.
      */
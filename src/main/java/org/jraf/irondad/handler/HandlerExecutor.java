@@ -0,0 +1,326 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.util.Log;
+
+/**
+ * Runs the handlers off the connection thread.<br/>
+ * <ul>
+ * <li>Tasks submitted with the same key (a channel or a nickname) run one at a time, in submission order.</li>
+ * <li>Tasks with different keys run concurrently, on virtual threads if the JVM has them, or else on a bounded pool.</li>
+ * <li>The number of pending tasks is bounded, overall and per handler and key (handler instances are shared by all the channels). Tasks over
+ * the limits are rejected.</li>
+ * </ul>
+ */
+public class HandlerExecutor {
+    private static final String TAG = Constants.TAG + HandlerExecutor.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 16;
+    private static final int QUEUE_SIZE_MAX = 1000;
+    private static final int HANDLER_PENDING_MAX = 8;
+    private static final long KEEP_ALIVE = 60; // s
+
+    private final ExecutorService mExecutor;
+    private final boolean mVirtualThreads;
+    private final ConcurrentMap<String, Lane> mLanes = new ConcurrentHashMap<String, Lane>();
+    private final ConcurrentMap<Class<? extends Handler>, Integer> mHandlerPendingMax = new ConcurrentHashMap<Class<? extends Handler>, Integer>();
+
+    private final AtomicInteger mQueueSize = new AtomicInteger();
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private volatile int mQueueSizePeak;
+
+    /**
+     * A task, with the handler it belongs to ({@code null} if it doesn't count against a per handler limit).
+     */
+    private static class Task {
+        private final Handler mHandler;
+        private final Runnable mRunnable;
+
+        private Task(Handler handler, Runnable runnable) {
+            mHandler = handler;
+            mRunnable = runnable;
+        }
+    }
+
+    /**
+     * Tasks of the same key, run one after the other.<br/>
+     * Each task is submitted separately to the underlying executor, so a busy key doesn't starve the others.
+     */
+    private class Lane implements Runnable {
+        private final String mKey;
+        private final Deque<Task> mTasks = new ArrayDeque<Task>();
+
+        /**
+         * Pending (queued or running) tasks of each handler on this lane, so that a busy channel can't use up the limit of a handler shared with
+         * the other channels.
+         */
+        private final Map<Handler, Integer> mHandlerPendingCounts = new HashMap<Handler, Integer>();
+        private boolean mScheduled;
+        private boolean mRemoved;
+
+        private Lane(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            synchronized (this) {
+                task = mTasks.pollFirst();
+            }
+            mQueueSize.decrementAndGet();
+            mActiveCount.incrementAndGet();
+            try {
+                task.mRunnable.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "run Task threw an exception", e);
+            } finally {
+                mActiveCount.decrementAndGet();
+                mCompletedCount.incrementAndGet();
+            }
+            synchronized (this) {
+                if (task.mHandler != null) {
+                    int handlerPendingCount = mHandlerPendingCounts.get(task.mHandler) - 1;
+                    if (handlerPendingCount == 0) {
+                        mHandlerPendingCounts.remove(task.mHandler);
+                    } else {
+                        mHandlerPendingCounts.put(task.mHandler, handlerPendingCount);
+                    }
+                }
+                if (mTasks.isEmpty()) {
+                    // Idle: forget about this lane, a new one will be created if needed
+                    mScheduled = false;
+                    mRemoved = true;
+                    mLanes.remove(mKey, this);
+                    return;
+                }
+            }
+            schedule(this);
+        }
+    }
+
+    public HandlerExecutor() {
+        this(THREAD_COUNT);
+    }
+
+    /**
+     * @param threadCount Maximum number of threads used when virtual threads are not available.
+     */
+    public HandlerExecutor(int threadCount) {
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        if (virtualThreadExecutor != null) {
+            mExecutor = virtualThreadExecutor;
+            mVirtualThreads = true;
+        } else {
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread res = new Thread(runnable, "irondad-handler-" + mThreadNumber.incrementAndGet());
+                            res.setDaemon(true);
+                            return res;
+                        }
+                    });
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            mExecutor = threadPoolExecutor;
+            mVirtualThreads = false;
+        }
+        if (Config.LOGD) Log.d(TAG, "HandlerExecutor virtualThreads=" + mVirtualThreads);
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} is only available on Java 21+.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the maximum number of pending (queued or running) tasks for the given handler class, on each key.
+     */
+    public void setHandlerPendingMax(Class<? extends Handler> handlerClass, int pendingMax) {
+        mHandlerPendingMax.put(handlerClass, pendingMax);
+    }
+
+    private int getHandlerPendingMax(Handler handler) {
+        Integer res = mHandlerPendingMax.get(handler.getClass());
+        return res == null ? HANDLER_PENDING_MAX : res;
+    }
+
+    /**
+     * Run the given task after all the tasks previously submitted with the same key.<br/>
+     * Rejected tasks are counted (see {@link #getRejectedCount()}), and the caller is expected to log them.
+     *
+     * @param key The ordering key, typically the channel or nickname the message comes from.
+     * @param handler The handler the task belongs to, for the per handler and key limit, or {@code null} for short internal tasks (e.g.
+     *            notifications) that must not count against it. Those still count against the overall limit.
+     * @return {@code false} if the task was rejected because too many tasks are pending.
+     */
+    public boolean execute(String key, Handler handler, Runnable task) {
+        int queueSize = mQueueSize.incrementAndGet();
+        if (queueSize > QUEUE_SIZE_MAX) {
+            mQueueSize.decrementAndGet();
+            reject("execute Too many pending tasks");
+            return false;
+        }
+        if (queueSize > mQueueSizePeak) mQueueSizePeak = queueSize;
+
+        while (true) {
+            Lane lane = mLanes.get(key);
+            if (lane == null) {
+                mLanes.putIfAbsent(key, new Lane(key));
+                continue;
+            }
+            boolean schedule = false;
+            synchronized (lane) {
+                if (lane.mRemoved) continue;
+                if (handler != null) {
+                    Integer handlerPendingCount = lane.mHandlerPendingCounts.get(handler);
+                    int count = handlerPendingCount == null ? 0 : handlerPendingCount;
+                    if (count >= getHandlerPendingMax(handler)) {
+                        mQueueSize.decrementAndGet();
+                        if (lane.mTasks.isEmpty() && !lane.mScheduled) {
+                            // Only possible with a limit of 0: don't leave an empty lane behind
+                            lane.mRemoved = true;
+                            mLanes.remove(key, lane);
+                        }
+                        reject("execute Too many pending tasks for handler " + handler + " on " + key);
+                        return false;
+                    }
+                    lane.mHandlerPendingCounts.put(handler, count + 1);
+                }
+                lane.mTasks.addLast(new Task(handler, task));
+                if (!lane.mScheduled) {
+                    lane.mScheduled = true;
+                    schedule = true;
+                }
+            }
+            if (schedule) schedule(lane);
+            return true;
+        }
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            mExecutor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // Shut down: drop everything that was queued on this lane
+            synchronized (lane) {
+                mQueueSize.addAndGet(-lane.mTasks.size());
+                mRejectedCount.addAndGet(lane.mTasks.size());
+                lane.mTasks.clear();
+                lane.mHandlerPendingCounts.clear();
+                lane.mScheduled = false;
+                lane.mRemoved = true;
+                mLanes.remove(lane.mKey, lane);
+            }
+            Log.w(TAG, "schedule Executor is shut down", e);
+        }
+    }
+
+    private void reject(String reason) {
+        mRejectedCount.incrementAndGet();
+        if (Config.LOGD) Log.d(TAG, reason + " - rejected (" + this + ")");
+    }
+
+    public void shutdown() {
+        if (Config.LOGD) Log.d(TAG, "shutdown");
+        mExecutor.shutdown();
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return mVirtualThreads;
+    }
+
+    /**
+     * @return The number of tasks waiting to be run.
+     */
+    public int getQueueSize() {
+        return mQueueSize.get();
+    }
+
+    /**
+     * @return The highest number of tasks that were waiting to be run at the same time.
+     */
+    public int getQueueSizePeak() {
+        return mQueueSizePeak;
+    }
+
+    /**
+     * @return The number of tasks currently running.
+     */
+    public int getActiveCount() {
+        return mActiveCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return The number of keys that currently have queued or running tasks.
+     */
+    public int getLaneCount() {
+        return mLanes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HandlerExecutor{queueSize=" + getQueueSize() + ", queueSizePeak=" + mQueueSizePeak + ", active=" + getActiveCount() + ", lanes="
+                + getLaneCount() + ", completed=" + getCompletedCount() + ", rejected=" + getRejectedCount() + ", virtualThreads=" + mVirtualThreads + "}";
+    }
+}
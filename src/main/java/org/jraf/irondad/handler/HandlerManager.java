@@ -26,51 +26,60 @@
 package org.jraf.irondad.handler;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Arrays;
-import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.protocol.ClientConfig;
 import org.jraf.irondad.protocol.ClientConfig.HandlerClassAndConfig;
+import org.jraf.irondad.protocol.ClientRuntime;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
+import org.jraf.irondad.protocol.ConnectionState;
 import org.jraf.irondad.protocol.Message;
+import org.jraf.irondad.util.BanMatcher;
 import org.jraf.irondad.util.Log;
 
 public class HandlerManager {
     private static final String TAG = Constants.TAG + HandlerManager.class.getSimpleName();
 
-    // No more than 5 messages in 20 seconds
-    private static final int FLOOD_LOG_SIZE_MAX = 5;
-    private static final int FLOOD_TIME_DIFF = 20000;
-    private static final int FLOOD_PAUSE_DURATION = 2 * 60 * 1000;
-
-    private final Map<Handler, HandlerContext> mPrivmsgHandlerContexts = new HashMap<Handler, HandlerContext>();
+    private final Map<Handler, HandlerContext> mPrivmsgHandlerContexts = new LinkedHashMap<Handler, HandlerContext>();
     private final Map<String, Map<Handler, HandlerContext>> mChannelHandlerContexts = new HashMap<String, Map<Handler, HandlerContext>>();
 
-    private static class FloodControl {
-        private final Deque<Long> mFloodLog = new ArrayDeque<Long>(FLOOD_LOG_SIZE_MAX);
-        private long mFloodPreventStart;
-        private boolean mFloodShowWarning;
-    }
+    private final DispatchIndex mPrivmsgDispatchIndex;
+    private final Map<String, DispatchIndex> mChannelDispatchIndexes = new HashMap<String, DispatchIndex>();
 
-    private final Map<String, FloodControl> mFloodControl = new HashMap<String, FloodControl>();
-    private Connection mConnection;
+    private final FloodControl mPrivmsgFloodControl;
+    private final Map<String, FloodControl> mChannelFloodControls = new HashMap<String, FloodControl>();
+    private final ClientConfig mClientConfig;
+    private final HandlerExecutor mHandlerExecutor;
+    private final String mExecutionKeyPrefix;
+    private volatile Connection mConnection;
 
     public HandlerManager(ClientConfig clientConfig) {
-        HashMap<Class<? extends Handler>, Handler> allHandlers = new HashMap<Class<? extends Handler>, Handler>();
+        this(clientConfig, ClientRuntime.getDefault());
+    }
+
+    /**
+     * @param clientRuntime Provides the handler instances, and the executor they are run on.
+     */
+    public HandlerManager(ClientConfig clientConfig, ClientRuntime clientRuntime) {
+        mClientConfig = clientConfig;
+        mHandlerExecutor = clientRuntime.getHandlerExecutor();
+        // Channels of different networks must not share their lanes
+        mExecutionKeyPrefix = clientConfig.getHost() + ":" + clientConfig.getPort() + "/";
+        ScheduledExecutorService scheduler = clientRuntime.getScheduler();
 
         // Privmsg handlers
         for (String configName : clientConfig.getPrivmsgHandlerConfigNames()) {
             try {
                 HandlerClassAndConfig handlerClassAndConfig = clientConfig.getHandlerConfig(configName);
-                Handler handler = getHandler(allHandlers, handlerClassAndConfig.handlerClass, clientConfig);
-                HandlerContext handlerContext = new HandlerContext(handlerClassAndConfig.handlerConfig, null);
+                Handler handler = clientRuntime.getHandler(handlerClassAndConfig.handlerClass, clientConfig);
+                HandlerContext handlerContext = new HandlerContext(handlerClassAndConfig.handlerConfig, null, scheduler);
                 mPrivmsgHandlerContexts.put(handler, handlerContext);
                 handler.init(handlerContext);
             } catch (Exception e) {
@@ -78,14 +87,17 @@ public class HandlerManager {
             }
         }
 
+        mPrivmsgDispatchIndex = new DispatchIndex(mPrivmsgHandlerContexts);
+        mPrivmsgFloodControl = new FloodControl(clientConfig.getPrivmsgFloodLimit());
+
         // Channel handlers
         for (String channel : clientConfig.getChannels()) {
-            Map<Handler, HandlerContext> channelHandlerContexts = new HashMap<Handler, HandlerContext>();
+            Map<Handler, HandlerContext> channelHandlerContexts = new LinkedHashMap<Handler, HandlerContext>();
             for (String configName : clientConfig.getChannelHandlerConfigNames(channel)) {
                 try {
                     HandlerClassAndConfig handlerClassAndConfig = clientConfig.getHandlerConfig(configName);
-                    Handler handler = getHandler(allHandlers, handlerClassAndConfig.handlerClass, clientConfig);
-                    HandlerContext handlerContext = new HandlerContext(handlerClassAndConfig.handlerConfig, channel);
+                    Handler handler = clientRuntime.getHandler(handlerClassAndConfig.handlerClass, clientConfig);
+                    HandlerContext handlerContext = new HandlerContext(handlerClassAndConfig.handlerConfig, channel, scheduler);
                     channelHandlerContexts.put(handler, handlerContext);
                     handler.init(handlerContext);
                 } catch (Exception e) {
@@ -93,113 +105,105 @@ public class HandlerManager {
                 }
             }
             mChannelHandlerContexts.put(channel, channelHandlerContexts);
+            mChannelDispatchIndexes.put(channel, new DispatchIndex(channelHandlerContexts));
+            mChannelFloodControls.put(channel, new FloodControl(clientConfig.getChannelFloodLimit(channel)));
         }
     }
 
-    private Handler getHandler(HashMap<Class<? extends Handler>, Handler> allHandlers, Class<? extends Handler> handlerClass, ClientConfig clientConfig)
-            throws Exception {
-        Handler res = allHandlers.get(handlerClass);
-        if (res == null) {
-            res = handlerClass.newInstance();
-            res.init(clientConfig);
-            allHandlers.put(handlerClass, res);
+    /**
+     * Find the handler for the given message, and run it on the {@link HandlerExecutor}.<br/>
+     * Messages from the same channel (or the same nickname for privmsgs) are handled in order.
+     */
+    public void handle(final String channel, final String fromNickname, final String text, final Message message) {
+        BanMatcher banMatcher = mClientConfig.getBanMatcher();
+        if (!banMatcher.isEmpty() && banMatcher.matches(message.origin.toFormattedString())) {
+            if (Config.LOGD) Log.d(TAG, "handle Ignoring message from banned user " + message.origin);
+            return;
         }
-        return res;
-    }
-
-    public void handle(String channel, String fromNickname, String text, Message message) {
         String chanOrNick = channel == null ? fromNickname : channel;
-        List<String> textAsList = Arrays.asList(text.trim().split("\\s+"));
-        if (channel == null) {
-            // Handle privmsgs
-            for (Handler handler : mPrivmsgHandlerContexts.keySet()) {
-                if (handler.isMessageHandled(null, fromNickname, text, textAsList, message, mPrivmsgHandlerContexts.get(handler))) {
-                    if (checkForFloodLocked(chanOrNick)) {
-                        return;
-                    }
-                    accountForFlood(chanOrNick);
-                    try {
-                        handler.handleMessage(mConnection, null, fromNickname, text, textAsList, message, mPrivmsgHandlerContexts.get(handler));
-                    } catch (Exception e) {
-                        Log.w(TAG, "handle Handler " + handler + " threw an exception while calling handleMessage", e);
-                    }
-                    break;
-                }
-            }
-        } else {
-            // Handle channel msgs
-            Map<Handler, HandlerContext> channelHandlerContexts = mChannelHandlerContexts.get(channel);
-            for (Handler handler : channelHandlerContexts.keySet()) {
-                if (handler.isMessageHandled(channel, fromNickname, text, textAsList, message, channelHandlerContexts.get(handler))) {
-                    if (checkForFloodLocked(chanOrNick)) {
-                        return;
-                    }
-                    accountForFlood(chanOrNick);
-                    try {
-                        handler.handleMessage(mConnection, channel, fromNickname, text, textAsList, message, channelHandlerContexts.get(handler));
-                    } catch (Exception e) {
-                        Log.w(TAG, "handle Handler " + handler + " threw an exception while calling handleMessage", e);
-                    }
-                    break;
+        DispatchIndex dispatchIndex = channel == null ? mPrivmsgDispatchIndex : mChannelDispatchIndexes.get(channel);
+        if (dispatchIndex == null) {
+            if (Config.LOGD) Log.d(TAG, "handle No handlers for channel " + channel);
+            return;
+        }
+        final List<String> textAsList = new TextAsList(text);
+        int index = dispatchIndex.find(channel, fromNickname, text, textAsList, message);
+        if (index == -1) return;
+
+        if (isFlooding(channel, chanOrNick)) return;
+        final Handler handler = dispatchIndex.getHandler(index);
+        final HandlerContext handlerContext = dispatchIndex.getHandlerContext(index);
+        final Connection connection = mConnection;
+        boolean accepted = mHandlerExecutor.execute(mExecutionKeyPrefix + chanOrNick, handler, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.handleMessage(connection, channel, fromNickname, text, textAsList, message, handlerContext);
+                } catch (Exception e) {
+                    Log.w(TAG, "handle Handler " + handler + " threw an exception while calling handleMessage", e);
                 }
             }
+        });
+        if (!accepted) {
+            Log.w(TAG, "handle Dropped message from " + chanOrNick + " for " + handler + ": too many pending tasks (" + mHandlerExecutor + ")");
         }
     }
 
-    private FloodControl getFloodControl(String chanOrNick) {
-        FloodControl res = mFloodControl.get(chanOrNick);
-        if (res == null) {
-            res = new FloodControl();
-            mFloodControl.put(chanOrNick, res);
-        }
-        return res;
+    public HandlerExecutor getHandlerExecutor() {
+        return mHandlerExecutor;
     }
 
-    private boolean checkForFloodLocked(String chanOrNick) {
-        long now = System.currentTimeMillis();
-        FloodControl floodControl = getFloodControl(chanOrNick);
-        if (floodControl.mFloodPreventStart != 0) {
-            // Currently pausing
-            if (now - floodControl.mFloodPreventStart < FLOOD_PAUSE_DURATION) {
-                if (Config.LOGD) Log.d(TAG, "handleFlood Flood prevention: ignoring message");
-
-                if (floodControl.mFloodShowWarning) {
-                    try {
-                        mConnection.send(Command.PRIVMSG, chanOrNick, "Throttled");
-                    } catch (IOException e) {
-                        Log.w(TAG, "handle Could not send flood warning", e);
-                    }
-                    floodControl.mFloodShowWarning = false;
+    private boolean isFlooding(String channel, String chanOrNick) {
+        FloodControl floodControl = channel == null ? mPrivmsgFloodControl : mChannelFloodControls.get(channel);
+        switch (floodControl.check(chanOrNick, System.currentTimeMillis())) {
+            case ALLOWED:
+                return false;
+
+            case THROTTLED_FIRST:
+                if (Config.LOGD) Log.d(TAG, "isFlooding Flood prevention: ignoring messages from " + chanOrNick);
+                try {
+                    mConnection.send(Command.PRIVMSG, chanOrNick, "Throttled");
+                } catch (IOException e) {
+                    Log.w(TAG, "isFlooding Could not send flood warning", e);
                 }
+                return true;
 
+            default:
                 return true;
-            }
-            if (Config.LOGD) Log.d(TAG, "handleFlood Flood prevention: end of period");
-            floodControl.mFloodPreventStart = 0;
-            return false;
         }
-        return false;
     }
 
-    private void accountForFlood(String chanOrNick) {
-        long now = System.currentTimeMillis();
-        FloodControl floodControl = getFloodControl(chanOrNick);
-        floodControl.mFloodLog.addLast(now);
-        if (Config.LOGD) Log.d(TAG, "handleFlood mFloodLog=" + floodControl.mFloodLog);
-        if (floodControl.mFloodLog.size() < FLOOD_LOG_SIZE_MAX) {
-            if (Config.LOGD) Log.d(TAG, "handleFlood Not enough samples");
-            return;
+    /**
+     * Notify all the handlers, in all their contexts, that the state of the connection changed.
+     */
+    public void onConnectionStateChanged(final ConnectionState connectionState) {
+        if (Config.LOGD) Log.d(TAG, "onConnectionStateChanged connectionState=" + connectionState);
+        for (Map.Entry<Handler, HandlerContext> entry : mPrivmsgHandlerContexts.entrySet()) {
+            notifyConnectionStateChanged(entry.getKey(), entry.getValue(), "", connectionState);
         }
-        // Make room for the new value
-        floodControl.mFloodLog.removeFirst();
-        long timeDiff = now - floodControl.mFloodLog.getFirst();
-
-        if (Config.LOGD) Log.d(TAG, "handleFlood timeDiff=" + timeDiff);
+        for (Map.Entry<String, Map<Handler, HandlerContext>> channelEntry : mChannelHandlerContexts.entrySet()) {
+            for (Map.Entry<Handler, HandlerContext> entry : channelEntry.getValue().entrySet()) {
+                notifyConnectionStateChanged(entry.getKey(), entry.getValue(), channelEntry.getKey(), connectionState);
+            }
+        }
+    }
 
-        if (timeDiff < FLOOD_TIME_DIFF) {
-            // Too many messages in not enough time
-            floodControl.mFloodPreventStart = now;
-            floodControl.mFloodShowWarning = true;
+    private void notifyConnectionStateChanged(final Handler handler, final HandlerContext handlerContext, String chanOrNick,
+            final ConnectionState connectionState) {
+        // Same lane as the messages of the channel, so the notification is ordered with them.
+        // Not counted against the per handler limit: there is one notification per channel, which would fill it and reject messages on reconnect.
+        boolean accepted = mHandlerExecutor.execute(mExecutionKeyPrefix + chanOrNick, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.onConnectionStateChanged(connectionState, handlerContext);
+                } catch (Exception e) {
+                    Log.w(TAG, "onConnectionStateChanged Handler " + handler + " threw an exception while calling onConnectionStateChanged", e);
+                }
+            }
+        });
+        if (!accepted) {
+            Log.w(TAG, "notifyConnectionStateChanged Dropped notification for " + handler + ": too many pending tasks (" + mHandlerExecutor + ")");
         }
     }
 
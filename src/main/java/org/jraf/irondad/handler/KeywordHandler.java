@@ -0,0 +1,65 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jraf.irondad.protocol.Message;
+
+/**
+ * A handler triggered when the first word of a message is one of the keys of its {@link HandlerConfig} (exact match).<br/>
+ * The value associated to the key is available through {@link #getValue(List, HandlerContext)}.
+ */
+public abstract class KeywordHandler extends BaseHandler {
+    /**
+     * @return The keywords this handler answers to in the given context. By default, the keys of the handler config that have a non empty value.
+     */
+    protected Collection<String> getKeywords(HandlerContext handlerContext) {
+        HandlerConfig handlerConfig = handlerContext.getHandlerConfig();
+        List<String> res = new ArrayList<String>();
+        for (String key : handlerConfig.keySet()) {
+            if (!handlerConfig.optString(key).isEmpty()) res.add(key);
+        }
+        return res;
+    }
+
+    /**
+     * @return The config value associated to the first word of the message, or {@code null} if there is none.
+     */
+    protected String getValue(List<String> textAsList, HandlerContext handlerContext) {
+        String value = handlerContext.getHandlerConfig().optString(textAsList.get(0));
+        if (value.isEmpty()) return null;
+        return value;
+    }
+
+    @Override
+    public final boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message,
+            HandlerContext handlerContext) {
+        return getValue(textAsList, handlerContext) != null;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.jraf.irondad.protocol.Message;
+
+/**
+ * A handler triggered when its {@link Pattern} is found anywhere in a message.<br/>
+ * The patterns of all the handlers of a context are combined into one, so they must not use numbered back references.
+ */
+public abstract class PatternHandler extends BaseHandler {
+    protected abstract Pattern getPattern();
+
+    @Override
+    public final boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message,
+            HandlerContext handlerContext) {
+        return getPattern().matcher(text).find();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.regex.Pattern;
+
+/**
+ * The words of a message, as passed to the handlers.<br/>
+ * The text is only split the first time the list is accessed, since most messages are dispatched without needing it.
+ */
+final class TextAsList extends AbstractList<String> implements RandomAccess {
+    private static final Pattern PATTERN_WHITESPACE = Pattern.compile("\\s+");
+
+    private final String mText;
+    private String[] mWords;
+
+    TextAsList(String text) {
+        mText = text;
+    }
+
+    private String[] getWords() {
+        if (mWords == null) mWords = PATTERN_WHITESPACE.split(mText.trim());
+        return mWords;
+    }
+
+    @Override
+    public String get(int index) {
+        return getWords()[index];
+    }
+
+    @Override
+    public int size() {
+        return getWords().length;
+    }
+}
@@ -29,18 +29,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -50,6 +47,7 @@ public class AndroidStatsHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + AndroidStatsHandler.class.getSimpleName();
 
     private static final String URL_HTML = "https://android-dot-google-developers.appspot.com/about/dashboards/index_95cbf8a418417c3d65b22a91dd29d889.frame";
+    private static final long TTL = 60 * 60 * 1000;
 
     private static class StatPoint implements Comparable<StatPoint> {
         public int apiLevel;
@@ -96,8 +94,6 @@ public class AndroidStatsHandler extends CommandHandler {
         }
     }
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
-
 
     @Override
     protected String getCommand() {
@@ -107,20 +103,16 @@ public class AndroidStatsHandler extends CommandHandler {
     @Override
     protected void handleChannelMessage(final Connection connection, final String channel, String fromNickname, String text, List<String> textAsList,
             Message message, HandlerContext handlerContext) throws Exception {
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    connection.send(Command.PRIVMSG, channel, getStats());
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result = getStats();
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
-    private static String getStats() {
-        String html = HttpRequest.get(URL_HTML).body();
+    private static String getStats() throws IOException {
+        String html = HttpService.getDefault().getBody(URL_HTML, TTL);
         String start = "var VERSION_DATA =";
         String end = ";";
 
@@ -169,7 +161,7 @@ public class AndroidStatsHandler extends CommandHandler {
         return res.toString();
     }
 
-    public static void main(String[] av) {
+    public static void main(String[] av) throws Exception {
         getStats();
     }
 }
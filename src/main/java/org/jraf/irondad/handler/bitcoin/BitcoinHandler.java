@@ -27,12 +27,11 @@ package org.jraf.irondad.handler.bitcoin;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -41,15 +40,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.github.kevinsawicki.http.HttpRequest;
-import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
-
 public class BitcoinHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + BitcoinHandler.class.getSimpleName();
 
     private static final String URL_API = "http://api.bitcoincharts.com/v1/markets.json";
-
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private static final long TTL = 60 * 1000;
 
     @Override
     protected String getCommand() {
@@ -65,33 +60,32 @@ public class BitcoinHandler extends CommandHandler {
             return;
         }
 
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String jsonStr = HttpRequest.get(URL_API).body();
-                    if (jsonStr == null || jsonStr.length() == 0) {
-                        // Try again once, sometimes we get an empty string
-                        jsonStr = HttpRequest.get(URL_API).body();
-                    }
-                    JSONArray mainObject = new JSONArray(jsonStr);
-                    int len = mainObject.length();
-                    for (int i = 0; i < len; i++) {
-                        JSONObject dataObject = mainObject.getJSONObject(i);
-                        if ("bitstampUSD".equals(dataObject.getString("symbol"))) {
-                            double avg = dataObject.getDouble("avg");
-                            connection.send(Command.PRIVMSG, channel, String.format("$%1$1.2f", avg));
-                            break;
-                        }
-                    }
-                } catch (HttpRequestException e) {
-                    Log.w(TAG, "handleMessage Could not get " + URL_API, e);
-                } catch (JSONException e) {
-                    Log.w(TAG, "handleMessage Could not parse json", e);
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
+        String jsonStr;
+        try {
+            jsonStr = HttpService.getDefault().getBody(URL_API, TTL);
+            if (jsonStr.length() == 0) {
+                // Try again once, sometimes we get an empty string
+                jsonStr = HttpService.getDefault().getBody(URL_API, HttpService.TTL_NONE);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "handleMessage Could not get " + URL_API, e);
+            return;
+        }
+        try {
+            JSONArray mainObject = new JSONArray(jsonStr);
+            int len = mainObject.length();
+            for (int i = 0; i < len; i++) {
+                JSONObject dataObject = mainObject.getJSONObject(i);
+                if ("bitstampUSD".equals(dataObject.getString("symbol"))) {
+                    double avg = dataObject.getDouble("avg");
+                    connection.send(Command.PRIVMSG, channel, String.format("$%1$1.2f", avg));
+                    break;
                 }
             }
-        });
+        } catch (JSONException e) {
+            Log.w(TAG, "handleMessage Could not parse json", e);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 }
@@ -26,11 +26,11 @@
  */
 package org.jraf.irondad.handler.commitstrip;
 
-import com.github.kevinsawicki.http.HttpRequest;
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -41,15 +41,12 @@ import org.jsoup.nodes.Element;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class CommitstripHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + CommitstripHandler.class.getSimpleName();
 
     private static final String URL_HTML = "https://www.commitstrip.com/en/";
-
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private static final long TTL = 10 * 60 * 1000;
 
     @Override
     protected String getCommand() {
@@ -66,19 +63,15 @@ public class CommitstripHandler extends CommandHandler {
         } else {
             param = "";
         }
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    connection.send(Command.PRIVMSG, channel, getResult(param));
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result = getResult(param);
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
-    private static String getResult(String param) {
+    private static String getResult(String param) throws IOException {
         if (param.equals("help")) {
             return "Options: [random|help]";
         }
@@ -86,7 +79,7 @@ public class CommitstripHandler extends CommandHandler {
             return URL_HTML + "random/";
         }
 
-        String html = HttpRequest.get(URL_HTML).body();
+        String html = HttpService.getDefault().getBody(URL_HTML, TTL);
         if (Config.LOGD) Log.d(TAG, html);
 
         // Find the first link
@@ -105,7 +98,7 @@ public class CommitstripHandler extends CommandHandler {
         return a.attr("href");
     }
 
-    public static void main(String[] av) {
+    public static void main(String[] av) throws Exception {
         getResult("");
     }
 }
@@ -33,34 +33,20 @@ import org.joda.time.Hours;
 import org.joda.time.Minutes;
 import org.joda.time.Seconds;
 import org.jraf.irondad.Constants;
-import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.KeywordHandler;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
 import org.jraf.irondad.util.Log;
 
-public class CountDownHandler extends BaseHandler {
+public class CountDownHandler extends KeywordHandler {
     private static final String TAG = Constants.TAG + CountDownHandler.class.getSimpleName();
 
-    private String getDate(List<String> textAsList, HandlerContext handlerContext) {
-        CountDownHandlerConfig handlerConfig = (CountDownHandlerConfig) handlerContext.getHandlerConfig();
-        String command = textAsList.get(0);
-        String dateStr = handlerConfig.get(command);
-
-        return dateStr;
-    }
-
-    @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        String dateStr = getDate(textAsList, handlerContext);
-        return dateStr != null;
-    }
-
     @Override
     protected void handleChannelMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
-        String eventDateStr = getDate(textAsList, handlerContext);
+        String eventDateStr = getValue(textAsList, handlerContext);
         String reply = getReply(eventDateStr);
         connection.send(Command.PRIVMSG, new String[] { channel, reply });
     }
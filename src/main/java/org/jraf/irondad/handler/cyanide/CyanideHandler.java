@@ -26,11 +26,11 @@
  */
 package org.jraf.irondad.handler.cyanide;
 
-import com.github.kevinsawicki.http.HttpRequest;
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -38,15 +38,12 @@ import org.jraf.irondad.util.Log;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class CyanideHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + CyanideHandler.class.getSimpleName();
 
     private static final String URL_HTML = "https://explosm.net/comics/latest";
-
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private static final long TTL = 10 * 60 * 1000;
 
     @Override
     protected String getCommand() {
@@ -63,20 +60,16 @@ public class CyanideHandler extends CommandHandler {
         } else {
             param = "";
         }
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    connection.send(Command.PRIVMSG, channel, getResult(param));
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result = getResult(param);
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
-    private static String getResult(String param) {
-        String html = HttpRequest.get(URL_HTML).followRedirects(true).body();
+    private static String getResult(String param) throws IOException {
+        String html = HttpService.getDefault().getBody(URL_HTML, TTL);
         if (Config.LOGD) Log.d(TAG, html);
         String start = "<img src=\"";
         String end = "\"";
@@ -87,7 +80,7 @@ public class CyanideHandler extends CommandHandler {
         return html;
     }
 
-    public static void main(String[] av) {
+    public static void main(String[] av) throws Exception {
         getResult("");
     }
 }
@@ -31,8 +31,8 @@ import java.util.List;
 
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
-import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.KeywordHandler;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -43,26 +43,13 @@ import com.sun.syndication.feed.synd.SyndFeed;
 import com.sun.syndication.io.SyndFeedInput;
 import com.sun.syndication.io.XmlReader;
 
-public class FeedHandler extends BaseHandler {
+public class FeedHandler extends KeywordHandler {
     private static final String TAG = Constants.TAG + FeedHandler.class.getSimpleName();
 
-    private String getUrl(List<String> textAsList, HandlerContext handlerContext) {
-        FeedHandlerConfig handlerConfig = (FeedHandlerConfig) handlerContext.getHandlerConfig();
-        String command = textAsList.get(0);
-        String url = handlerConfig.get(command);
-        return url;
-    }
-
-    @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        String url = getUrl(textAsList, handlerContext);
-        return url != null;
-    }
-
     @Override
     protected void handleChannelMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
-        String url = getUrl(textAsList, handlerContext);
+        String url = getValue(textAsList, handlerContext);
         SyndEntry latestEntry = getLatestEntry(url);
         if (latestEntry == null) return;
         String entryLink = latestEntry.getLink();
@@ -27,22 +27,21 @@ package org.jraf.irondad.handler.giphy;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
 
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
 import org.jraf.irondad.util.Log;
 import org.json.JSONObject;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 public class GiphyHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + GiphyHandler.class.getSimpleName();
 
@@ -50,8 +49,7 @@ public class GiphyHandler extends CommandHandler {
     private static final String URL_API_RANDOM = "http://api.giphy.com/v1/gifs/random?api_key=%1s";
 
     private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/43.0.2357.81 Safari/537.36";
-
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private static final Map<String, String> HEADERS = Collections.singletonMap("User-Agent", USER_AGENT);
 
     @Override
     public String getCommand() {
@@ -62,32 +60,27 @@ public class GiphyHandler extends CommandHandler {
     protected void handleChannelMessage(final Connection connection, final String channel, String fromNickname, final String text,
             final List<String> textAsList, Message message, HandlerContext handlerContext) throws Exception {
         final String key = ((GiphyHandlerConfig) handlerContext.getHandlerConfig()).getKey();
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                String result;
-                if (textAsList.size() == 1) {
-                    // No parameters: random gif
-                    result = callRandom(key);
-                } else {
-                    // "Translate" api
-                    String searchTerms = text.substring(getCommand().length() + 1);
-                    result = callTranslate(key, searchTerms);
-                }
-                try {
-                    connection.send(Command.PRIVMSG, channel, result);
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result;
+        if (textAsList.size() == 1) {
+            // No parameters: random gif
+            result = callRandom(key);
+        } else {
+            // "Translate" api
+            String searchTerms = text.substring(getCommand().length() + 1);
+            result = callTranslate(key, searchTerms);
+        }
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
     protected String callTranslate(String apiKey, String searchTerms) {
         try {
             searchTerms = URLEncoder.encode(searchTerms, "utf-8");
             String url = String.format(URL_API_TRANSLATE, searchTerms, apiKey);
-            String jsonStr = HttpRequest.get(url).userAgent(USER_AGENT).body();
+            String jsonStr = HttpService.getDefault().getBody(url, HEADERS);
             if (Config.LOGD) Log.d(TAG, "callTranslate jsonStr=" + jsonStr);
             JSONObject result = new JSONObject(jsonStr);
             JSONObject data = result.getJSONObject("data");
@@ -104,7 +97,7 @@ public class GiphyHandler extends CommandHandler {
     protected String callRandom(String apiKey) {
         try {
             String url = String.format(URL_API_RANDOM, apiKey);
-            String jsonStr = HttpRequest.get(url).userAgent(USER_AGENT).body();
+            String jsonStr = HttpService.getDefault().getBody(url, HEADERS, HttpService.TTL_NONE);
             if (Config.LOGD) Log.d(TAG, "callTranslate jsonStr=" + jsonStr);
             JSONObject result = new JSONObject(jsonStr);
             if (Config.LOGD) Log.d(TAG, "callTranslate result=" + result);
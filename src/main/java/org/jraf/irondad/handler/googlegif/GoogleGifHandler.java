@@ -44,8 +44,6 @@ import org.jraf.irondad.util.Log;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class GoogleGifHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + GoogleGifHandler.class.getSimpleName();
@@ -56,9 +54,9 @@ public class GoogleGifHandler extends CommandHandler {
     private static final JsonFactory JSON_FACTORY = new JacksonFactory();
     private static final int RESULT_SIZE = 10;
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
-
-    private List<Result> mSearchResults;
+    /**
+     * Access is synchronized on the map itself, since channels are handled concurrently. The Google queries are made outside of the lock.
+     */
     private final HashMap<String, Integer> mSearchIdxMap = new HashMap<>();
 
 
@@ -71,49 +69,47 @@ public class GoogleGifHandler extends CommandHandler {
     protected void handleChannelMessage(final Connection connection, final String channel, String fromNickname, final String text,
             final List<String> textAsList, Message message, final HandlerContext handlerContext) throws Exception {
         final String key = ((GoogleGifHandlerConfig) handlerContext.getHandlerConfig()).getKey();
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String result;
-                    if (textAsList.size() == 1) {
-                        // No parameters: search for Android
-                        result = getGoogleQueryResult(connection, handlerContext, "animated android");
-                    } else {
-                        // "Translate" api
-                        String searchTerms = text.substring(getCommand().length() + 1);
-                        result = getGoogleQueryResult(connection, handlerContext, "animated " + searchTerms);
-
-                    }
-                    connection.send(Command.PRIVMSG, channel, result);
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
+        try {
+            String result;
+            if (textAsList.size() == 1) {
+                // No parameters: search for Android
+                result = getGoogleQueryResult(connection, handlerContext, "animated android");
+            } else {
+                // "Translate" api
+                String searchTerms = text.substring(getCommand().length() + 1);
+                result = getGoogleQueryResult(connection, handlerContext, "animated " + searchTerms);
 
-
-        });
+            }
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
     private String getGoogleQueryResult(final Connection connection, final HandlerContext handlerContext, String searchTerms) throws IOException {
-        Integer searchIdx = mSearchIdxMap.get(searchTerms);
-        if (searchIdx == null) {
-            searchIdx = -1;
+        int searchIdx;
+        synchronized (mSearchIdxMap) {
+            Integer previousSearchIdx = mSearchIdxMap.get(searchTerms);
+            searchIdx = previousSearchIdx == null ? 0 : previousSearchIdx + 1;
+            mSearchIdxMap.put(searchTerms, searchIdx);
         }
-        searchIdx++;
-        mSearchIdxMap.put(searchTerms, searchIdx);
         String result;
-        long searchResultCount = queryGoogle(handlerContext, connection, searchTerms);
-        if (searchResultCount == 0) {
+        Search search = queryGoogle(handlerContext, connection, searchTerms);
+        long searchResultCount = Long.parseLong(search.getSearchInformation().getTotalResults());
+        List<Result> searchResults = search.getItems();
+        if (searchResultCount == 0 || searchResults == null || searchResults.isEmpty()) {
             result = "This search has no results!  Try another one.";
         } else {
-            result = mSearchResults.get(searchIdx % mSearchResults.size()).getLink();
+            result = searchResults.get(searchIdx % searchResults.size()).getLink();
             result = result.replaceAll("200_s\\.gif", "giphy.gif");
         }
         return result;
     }
 
-    private long queryGoogle(HandlerContext handlerContext, Connection connection, String searchTerms) throws IOException {
+    /**
+     * Must not be called while holding the {@code mSearchIdxMap} lock.
+     */
+    private Search queryGoogle(HandlerContext handlerContext, Connection connection, String searchTerms) throws IOException {
         if (Config.LOGD) Log.d(TAG, "queryGoogle searchTerms=" + searchTerms);
         Customsearch customsearch = getCustomsearch(handlerContext);
         Customsearch.Cse.List list = customsearch.cse().list().setExactTerms(searchTerms);
@@ -126,11 +122,7 @@ public class GoogleGifHandler extends CommandHandler {
         //        list.setStart((long) mGuessCount + 1);
 
         // Execute the query
-        Search search = list.execute();
-
-        mSearchResults = search.getItems();
-
-        return Long.parseLong(search.getSearchInformation().getTotalResults());
+        return list.execute();
     }
 
     private Customsearch getCustomsearch(HandlerContext handlerContext) {
@@ -27,18 +27,17 @@
 package org.jraf.irondad.handler.itsthisforthat;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
 
 import org.json.JSONObject;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -48,8 +47,8 @@ public class IsThisForThat extends CommandHandler {
     private static final String TAG = Constants.TAG + IsThisForThat.class.getSimpleName();
 
     private static final String URL_HTML = "http://itsthisforthat.com/api.php?json";
-
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    private static final Map<String, String> HEADERS = Collections.singletonMap("User-Agent",
+            "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/28.0.1500.52 Safari/537.36");
 
     @Override
     protected String getCommand() {
@@ -61,21 +60,16 @@ public class IsThisForThat extends CommandHandler {
                                         Message message, HandlerContext handlerContext) throws Exception {
         if (Config.LOGD) Log.d(TAG, "handleChannelMessage");
 
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    connection.send(Command.PRIVMSG, channel, getResult());
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result = getResult();
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
-    private static String getResult() {
-        String html = HttpRequest.get(URL_HTML)
-                .header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/28.0.1500.52 Safari/537.36").body();
+    private static String getResult() throws IOException {
+        String html = HttpService.getDefault().getBody(URL_HTML, HEADERS, HttpService.TTL_NONE);
         Log.d(TAG, "Loading: " + URL_HTML);
         Log.d(TAG, html);
         if (html.contains("<html")) {
@@ -87,7 +81,7 @@ public class IsThisForThat extends CommandHandler {
         return "So, basically, it's like a " + json.getString("this") + " for " + json.getString("that");
     }
 
-    public static void main(String[] av) {
+    public static void main(String[] av) throws Exception {
         getResult();
     }
 }
@@ -27,30 +27,17 @@ package org.jraf.irondad.handler.macro;
 
 import java.util.List;
 
-import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.KeywordHandler;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
 
-public class MacroHandler extends BaseHandler {
-    private String getReply(List<String> textAsList, HandlerContext handlerContext) {
-        MacroHandlerConfig handlerConfig = (MacroHandlerConfig) handlerContext.getHandlerConfig();
-        String command = textAsList.get(0);
-        String reply = handlerConfig.get(command);
-        return reply;
-    }
-
-    @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        String reply = getReply(textAsList, handlerContext);
-        return reply != null;
-    }
-
+public class MacroHandler extends KeywordHandler {
     @Override
     protected void handleChannelMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
-        String reply = getReply(textAsList, handlerContext);
+        String reply = getValue(textAsList, handlerContext);
         connection.send(Command.PRIVMSG, channel, reply);
     }
 }
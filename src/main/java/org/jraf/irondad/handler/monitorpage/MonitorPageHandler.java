@@ -28,16 +28,13 @@ package org.jraf.irondad.handler.monitorpage;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Message;
 import org.jraf.irondad.util.Log;
@@ -48,9 +45,8 @@ public class MonitorPageHandler extends BaseHandler {
 
     @Override
     public void init(HandlerContext handlerContext) throws Exception {
-        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
-        scheduledExecutorService.scheduleAtFixedRate(new CheckForPageChangesRunnable(handlerContext), 3, 3, TimeUnit.MINUTES);
-//        scheduledExecutorService.scheduleAtFixedRate(new CheckForPageChangesRunnable(handlerContext), 0, 15, TimeUnit.SECONDS);
+        handlerContext.getScheduler().scheduleAtFixedRate(new CheckForPageChangesRunnable(handlerContext), 3, 3, TimeUnit.MINUTES);
+//        handlerContext.getScheduler().scheduleAtFixedRate(new CheckForPageChangesRunnable(handlerContext), 0, 15, TimeUnit.SECONDS);
     }
 
     @Override
@@ -78,7 +74,7 @@ public class MonitorPageHandler extends BaseHandler {
                     if (Config.LOGD) Log.d(TAG, "run pageUri=" + pageUri);
 
                     // Blocking
-                    String pageContents = HttpRequest.get(pageUri).body();
+                    String pageContents = HttpService.getDefault().getBody(pageUri);
 
                     // Extract content
                     pageContents = pageContents.substring(pageContents.indexOf(page.contentStart));
@@ -27,27 +27,26 @@ package org.jraf.irondad.handler.opengraph;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
-
-import com.github.kevinsawicki.http.HttpRequest;
-import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
-
+import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
-import org.jraf.irondad.handler.BaseHandler;
+import org.jraf.irondad.handler.HandlerConfig;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.PatternHandler;
+import org.jraf.irondad.http.HttpService;
+import org.jraf.irondad.http.HttpService.Response;
+import org.jraf.irondad.http.UrlNormalizer;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
 import org.jraf.irondad.util.Log;
 
-public class OpengraphHandler extends BaseHandler {
+public class OpengraphHandler extends PatternHandler {
     private static final String TAG = Constants.TAG + OpengraphHandler.class.getSimpleName();
 
     /**
@@ -118,12 +117,63 @@ public class OpengraphHandler extends BaseHandler {
 
 
     private static final int MAX_URL = 3;
+    private static final int HEAD_SIZE_MAX = 256 * 1024;
+
+    /**
+     * Shared by all the channels using the same db (or no db), since the same links get pasted in several channels.
+     */
+    private final ConcurrentMap<String, PreviewCache> mPreviewCaches = new ConcurrentHashMap<String, PreviewCache>();
+
+    @Override
+    protected Pattern getPattern() {
+        return WEB_URL;
+    }
+
+    @Override
+    public void init(HandlerContext handlerContext) throws Exception {
+        // Open the db now rather than on the first link
+        getPreviewCache(handlerContext);
+    }
+
+    /**
+     * @return The preview cache for the db given in the config of the given context. The ttls of the first config using a given db are used.
+     */
+    private PreviewCache getPreviewCache(HandlerContext handlerContext) {
+        HandlerConfig handlerConfig = handlerContext.getHandlerConfig();
+        // Having a config is optional
+        OpengraphHandlerConfig config = handlerConfig instanceof OpengraphHandlerConfig ? (OpengraphHandlerConfig) handlerConfig
+                : new OpengraphHandlerConfig();
+        String dbPath = config.getDbPath();
+        String key = dbPath == null ? "" : dbPath;
+        PreviewCache res = mPreviewCaches.get(key);
+        if (res == null) {
+            synchronized (mPreviewCaches) {
+                res = mPreviewCaches.get(key);
+                if (res == null) {
+                    res = new PreviewCache(dbPath, config.getTtl(), config.getNegativeTtl());
+                    mPreviewCaches.put(key, res);
+                }
+            }
+        }
+        return res;
+    }
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    /**
+     * @return Hits, misses and hit rate of the preview caches.
+     */
+    public String getPreviewCacheStats() {
+        return mPreviewCaches.values().toString();
+    }
 
     @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        return WEB_URL.matcher(text).find();
+    public void shutdown() {
+        Log.i(TAG, "shutdown " + getPreviewCacheStats());
+        synchronized (mPreviewCaches) {
+            for (PreviewCache previewCache : mPreviewCaches.values()) {
+                previewCache.close();
+            }
+            mPreviewCaches.clear();
+        }
     }
 
     @Override
@@ -138,45 +188,81 @@ public class OpengraphHandler extends BaseHandler {
             }
             final String url = text.substring(matcher.start(), matcher.end());
             Log.i(TAG, url);
+            final String normalizedUrl;
+            try {
+                normalizedUrl = UrlNormalizer.normalize(url).toString();
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "handleMessage Invalid url " + url, e);
+                continue;
+            }
+
+            final PreviewCache previewCache = getPreviewCache(handlerContext);
+            PreviewCache.Entry entry = previewCache.get(normalizedUrl);
+            if (entry != null) {
+                if (Config.LOGD) Log.d(TAG, "handleMessage " + normalizedUrl + " from cache, " + previewCache);
+                // No preview means this url recently could not be previewed: don't try again yet
+                if (entry.preview != null) sendPreview(connection, channel, entry.preview);
+                continue;
+            }
+
+            if (Config.LOGD) Log.d(TAG, "handleMessage Fetching " + normalizedUrl + ", " + previewCache);
 
-            mThreadPool.submit(new Runnable() {
+            // The urls are fetched concurrently, and each preview is sent as soon as it's ready
+            // Only the <head> is downloaded, and nothing at all if it's not a html page
+            HttpService.getDefault().getHtmlHeadAsync(normalizedUrl, HEAD_SIZE_MAX).whenComplete(new BiConsumer<Response, Throwable>() {
                 @Override
-                public void run() {
-                    try {
-                        String html = HttpRequest.get(url).body();
-
-                        Document doc = Jsoup.parse(html, url);
-                        StringBuilder sb = new StringBuilder();
-                        Elements metaOgTitle = doc.select("meta[property=og:title]");
-                        if (!metaOgTitle.isEmpty()) {
-                            sb.append(metaOgTitle.attr("content"));
-                        } else {
-                            sb.append(doc.title());
-                        }
-
-                        Elements metaOgDescription = doc.select("meta[property=og:description]");
-                        if (!metaOgDescription.isEmpty()) {
-                            sb.append(" - ").append(metaOgDescription.attr("content"));
-                        }
-
-                        String imageUrl = null;
-                        Elements metaOgImage = doc.select("meta[property=og:image]");
-                        if (!metaOgImage.isEmpty()) {
-                            imageUrl = metaOgImage.attr("content");
-                        }
-
-                        if (imageUrl != null && !imageUrl.isEmpty()) {
-                            sb.append(" - ").append(imageUrl);
-                        }
-
-                        connection.send(Command.PRIVMSG, channel, sb.toString().replace("\n", "").replace("\r", ""));
-                    } catch (HttpRequestException e) {
-                        Log.w(TAG, "handleMessage Could not get " + url, e);
-                    } catch (IOException e) {
-                        Log.e(TAG, "handleMessage Could not send to connection", e);
+                public void accept(Response response, Throwable t) {
+                    if (t != null) {
+                        Log.w(TAG, "handleMessage Could not get " + url, t);
+                        previewCache.putFailure(normalizedUrl);
+                        return;
+                    }
+                    if (!response.isSuccessful()) {
+                        Log.w(TAG, "handleMessage Could not get " + url + ": " + response.statusCode);
+                        previewCache.putFailure(normalizedUrl);
+                        return;
                     }
+                    if (response.body == null) {
+                        Log.i(TAG, "handleMessage Not previewing " + url + ": " + response.headers.firstValue("Content-Type").orElse(""));
+                        previewCache.putFailure(normalizedUrl);
+                        return;
+                    }
+                    String preview = getPreview(response.body);
+                    previewCache.putPreview(normalizedUrl, preview);
+                    sendPreview(connection, channel, preview);
                 }
             });
         }
     }
+
+    private static void sendPreview(Connection connection, String channel, String preview) {
+        try {
+            connection.send(Command.PRIVMSG, channel, preview);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
+    }
+
+    private static String getPreview(String html) {
+        OpengraphParser.Result result = OpengraphParser.parse(html);
+        StringBuilder sb = new StringBuilder();
+        String title = result.properties.get("og:title");
+        if (title != null) {
+            sb.append(title);
+        } else if (result.title != null) {
+            sb.append(result.title);
+        }
+
+        String description = result.properties.get("og:description");
+        if (description != null) {
+            sb.append(" - ").append(description);
+        }
+
+        String imageUrl = result.properties.get("og:image");
+        if (imageUrl != null && !imageUrl.isEmpty()) {
+            sb.append(" - ").append(imageUrl);
+        }
+
+        return sb.toString().replace("\n", "").replace("\r", "");
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler.opengraph;
+
+import org.jraf.irondad.handler.HandlerConfig;
+
+public class OpengraphHandlerConfig extends HandlerConfig {
+    private static final String DB_PATH = "DB_PATH";
+    private static final String TTL = "TTL";
+    private static final String NEGATIVE_TTL = "NEGATIVE_TTL";
+
+    private static final long DEFAULT_TTL = 6 * 60 * 60 * 1000;
+    private static final long DEFAULT_NEGATIVE_TTL = 10 * 60 * 1000;
+
+    /**
+     * @return Path of the SQLite db where previews are kept across restarts, or {@code null} to only keep them in memory.
+     */
+    public String getDbPath() {
+        return optString(DB_PATH, null);
+    }
+
+    public void setDbPath(String dbPath) {
+        put(DB_PATH, dbPath);
+    }
+
+    /**
+     * @return How long a preview is reused before the page is fetched again, in ms.
+     */
+    public long getTtl() {
+        return optLong(TTL, DEFAULT_TTL);
+    }
+
+    public void setTtl(long ttl) {
+        put(TTL, ttl);
+    }
+
+    /**
+     * @return How long a url that could not be previewed (error, not html...) is not fetched again, in ms.
+     */
+    public long getNegativeTtl() {
+        return optLong(NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        put(NEGATIVE_TTL, negativeTtl);
+    }
+}
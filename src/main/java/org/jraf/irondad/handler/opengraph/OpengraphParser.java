@@ -0,0 +1,188 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler.opengraph;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.jsoup.parser.Parser;
+
+/**
+ * Extracts the title and the {@code og:*} properties of an html page.<br/>
+ * Rather than building a whole document, the tags are scanned one by one, and the scan stops at the end of the {@code <head>} (or at the start of
+ * the {@code <body>}), so this works on a truncated page and doesn't allocate much more than the results.
+ */
+class OpengraphParser {
+    private static final String OPENGRAPH_PREFIX = "og:";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    static class Result {
+        /**
+         * Content of the {@code <title>} tag, or {@code null}.
+         */
+        String title;
+
+        /**
+         * {@code og:*} properties, keyed by their name including the {@code og:} prefix. When a property is repeated, only the first one is kept.
+         */
+        final Map<String, String> properties = new HashMap<String, String>();
+    }
+
+    private OpengraphParser() {}
+
+    static Result parse(String html) {
+        Result res = new Result();
+        int length = html.length();
+        int i = 0;
+        while (i < length) {
+            int tagStart = html.indexOf('<', i);
+            if (tagStart == -1) break;
+            if (html.startsWith("<!--", tagStart)) {
+                int commentEnd = html.indexOf("-->", tagStart + 4);
+                if (commentEnd == -1) break;
+                i = commentEnd + 3;
+                continue;
+            }
+
+            // Tag name
+            int nameStart = tagStart + 1;
+            boolean closing = nameStart < length && html.charAt(nameStart) == '/';
+            if (closing) nameStart++;
+            int nameEnd = nameStart;
+            while (nameEnd < length && Character.isLetterOrDigit(html.charAt(nameEnd))) nameEnd++;
+            if (nameEnd == nameStart) {
+                // Not a tag (<!DOCTYPE, <?xml, a lone '<'...)
+                i = tagStart + 1;
+                continue;
+            }
+            String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+            int tagEnd = findTagEnd(html, nameEnd);
+            if (tagEnd == -1) break;
+
+            if (closing) {
+                if (name.equals("head")) break;
+                i = tagEnd + 1;
+                continue;
+            }
+            switch (name) {
+                case "body":
+                    return res;
+
+                case "meta":
+                    Map<String, String> attributes = parseAttributes(html, nameEnd, tagEnd);
+                    String property = attributes.get("property");
+                    // Some sites wrongly use name instead of property
+                    if (property == null) property = attributes.get("name");
+                    String content = attributes.get("content");
+                    if (property != null && content != null) {
+                        property = property.toLowerCase(Locale.ROOT);
+                        if (property.startsWith(OPENGRAPH_PREFIX) && !res.properties.containsKey(property)) res.properties.put(property, content);
+                    }
+                    break;
+
+                case "title":
+                case "script":
+                case "style":
+                    // Their contents are text, not tags
+                    int contentEnd = indexOfIgnoreCase(html, "</" + name, tagEnd + 1);
+                    if (contentEnd == -1) return res;
+                    if (name.equals("title") && res.title == null) {
+                        res.title = WHITESPACE.matcher(Parser.unescapeEntities(html.substring(tagEnd + 1, contentEnd), false)).replaceAll(" ").trim();
+                    }
+                    i = contentEnd;
+                    continue;
+            }
+            i = tagEnd + 1;
+        }
+        return res;
+    }
+
+    /**
+     * @return The index of the {@code >} ending the tag, ignoring the ones in quoted attribute values, or {@code -1}.
+     */
+    private static int findTagEnd(String html, int from) {
+        char quote = 0;
+        for (int i = from; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        // Unbalanced quotes: fall back to the first '>'
+        return quote != 0 ? html.indexOf('>', from) : -1;
+    }
+
+    /**
+     * Parse the attributes of a tag, between its name and its closing {@code >}.<br/>
+     * Names are lowercased, and entities in values are unescaped.
+     */
+    private static Map<String, String> parseAttributes(String html, int from, int to) {
+        Map<String, String> res = new HashMap<String, String>();
+        int i = from;
+        while (i < to) {
+            char c = html.charAt(i);
+            if (Character.isWhitespace(c) || c == '/') {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < to && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '=' && html.charAt(i) != '/') i++;
+            String name = html.substring(nameStart, i).toLowerCase(Locale.ROOT);
+            while (i < to && Character.isWhitespace(html.charAt(i))) i++;
+            String value = "";
+            if (i < to && html.charAt(i) == '=') {
+                i++;
+                while (i < to && Character.isWhitespace(html.charAt(i))) i++;
+                if (i < to && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+                    char quote = html.charAt(i);
+                    int valueEnd = html.indexOf(quote, i + 1);
+                    if (valueEnd == -1 || valueEnd > to) valueEnd = to;
+                    value = html.substring(i + 1, valueEnd);
+                    i = valueEnd + 1;
+                } else {
+                    int valueStart = i;
+                    while (i < to && !Character.isWhitespace(html.charAt(i))) i++;
+                    value = html.substring(valueStart, i);
+                }
+            }
+            if (!res.containsKey(name)) res.put(name, Parser.unescapeEntities(value, true));
+        }
+        return res;
+    }
+
+    private static int indexOfIgnoreCase(String s, String searched, int from) {
+        for (int i = from; i <= s.length() - searched.length(); i++) {
+            if (s.regionMatches(true, i, searched, 0, searched.length())) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler.opengraph;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.util.Log;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Rendered preview lines, keyed by normalized url.<br/>
+ * <ul>
+ * <li>Previews are kept in memory, in an LRU cache bounded by count, for a configurable ttl.</li>
+ * <li>Urls that could not be previewed are remembered too (negative caching), for a shorter ttl, so they are not fetched again each time.</li>
+ * <li>Optionally, previews (but not failures) are also stored in a SQLite db, so they survive restarts. They are written on a dedicated thread,
+ * so callers (typically the http completion callbacks) never wait for the disk.</li>
+ * </ul>
+ * Thread safe.
+ */
+class PreviewCache {
+    private static final String TAG = Constants.TAG + PreviewCache.class.getSimpleName();
+
+    private static final int PREVIEW_COUNT_MAX = 4096;
+    private static final long CLOSE_TIMEOUT = 5; // s
+
+    //@formatter:off
+    private static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS preview (" +
+            "url TEXT PRIMARY KEY, " +
+            "preview TEXT NOT NULL, " +
+            "expires_at INTEGER NOT NULL " +
+            ")";
+
+    private static final String SQL_SET_JOURNAL_MODE = "PRAGMA journal_mode=WAL";
+
+    private static final String SQL_SET_SYNCHRONOUS = "PRAGMA synchronous=NORMAL";
+
+    private static final String SQL_DELETE_EXPIRED = "DELETE FROM preview WHERE expires_at<?";
+
+    private static final String SQL_SELECT = "SELECT " +
+            "preview, expires_at" +
+            " FROM " +
+            "preview" +
+            " WHERE " +
+            "url=?";
+
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO preview (url, preview, expires_at) VALUES (?, ?, ?)";
+    //@formatter:on
+
+    static class Entry {
+        /**
+         * {@code null} if the url could not be previewed.
+         */
+        final String preview;
+        final long expiresAt;
+
+        Entry(String preview, long expiresAt) {
+            this.preview = preview;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Cache<String, Entry> mMemoryCache = CacheBuilder.newBuilder().maximumSize(PREVIEW_COUNT_MAX).build();
+    private final long mTtl;
+    private final long mNegativeTtl;
+    private final String mDbPath;
+
+    private final Object mDbLock = new Object();
+    // Only used with mDbLock held (volatile for toString)
+    private volatile Connection mConnection;
+    private PreparedStatement mSelectStatement;
+    private PreparedStatement mInsertStatement;
+
+    /**
+     * Writes to the db, in order. {@code null} if there is no db.
+     */
+    private final ExecutorService mDbWriteExecutor;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mNegativeHitCount = new AtomicLong();
+    private final AtomicLong mDbHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param dbPath Path of the SQLite db, or {@code null} to only keep the previews in memory. If the db can't be opened, the previews are only
+     *            kept in memory.
+     */
+    PreviewCache(String dbPath, long ttl, long negativeTtl) {
+        mTtl = ttl;
+        mNegativeTtl = negativeTtl;
+        mDbPath = dbPath;
+        if (dbPath != null) openDb(dbPath);
+        if (mConnection == null) {
+            mDbWriteExecutor = null;
+        } else {
+            mDbWriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, "irondad-preview-db");
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+        }
+    }
+
+    private void openDb(String dbPath) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "openDb Could not initialize jdbc driver", e);
+        }
+        synchronized (mDbLock) {
+            try {
+                mConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+                Statement statement = mConnection.createStatement();
+                try {
+                    statement.execute(SQL_SET_JOURNAL_MODE);
+                    statement.execute(SQL_SET_SYNCHRONOUS);
+                    statement.execute(SQL_CREATE_TABLE);
+                } finally {
+                    statement.close();
+                }
+                PreparedStatement deleteStatement = mConnection.prepareStatement(SQL_DELETE_EXPIRED);
+                try {
+                    deleteStatement.setLong(1, System.currentTimeMillis());
+                    int count = deleteStatement.executeUpdate();
+                    if (Config.LOGD) Log.d(TAG, "openDb Deleted " + count + " expired previews");
+                } finally {
+                    deleteStatement.close();
+                }
+                mSelectStatement = mConnection.prepareStatement(SQL_SELECT);
+                mInsertStatement = mConnection.prepareStatement(SQL_INSERT);
+            } catch (SQLException e) {
+                Log.e(TAG, "openDb Could not open " + dbPath + ", only keeping previews in memory", e);
+                closeDb();
+            }
+        }
+    }
+
+    /**
+     * @return The entry for the given url if it hasn't expired, or {@code null}.
+     */
+    Entry get(String url) {
+        long now = System.currentTimeMillis();
+        Entry res = mMemoryCache.getIfPresent(url);
+        if (res != null && now >= res.expiresAt) {
+            mMemoryCache.invalidate(url);
+            res = null;
+        }
+        if (res == null) {
+            res = getFromDb(url, now);
+            if (res != null) {
+                mDbHitCount.incrementAndGet();
+                mMemoryCache.put(url, res);
+            }
+        }
+        if (res == null) {
+            mMissCount.incrementAndGet();
+        } else if (res.preview == null) {
+            mNegativeHitCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+        }
+        return res;
+    }
+
+    void putPreview(final String url, String preview) {
+        final Entry entry = new Entry(preview, System.currentTimeMillis() + mTtl);
+        mMemoryCache.put(url, entry);
+        if (mDbWriteExecutor == null) return;
+        try {
+            mDbWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    putInDb(url, entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed: only keep it in memory
+            if (Config.LOGD) Log.d(TAG, "putPreview Closed, not writing " + url);
+        }
+    }
+
+    void putFailure(String url) {
+        mMemoryCache.put(url, new Entry(null, System.currentTimeMillis() + mNegativeTtl));
+    }
+
+    private Entry getFromDb(String url, long now) {
+        synchronized (mDbLock) {
+            if (mConnection == null) return null;
+            try {
+                mSelectStatement.setString(1, url);
+                ResultSet resultSet = mSelectStatement.executeQuery();
+                try {
+                    if (!resultSet.next()) return null;
+                    long expiresAt = resultSet.getLong(2);
+                    if (now >= expiresAt) return null;
+                    return new Entry(resultSet.getString(1), expiresAt);
+                } finally {
+                    resultSet.close();
+                }
+            } catch (SQLException e) {
+                Log.w(TAG, "getFromDb Could not get " + url, e);
+                return null;
+            }
+        }
+    }
+
+    private void putInDb(String url, Entry entry) {
+        synchronized (mDbLock) {
+            if (mConnection == null) return;
+            try {
+                mInsertStatement.setString(1, url);
+                mInsertStatement.setString(2, entry.preview);
+                mInsertStatement.setLong(3, entry.expiresAt);
+                mInsertStatement.executeUpdate();
+            } catch (SQLException e) {
+                Log.w(TAG, "putInDb Could not insert " + url, e);
+            }
+        }
+    }
+
+    /**
+     * Write the pending previews, then close the db. Previews are only kept in memory afterwards.
+     */
+    void close() {
+        if (mDbWriteExecutor != null) {
+            mDbWriteExecutor.shutdown();
+            try {
+                if (!mDbWriteExecutor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) Log.w(TAG, "close Timed out writing the pending previews");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (mDbLock) {
+            closeDb();
+        }
+    }
+
+    private void closeDb() {
+        if (mConnection == null) return;
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            Log.w(TAG, "closeDb Could not close db", e);
+        }
+        mConnection = null;
+        mSelectStatement = null;
+        mInsertStatement = null;
+    }
+
+    /**
+     * @return The proportion of lookups that didn't need a fetch (previews and failures), between 0 and 1.
+     */
+    double getHitRate() {
+        long hitCount = mHitCount.get() + mNegativeHitCount.get();
+        long total = hitCount + mMissCount.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "PreviewCache{hits=%d, negativeHits=%d, dbHits=%d, misses=%d, hitRate=%.2f, size=%d, db=%s}",
+                mHitCount.get(), mNegativeHitCount.get(), mDbHitCount.get(), mMissCount.get(), getHitRate(), mMemoryCache.size(),
+                mConnection == null ? "none" : mDbPath);
+    }
+}
@@ -44,6 +44,7 @@ import org.jraf.irondad.util.Log;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -61,15 +62,21 @@ public class PixGameHandler extends CommandHandler {
     private static final int GUESSES_THIRD_HINT = 29;
     private static final int GUESSES_MAX = 30;
     private static final String URL_HIDE = "http://lubek.b.free.fr/a.html?a=";
+    private static final String NO_GAME = ": No game is currently ongoing.  Privmsg me \"!pix <search terms>\" or \"!pix random\" to start one.";
 
     /*
      * TODO: all these fields should be stored in the HandlerContext
+     * Until then, access to them is synchronized on mGameLock, since channels and privmsgs are handled concurrently.
+     * The Google queries are made outside of the lock, so that a slow search does not hold up the other channels.
      */
+    private final Object mGameLock = new Object();
     private String mSearchTerms;
     private String mGameCreatedBy;
     private int mGuessCount;
     private long mSearchResultCount;
     private List<Result> mSearchResults;
+    private boolean mGameStarting;
+    private int mGameGeneration;
 
     @Override
     protected String getCommand() {
@@ -83,10 +90,6 @@ public class PixGameHandler extends CommandHandler {
             connection.send(Command.PRIVMSG, fromNickname, "Syntax: \"!pix <search terms>\" or \"!pix random\" to use a random word.");
             return;
         }
-        if (isGameOngoing()) {
-            connection.send(Command.PRIVMSG, fromNickname, "A game is already ongoing (started by " + mGameCreatedBy + ").");
-            return;
-        }
         String searchTerms = text.trim().substring(getCommand().length() + 1).trim();
         newGame(connection, fromNickname, searchTerms, handlerContext);
     }
@@ -94,17 +97,20 @@ public class PixGameHandler extends CommandHandler {
     @Override
     protected void handleChannelMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
-        if (!isGameOngoing()) {
-            connection.send(Command.PRIVMSG, channel, fromNickname
-                    + ": No game is currently ongoing.  Privmsg me \"!pix <search terms>\" or \"!pix random\" to start one.");
-            return;
-        }
         if (text.trim().equals(getCommand())) {
-            // Give current status
-            connection.send(Command.PRIVMSG, channel, "Ongoing game started by " + mGameCreatedBy + " (" + mGuessCount
-                    + " guesses).  Guess the search terms with \"!pix <your guess>\".");
-            // Show the current link
-            connection.send(Command.PRIVMSG, channel, hideUrl(mSearchResults.get(mGuessCount % RESULT_SIZE).getLink()));
+            List<String> replies = new ArrayList<String>(2);
+            synchronized (mGameLock) {
+                if (!isGameOngoing()) {
+                    replies.add(fromNickname + NO_GAME);
+                } else {
+                    // Give current status
+                    replies.add("Ongoing game started by " + mGameCreatedBy + " (" + mGuessCount
+                            + " guesses).  Guess the search terms with \"!pix <your guess>\".");
+                    // Show the current link
+                    replies.add(hideUrl(mSearchResults.get(mGuessCount % RESULT_SIZE).getLink()));
+                }
+            }
+            send(connection, channel, replies);
         } else {
             // Guess the word
             String guess = text.trim().substring(getCommand().length() + 1).trim();
@@ -113,37 +119,74 @@ public class PixGameHandler extends CommandHandler {
     }
 
     private void newGame(Connection connection, String fromNickname, String searchTerms, HandlerContext handlerContext) throws IOException {
-        boolean isRandom = RANDOM.equalsIgnoreCase(searchTerms);
-        if (isRandom) {
-            searchTerms = getRandomWord(handlerContext);
-        } else if (!StringUtils.isAlphanumericSpace(searchTerms)) {
-            connection.send(Command.PRIVMSG, fromNickname, "No punctuation allowed in the search terms.  Try another one.");
-            return;
-        }
-        try {
-            mSearchResultCount = queryGoogle(handlerContext, connection, searchTerms);
-        } catch (IOException e) {
-            Log.w(TAG, "newGame Could not query Google", e);
-            connection.send(Command.PRIVMSG, fromNickname, "Oops something went wrong...");
-            return;
+        String ongoingGameCreatedBy = null;
+        synchronized (mGameLock) {
+            if (isGameOngoing() || mGameStarting) {
+                ongoingGameCreatedBy = mGameCreatedBy;
+            } else {
+                // Reserve the game while we query Google, so that a concurrent privmsg cannot start another one
+                mGameStarting = true;
+                mGameCreatedBy = fromNickname;
+            }
         }
-        if (mSearchResultCount == 0) {
-            connection.send(Command.PRIVMSG, fromNickname, "This search has no results!  Try another one.");
-            resetGame();
+        if (ongoingGameCreatedBy != null) {
+            connection.send(Command.PRIVMSG, fromNickname, "A game is already ongoing (started by " + ongoingGameCreatedBy + ").");
             return;
         }
-        mSearchTerms = searchTerms;
-        mGameCreatedBy = fromNickname;
 
-        if (isRandom) {
-            connection.send(Command.PRIVMSG, fromNickname, "New game started with a random word search.");
-        } else {
-            connection.send(Command.PRIVMSG, fromNickname, "New game started with the search \"" + searchTerms + "\".");
+        boolean started = false;
+        try {
+            boolean isRandom = RANDOM.equalsIgnoreCase(searchTerms);
+            if (isRandom) {
+                searchTerms = getRandomWord(handlerContext);
+            } else if (!StringUtils.isAlphanumericSpace(searchTerms)) {
+                connection.send(Command.PRIVMSG, fromNickname, "No punctuation allowed in the search terms.  Try another one.");
+                return;
+            }
+            Search search;
+            try {
+                search = queryGoogle(handlerContext, searchTerms, 1);
+            } catch (IOException e) {
+                Log.w(TAG, "newGame Could not query Google", e);
+                connection.send(Command.PRIVMSG, fromNickname, "Oops something went wrong...");
+                return;
+            }
+            long searchResultCount = Long.parseLong(search.getSearchInformation().getTotalResults());
+            if (searchResultCount == 0) {
+                connection.send(Command.PRIVMSG, fromNickname, "This search has no results!  Try another one.");
+                return;
+            }
+            synchronized (mGameLock) {
+                mSearchTerms = searchTerms;
+                mGuessCount = 0;
+                mSearchResultCount = searchResultCount;
+                mSearchResults = search.getItems();
+                mGameGeneration++;
+                mGameStarting = false;
+            }
+            started = true;
+
+            if (isRandom) {
+                connection.send(Command.PRIVMSG, fromNickname, "New game started with a random word search.");
+            } else {
+                connection.send(Command.PRIVMSG, fromNickname, "New game started with the search \"" + searchTerms + "\".");
+            }
+        } finally {
+            if (!started) {
+                synchronized (mGameLock) {
+                    mGameStarting = false;
+                    mGameCreatedBy = null;
+                }
+            }
         }
     }
 
-    private long queryGoogle(HandlerContext handlerContext, Connection connection, String searchTerms) throws IOException {
-        if (Config.LOGD) Log.d(TAG, "queryGoogle searchTerms=" + searchTerms);
+    /**
+     * Query Google.<br/>
+     * This does not touch the game state, and must not be called while holding {@code mGameLock}.
+     */
+    private Search queryGoogle(HandlerContext handlerContext, String searchTerms, long start) throws IOException {
+        if (Config.LOGD) Log.d(TAG, "queryGoogle searchTerms=" + searchTerms + " start=" + start);
         Customsearch customsearch = getCustomsearch(handlerContext);
         Customsearch.Cse.List list = customsearch.cse().list().setExactTerms("\"" + searchTerms + "\"");
         String cx = ((PixGameHandlerConfig) handlerContext.getHandlerConfig()).getCx();
@@ -151,14 +194,10 @@ public class PixGameHandler extends CommandHandler {
         list.setSearchType("image");
         list.setFields("items/link,searchInformation/totalResults");
         list.setNum(RESULT_SIZE);
-        list.setStart((long) mGuessCount + 1);
+        list.setStart(start);
 
         // Execute the query
-        Search search = list.execute();
-
-        mSearchResults = search.getItems();
-
-        return Long.parseLong(search.getSearchInformation().getTotalResults());
+        return list.execute();
     }
 
     private Customsearch getCustomsearch(HandlerContext handlerContext) {
@@ -181,53 +220,92 @@ public class PixGameHandler extends CommandHandler {
     }
 
     private void guess(Connection connection, HandlerContext handlerContext, String channel, String fromNickname, String guess) throws IOException {
-        mGuessCount++;
-        if (!StringUtils.stripAccents(mSearchTerms.toLowerCase(Locale.FRANCE)).equals(StringUtils.stripAccents(guess.toLowerCase(Locale.FRANCE)))) {
-            // Lost
-            connection.send(Command.PRIVMSG, channel, fromNickname + ": WRONG.");
-
-            if (mGuessCount >= mSearchResultCount) {
-                connection.send(Command.PRIVMSG, channel, "Well there are no more results.  You lose, after " + mGuessCount
-                        + " guesses!  The secret search was \"" + mSearchTerms + "\"...  FAIL.");
-                resetGame();
-                return;
-            }
-
-            switch (mGuessCount) {
-                case GUESSES_FIRST_HINT:
-                    int nbWords = mSearchTerms.split("\\s+").length;
-                    connection.send(Command.PRIVMSG, channel, "Ok since you guys suck, here's an hint: the search has " + nbWords + " word"
-                            + (nbWords == 1 ? "." : "s."));
-                    break;
-
-                case GUESSES_SECOND_HINT:
-                    connection.send(Command.PRIVMSG, channel, "Ok since you guys suck, here's another hint: the search looks like this: \"" + getSecondHint()
-                            + "\".");
-                    break;
-
-                case GUESSES_THIRD_HINT:
-                    connection.send(Command.PRIVMSG, channel, "Ok I'll give you one last hint: the search looks like this: \"" + getThirdHint() + "\".");
-                    break;
-
-                case GUESSES_MAX:
-                    connection.send(Command.PRIVMSG, channel, "Ok you guys suck too much.  You lose, after " + mGuessCount
-                            + " guesses!  The secret search was \"" + mSearchTerms + "\"...  FAIL.");
+        List<String> replies = new ArrayList<String>(2);
+        String searchTerms = null;
+        int guessCount = 0;
+        int gameGeneration = 0;
+        synchronized (mGameLock) {
+            if (!isGameOngoing()) {
+                replies.add(fromNickname + NO_GAME);
+            } else {
+                mGuessCount++;
+                String normalizedSearchTerms = StringUtils.stripAccents(mSearchTerms.toLowerCase(Locale.FRANCE));
+                if (!normalizedSearchTerms.equals(StringUtils.stripAccents(guess.toLowerCase(Locale.FRANCE)))) {
+                    // Lost
+                    replies.add(fromNickname + ": WRONG.");
+                    if (addHintOrEndGame(replies)) {
+                        if (mGuessCount % RESULT_SIZE == 0) {
+                            // A new results page is needed: fetch it below, outside of the lock
+                            searchTerms = mSearchTerms;
+                            guessCount = mGuessCount;
+                            gameGeneration = mGameGeneration;
+                        } else {
+                            replies.add(hideUrl(mSearchResults.get(mGuessCount % RESULT_SIZE).getLink()));
+                        }
+                    }
+                } else {
+                    // Won
+                    replies.add(fromNickname + ": YES!  The secret search was \"" + mSearchTerms + "\".  It was found in " + mGuessCount
+                            + " guesses.  Congrats!");
                     resetGame();
-                    return;
-
+                }
             }
+        }
 
-            if (mGuessCount % RESULT_SIZE == 0) {
-                // Fetch a new results page
-                queryGoogle(handlerContext, connection, mSearchTerms);
+        if (searchTerms != null) {
+            // Fetch a new results page
+            Search search = queryGoogle(handlerContext, searchTerms, guessCount + 1);
+            synchronized (mGameLock) {
+                // Ignore the page if the game ended while we were querying
+                if (gameGeneration == mGameGeneration) {
+                    mSearchResults = search.getItems();
+                    replies.add(hideUrl(mSearchResults.get(guessCount % RESULT_SIZE).getLink()));
+                }
             }
+        }
+        send(connection, channel, replies);
+    }
 
-            connection.send(Command.PRIVMSG, channel, hideUrl(mSearchResults.get(mGuessCount % RESULT_SIZE).getLink()));
-        } else {
-            // Won
-            connection.send(Command.PRIVMSG, channel, fromNickname + ": YES!  The secret search was \"" + mSearchTerms + "\".  It was found in " + mGuessCount
-                    + " guesses.  Congrats!");
+    /**
+     * Add the hint for the current guess count to {@code replies}, or end the game if there are no guesses left.<br/>
+     * Must be called while holding {@code mGameLock}.
+     *
+     * @return {@code true} if the game goes on, {@code false} if it ended.
+     */
+    private boolean addHintOrEndGame(List<String> replies) {
+        if (mGuessCount >= mSearchResultCount) {
+            replies.add("Well there are no more results.  You lose, after " + mGuessCount + " guesses!  The secret search was \"" + mSearchTerms
+                    + "\"...  FAIL.");
             resetGame();
+            return false;
+        }
+
+        switch (mGuessCount) {
+            case GUESSES_FIRST_HINT:
+                int nbWords = mSearchTerms.split("\\s+").length;
+                replies.add("Ok since you guys suck, here's an hint: the search has " + nbWords + " word" + (nbWords == 1 ? "." : "s."));
+                break;
+
+            case GUESSES_SECOND_HINT:
+                replies.add("Ok since you guys suck, here's another hint: the search looks like this: \"" + getSecondHint() + "\".");
+                break;
+
+            case GUESSES_THIRD_HINT:
+                replies.add("Ok I'll give you one last hint: the search looks like this: \"" + getThirdHint() + "\".");
+                break;
+
+            case GUESSES_MAX:
+                replies.add("Ok you guys suck too much.  You lose, after " + mGuessCount + " guesses!  The secret search was \"" + mSearchTerms
+                        + "\"...  FAIL.");
+                resetGame();
+                return false;
+        }
+        return true;
+    }
+
+    private static void send(Connection connection, String channel, List<String> replies) throws IOException {
+        for (String reply : replies) {
+            connection.send(Command.PRIVMSG, channel, reply);
         }
     }
 
@@ -271,6 +349,7 @@ public class PixGameHandler extends CommandHandler {
         mGameCreatedBy = null;
         mGuessCount = 0;
         mSearchResults = null;
+        mGameGeneration++;
     }
 
     private static String hideUrl(String url) {
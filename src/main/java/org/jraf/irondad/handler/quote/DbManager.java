@@ -26,6 +26,7 @@
 package org.jraf.irondad.handler.quote;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -33,15 +34,38 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.util.Log;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * The quotes stored in a SQLite db file.<br/>
+ * There is only one instance per file (see {@link #get(String)}), with a single connection to write, and a small pool of read only connections so
+ * that reads can happen concurrently. Writes are batched on a background thread, see {@link #insertAsync(String, String, String)}. Thread safe.
+ */
 public class DbManager {
     private static final Random RANDOM = new Random();
 
@@ -56,61 +80,227 @@ public class DbManager {
             "_text TEXT NOT NULL " +
             ")";
     
-    private static final String SQL_INSERT = "INSERT INTO quote " +
+    private static final String SQL_SET_JOURNAL_MODE = "PRAGMA journal_mode=WAL";
+
+    private static final String SQL_SET_SYNCHRONOUS = "PRAGMA synchronous=NORMAL";
+
+    private static final String SQL_GET_VERSION = "PRAGMA user_version";
+
+    private static final String SQL_SET_VERSION = "PRAGMA user_version=";
+
+    // Keep the oldest of the quotes that were added twice, before the unique index can be created
+    private static final String SQL_DELETE_DUPLICATES = "DELETE " +
+            " FROM " +
+            "quote" +
+            " WHERE " +
+            "_id NOT IN (SELECT min(_id) FROM quote GROUP BY channel, _text)";
+
+    // Also used for the queries by channel only
+    private static final String SQL_CREATE_INDEX_CHANNEL_TEXT = "CREATE UNIQUE INDEX IF NOT EXISTS quote_channel_text ON quote (channel, _text)";
+
+    private static final String SQL_CREATE_INDEX_CHANNEL_DATE = "CREATE INDEX IF NOT EXISTS quote_channel_date ON quote (channel, _date)";
+
+    // Statistics, kept up to date by triggers so they never need to scan the quote table
+    private static final String SQL_CREATE_STATS_CHANNEL = "CREATE TABLE quote_stats_channel (" +
+            "channel TEXT PRIMARY KEY, " +
+            "quote_count INTEGER NOT NULL" +
+            ")";
+
+    private static final String SQL_CREATE_STATS_NICKNAME = "CREATE TABLE quote_stats_nickname (" +
+            "channel TEXT NOT NULL, " +
+            "nickname TEXT NOT NULL, " +
+            "quote_count INTEGER NOT NULL, " +
+            "PRIMARY KEY (channel, nickname)" +
+            ")";
+
+    private static final String SQL_CREATE_INDEX_STATS_NICKNAME_COUNT = "CREATE INDEX quote_stats_nickname_count " +
+            "ON quote_stats_nickname (channel, quote_count)";
+
+    private static final String SQL_CREATE_STATS_MONTH = "CREATE TABLE quote_stats_month (" +
+            "channel TEXT NOT NULL, " +
+            "month TEXT NOT NULL, " +
+            "quote_count INTEGER NOT NULL, " +
+            "PRIMARY KEY (channel, month)" +
+            ")";
+
+    // added_by is "nickname!user@host"
+    private static final String SQL_NICKNAME_OF_NEW = "CASE WHEN instr(new.added_by, '!')>0 " +
+            "THEN substr(new.added_by, 1, instr(new.added_by, '!')-1) " +
+            "ELSE new.added_by END";
+    private static final String SQL_NICKNAME_OF_OLD = SQL_NICKNAME_OF_NEW.replace("new.", "old.");
+    private static final String SQL_MONTH_OF_NEW = "strftime('%Y-%m', new._date/1000, 'unixepoch')";
+    private static final String SQL_MONTH_OF_OLD = SQL_MONTH_OF_NEW.replace("new.", "old.");
+
+    private static final String SQL_CREATE_STATS_TRIGGER_INSERT = "CREATE TRIGGER quote_stats_insert AFTER INSERT ON quote BEGIN " +
+            "INSERT INTO quote_stats_channel (channel, quote_count) VALUES (new.channel, 1) " +
+            "ON CONFLICT (channel) DO UPDATE SET quote_count=quote_count+1; " +
+            "INSERT INTO quote_stats_nickname (channel, nickname, quote_count) VALUES (new.channel, " + SQL_NICKNAME_OF_NEW + ", 1) " +
+            "ON CONFLICT (channel, nickname) DO UPDATE SET quote_count=quote_count+1; " +
+            "INSERT INTO quote_stats_month (channel, month, quote_count) VALUES (new.channel, " + SQL_MONTH_OF_NEW + ", 1) " +
+            "ON CONFLICT (channel, month) DO UPDATE SET quote_count=quote_count+1; " +
+            "END";
+
+    private static final String SQL_CREATE_STATS_TRIGGER_DELETE = "CREATE TRIGGER quote_stats_delete AFTER DELETE ON quote BEGIN " +
+            "UPDATE quote_stats_channel SET quote_count=quote_count-1 WHERE channel=old.channel; " +
+            "DELETE FROM quote_stats_channel WHERE channel=old.channel AND quote_count<=0; " +
+            "UPDATE quote_stats_nickname SET quote_count=quote_count-1 WHERE channel=old.channel AND nickname=" + SQL_NICKNAME_OF_OLD + "; " +
+            "DELETE FROM quote_stats_nickname WHERE channel=old.channel AND nickname=" + SQL_NICKNAME_OF_OLD + " AND quote_count<=0; " +
+            "UPDATE quote_stats_month SET quote_count=quote_count-1 WHERE channel=old.channel AND month=" + SQL_MONTH_OF_OLD + "; " +
+            "DELETE FROM quote_stats_month WHERE channel=old.channel AND month=" + SQL_MONTH_OF_OLD + " AND quote_count<=0; " +
+            "END";
+
+    // Compute the statistics of the quotes that were there before the triggers
+    private static final String SQL_FILL_STATS_CHANNEL = "INSERT INTO quote_stats_channel (channel, quote_count) " +
+            "SELECT channel, count(*) FROM quote GROUP BY channel";
+
+    private static final String SQL_FILL_STATS_NICKNAME = "INSERT INTO quote_stats_nickname (channel, nickname, quote_count) " +
+            "SELECT channel, " + SQL_NICKNAME_OF_NEW.replace("new.", "") + " AS nickname, count(*) FROM quote GROUP BY channel, nickname";
+
+    private static final String SQL_FILL_STATS_MONTH = "INSERT INTO quote_stats_month (channel, month, quote_count) " +
+            "SELECT channel, " + SQL_MONTH_OF_NEW.replace("new.", "") + " AS month, count(*) FROM quote GROUP BY channel, month";
+
+    /**
+     * The schema migrations: {@code MIGRATIONS[i]} brings the database from version {@code i} to version {@code i + 1}. Never change an existing
+     * migration, add a new one instead.
+     */
+    private static final String[][] MIGRATIONS = {
+            { SQL_CREATE_TABLE },
+            { SQL_DELETE_DUPLICATES, SQL_CREATE_INDEX_CHANNEL_TEXT, SQL_CREATE_INDEX_CHANNEL_DATE },
+            { SQL_CREATE_STATS_CHANNEL, SQL_CREATE_STATS_NICKNAME, SQL_CREATE_INDEX_STATS_NICKNAME_COUNT, SQL_CREATE_STATS_MONTH,
+                    SQL_FILL_STATS_CHANNEL, SQL_FILL_STATS_NICKNAME, SQL_FILL_STATS_MONTH, SQL_CREATE_STATS_TRIGGER_INSERT,
+                    SQL_CREATE_STATS_TRIGGER_DELETE },
+    };
+
+    // Quotes that already exist are ignored, thanks to the unique index
+    private static final String SQL_INSERT = "INSERT OR IGNORE INTO quote " +
             "(channel, _date, added_by, _text)" +
             " VALUES " +
             "(?, ?, ?, ?)";
 
-    private static final String SQL_COUNT = "SELECT " +
-            "count(_id)" +
+    private static final String SQL_SELECT_LAST_INSERT_ID = "SELECT last_insert_rowid()";
+
+    private static final String SQL_SELECT_IDS = "SELECT " +
+            "_id" +
             " FROM " +
             "quote" +
             " WHERE " +
             "channel=?";
     
-    private static final String SQL_SELECT_ALL = "SELECT " +
+    private static final String SQL_SELECT_BY_ID = "SELECT " +
             "_id, _date, _text" +
             " FROM " +
             "quote" +
             " WHERE " +
-            "channel=?" +
-            " ORDER BY " +
-            "_id";
+            "_id=?";
     
-    private static final String SQL_SELECT_BY_ID = "SELECT " +
+    private static final String SQL_SELECT_BY_LIKE = "SELECT " +
             "_id, _date, _text" +
             " FROM " +
             "quote" +
             " WHERE " +
-            "_id=?";
-    
-    private static final String SQL_SELECT_BY_LIKE = "SELECT " +
-            "_id, _date, _text" + 
-            " FROM " + 
-            "quote" + 
-            " WHERE "
-            + "_text LIKE ? LIMIT ?,1";
-    
-    private static final String SQL_SELECT_BY_LIKE_COUNT = "SELECT " + 
-            "count(*)" + 
-            " FROM " + 
-            "quote" + 
-            " WHERE " + 
-            "_text LIKE ?";
+            "channel=? AND _text LIKE ?" +
+            " ORDER BY " +
+            "random()" +
+            " LIMIT 1";
+
+    // A random quote among the best ranked matches, so that the same query doesn't always give the same quote
+    private static final int MATCH_TOP_COUNT = 10;
+
+    private static final String SQL_SELECT_BY_MATCH = "SELECT " +
+            "_id, _date, _text" +
+            " FROM " +
+            "(SELECT " +
+            "quote._id AS _id, quote._date AS _date, quote._text AS _text" +
+            " FROM " +
+            "quote_fts JOIN quote ON quote._id=quote_fts.rowid" +
+            " WHERE " +
+            "quote_fts MATCH ? AND quote.channel=?" +
+            " ORDER BY " +
+            "bm25(quote_fts)" +
+            " LIMIT " + MATCH_TOP_COUNT + ")" +
+            " ORDER BY " +
+            "random()" +
+            " LIMIT 1";
+
+    private static final String SQL_CHECK_FTS_EXISTS = "SELECT " +
+            "count(*)" +
+            " FROM " +
+            "sqlite_master" +
+            " WHERE " +
+            "name='quote_fts'";
+
+    // Full text index of the quotes, with the quote table as its external content: only the index is stored
+    private static final String SQL_CREATE_FTS = "CREATE VIRTUAL TABLE quote_fts USING fts5(" +
+            "_text, " +
+            "content='quote', " +
+            "content_rowid='_id', " +
+            "tokenize='unicode61 remove_diacritics 2'" +
+            ")";
+
+    private static final String SQL_CREATE_FTS_TRIGGER_INSERT = "CREATE TRIGGER quote_fts_insert AFTER INSERT ON quote BEGIN " +
+            "INSERT INTO quote_fts (rowid, _text) VALUES (new._id, new._text); " +
+            "END";
+
+    private static final String SQL_CREATE_FTS_TRIGGER_DELETE = "CREATE TRIGGER quote_fts_delete AFTER DELETE ON quote BEGIN " +
+            "INSERT INTO quote_fts (quote_fts, rowid, _text) VALUES ('delete', old._id, old._text); " +
+            "END";
+
+    private static final String SQL_CREATE_FTS_TRIGGER_UPDATE = "CREATE TRIGGER quote_fts_update AFTER UPDATE OF _text ON quote BEGIN " +
+            "INSERT INTO quote_fts (quote_fts, rowid, _text) VALUES ('delete', old._id, old._text); " +
+            "INSERT INTO quote_fts (rowid, _text) VALUES (new._id, new._text); " +
+            "END";
+
+    // Index the quotes that were there before the index was created
+    private static final String SQL_REBUILD_FTS = "INSERT INTO quote_fts (quote_fts) VALUES ('rebuild')";
     
-    private static final String SQL_SELECT_MAX_DATE = "SELECT " +
-            "max(_date)" +
+    private static final String SQL_SELECT_LATEST = "SELECT " +
+            "_id, _date, _text" +
             " FROM " +
             "quote" +
+            " ORDER BY " +
+            "_id DESC" +
+            " LIMIT ?";
+
+    private static final String SQL_SELECT_ALL = "SELECT " +
+            "_id, _date, _text, channel, added_by" +
+            " FROM " +
+            "quote" +
+            " ORDER BY " +
+            "_id";
+
+    private static final String SQL_SELECT_STATS_COUNT = "SELECT " +
+            "quote_count" +
+            " FROM " +
+            "quote_stats_channel" +
             " WHERE " +
             "channel=?";
-    
-    private static final String SQL_CHECK_QUOTE_EXISTS = "SELECT " +
-            "count(_id)" +
+
+    private static final String SQL_SELECT_STATS_TOP_NICKNAMES = "SELECT " +
+            "nickname, quote_count" +
+            " FROM " +
+            "quote_stats_nickname" +
+            " WHERE " +
+            "channel=?" +
+            " ORDER BY " +
+            "quote_count DESC" +
+            " LIMIT ?";
+
+    private static final String SQL_SELECT_STATS_MONTHS = "SELECT " +
+            "month, quote_count" +
+            " FROM " +
+            "quote_stats_month" +
+            " WHERE " +
+            "channel=?" +
+            " ORDER BY " +
+            "month DESC" +
+            " LIMIT ?";
+
+    private static final String SQL_SELECT_MAX_DATE = "SELECT " +
+            "max(_date)" +
             " FROM " +
             "quote" +
             " WHERE " +
-            "channel=? and _text=?";
+            "channel=?";
     
     private static final String SQL_DELETE = "DELETE " +
             " FROM " +
@@ -122,112 +312,617 @@ public class DbManager {
     public static final int ERR_SQL_PROBLEM = -1;
     public static final int ERR_QUOTE_ALREADY_EXISTS = -2;
 
-    private Connection mConnection;
+    private static final int READER_COUNT_MAX = 4;
+    private static final int BATCH_SIZE_MAX = 500;
+    private static final int QUOTE_CACHE_SIZE = 1024;
+    private static final int QUOTE_CACHE_WARM_COUNT = 256;
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    private static final int IMPORT_TRANSACTION_SIZE = 100000;
+    private static final long BATCH_DELAY = 10; // ms
+    private static final int SQLITE_OPEN_READONLY = 0x00000001;
 
-    private ArrayList<Integer> mRandomOrder;
-    private int mRandomIdx;
+    /**
+     * Key: canonical db path.
+     */
+    private static final Map<String, DbManager> sDbManagers = new HashMap<String, DbManager>();
 
-    public DbManager(String dbPath) {
+    /**
+     * A connection, with the statements prepared on it. Only used by one thread at a time.
+     */
+    private static class DbConnection {
+        private final Connection mConnection;
+        private final Map<String, PreparedStatement> mStatements = new HashMap<String, PreparedStatement>();
+
+        DbConnection(Connection connection) {
+            mConnection = connection;
+        }
+
+        /**
+         * @return A statement for the given sql, prepared the first time, and then reused for the life of the connection.
+         */
+        PreparedStatement getStatement(String sql) throws SQLException {
+            PreparedStatement res = mStatements.get(sql);
+            if (res == null) {
+                res = mConnection.prepareStatement(sql);
+                mStatements.put(sql, res);
+            }
+            return res;
+        }
+
+        void close() {
+            for (PreparedStatement statement : mStatements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    Log.w(TAG, "close Could not close statement", e);
+                }
+            }
+            mStatements.clear();
+            try {
+                mConnection.close();
+            } catch (SQLException e) {
+                Log.w(TAG, "close Could not close connection", e);
+            }
+        }
+    }
+
+    /**
+     * The ids of the quotes of a channel, in a shuffled order.<br/>
+     * Random quotes are taken by moving a cursor forward by 1 to 3 positions each time, so the same quote doesn't come back before most of the
+     * others have been seen.<br/>
+     * Thread safe.
+     */
+    private static class RandomIndex {
+        private long[] mIds;
+        private int mSize;
+        private int mCursor;
+
+        RandomIndex(long[] ids, int size) {
+            mIds = ids;
+            mSize = size;
+            // Fisher-Yates shuffle
+            for (int i = size - 1; i > 0; i--) {
+                swap(i, RANDOM.nextInt(i + 1));
+            }
+        }
+
+        /**
+         * @return The next id, or {@code -1} if there are none.
+         */
+        synchronized long next() {
+            if (mSize == 0) return -1;
+            long res = mIds[mCursor];
+            mCursor += RANDOM.nextInt(3) + 1;
+            if (mCursor >= mSize) mCursor = 0;
+            return res;
+        }
+
+        synchronized void add(long id) {
+            if (mSize == mIds.length) mIds = Arrays.copyOf(mIds, Math.max(16, mSize * 2));
+            mIds[mSize] = id;
+            mSize++;
+            // Move it to a random position, so the order stays a random permutation
+            swap(mSize - 1, RANDOM.nextInt(mSize));
+        }
+
+        synchronized boolean remove(long id) {
+            for (int i = 0; i < mSize; i++) {
+                if (mIds[i] == id) {
+                    mSize--;
+                    mIds[i] = mIds[mSize];
+                    if (mCursor >= mSize) mCursor = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void swap(int i, int j) {
+            long tmp = mIds[i];
+            mIds[i] = mIds[j];
+            mIds[j] = tmp;
+        }
+    }
+
+    /**
+     * An insert or a delete, waiting to be written by the writer thread.
+     */
+    private static class WriteOperation<T> {
+        static final int INSERT = 0;
+        static final int DELETE = 1;
+
+        static final WriteOperation<Void> STOP = new WriteOperation<Void>(-1);
+
+        final int type;
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        String channel;
+        long date;
+        String addedBy;
+        String text;
+        long id;
+        Object result;
+
+        WriteOperation(int type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete() {
+            if (future.isDone()) return;
+            if (type == INSERT) {
+                ((CompletableFuture<Long>) future).complete((Long) result);
+            } else {
+                ((CompletableFuture<Integer>) future).complete((Integer) result);
+            }
+        }
+
+        /**
+         * @return {@code false} if the operation was already completed.
+         */
+        boolean fail(Exception e) {
+            return future.completeExceptionally(e);
+        }
+    }
+
+    private final String mDbPath;
+    private final boolean mFtsAvailable;
+
+    /**
+     * The only connection used to write, guarded by its own monitor. With WAL, writing doesn't block the readers.<br/>
+     * Inserts and deletes are queued, and written by {@link #mWriterThread} in batches: operations queued within {@link #BATCH_DELAY} ms of each
+     * other (up to {@link #BATCH_SIZE_MAX}) share one transaction.
+     */
+    private final DbConnection mWriter;
+    private final BlockingQueue<WriteOperation<?>> mWriteQueue = new LinkedBlockingQueue<WriteOperation<?>>();
+    private final Thread mWriterThread;
+    private volatile boolean mClosed;
+
+    /**
+     * Read only connections that are not in use. More are opened as needed, up to {@link #READER_COUNT_MAX}.
+     */
+    private final BlockingQueue<DbConnection> mIdleReaders = new LinkedBlockingQueue<DbConnection>();
+    private int mReaderCount;
+
+    /**
+     * Key: channel. Loaded and modified with the {@link #mWriter} monitor held, so no insert or delete can be missed.
+     */
+    private final Map<String, RandomIndex> mRandomIndexes = new ConcurrentHashMap<String, RandomIndex>();
+
+    /**
+     * The most recently used quotes, by id. New quotes are added as soon as they are committed.
+     */
+    private final Cache<Long, Quote> mQuoteCache = CacheBuilder.newBuilder().maximumSize(QUOTE_CACHE_SIZE).recordStats().build();
+    private final AtomicLong mDeleteCount = new AtomicLong();
+
+    /**
+     * Key: channel. The date of the latest quote, updated as soon as an insert is queued (before it is written), so that throttling sees it.
+     */
+    private final ConcurrentMap<String, Long> mLatestQuoteDates = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @return The {@link DbManager} of the given db file, shared by everything that uses this file.
+     */
+    public static DbManager get(String dbPath) throws SQLException {
+        String key;
+        try {
+            key = new File(dbPath).getCanonicalPath();
+        } catch (IOException e) {
+            key = new File(dbPath).getAbsolutePath();
+        }
+        synchronized (sDbManagers) {
+            DbManager res = sDbManagers.get(key);
+            if (res == null) {
+                res = new DbManager(key);
+                sDbManagers.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    private DbManager(String dbPath) throws SQLException {
         try {
             Class.forName("org.sqlite.JDBC");
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "DbManager Could not intialize jdbc driver", e);
         }
+        mDbPath = dbPath;
 
-        boolean dbExists = new File(dbPath).exists();
-        if (Config.LOGD) Log.d(TAG, "DbManager dbExists=" + dbExists);
-
+        mWriter = new DbConnection(DriverManager.getConnection("jdbc:sqlite:" + dbPath));
         try {
-            mConnection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-            if (!dbExists) {
-                Statement statement = mConnection.createStatement();
-                statement.execute(SQL_CREATE_TABLE);
+            Statement statement = mWriter.mConnection.createStatement();
+            try {
+                // Readers don't block the writer, and commits don't wait for the disk (a power loss can lose the last commits, but not corrupt
+                // the db)
+                statement.execute(SQL_SET_JOURNAL_MODE);
+                statement.execute(SQL_SET_SYNCHRONOUS);
+            } finally {
+                statement.close();
             }
+            migrate(mWriter.mConnection);
         } catch (SQLException e) {
-            Log.e(TAG, "Could not initialize connection", e);
+            mWriter.close();
+            throw e;
         }
+        mFtsAvailable = createFtsIfNeeded(mWriter.mConnection);
+        warmQuoteCache();
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "irondad-quote-writer");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
     }
 
-    public long insert(String channel, String addedBy, String text) {
-        if (Config.LOGD) Log.d(TAG, "insert channel=" + channel + " addedBy=" + addedBy + " text=" + text);
+    private static void migrate(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery(SQL_GET_VERSION);
+            resultSet.next();
+            int version = resultSet.getInt(1);
+            resultSet.close();
+            if (Config.LOGD) Log.d(TAG, "migrate version=" + version + " latest=" + MIGRATIONS.length);
+            if (version >= MIGRATIONS.length) return;
 
-        if (isExistingQuote(channel, text)) return ERR_QUOTE_ALREADY_EXISTS;
+            connection.setAutoCommit(false);
+            try {
+                for (int i = version; i < MIGRATIONS.length; i++) {
+                    if (Config.LOGD) Log.d(TAG, "migrate Migrating to version " + (i + 1));
+                    for (String sql : MIGRATIONS[i]) {
+                        statement.execute(sql);
+                    }
+                }
+                statement.execute(SQL_SET_VERSION + MIGRATIONS.length);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            statement.close();
+        }
+    }
 
-        PreparedStatement statement = null;
+    /**
+     * @return {@code true} if the full text index can be used.
+     */
+    private static boolean createFtsIfNeeded(Connection connection) {
+        Statement statement = null;
         try {
-            statement = mConnection.prepareStatement(SQL_INSERT, Statement.RETURN_GENERATED_KEYS);
-            statement.setString(1, channel);
-            statement.setLong(2, System.currentTimeMillis());
-            statement.setString(3, addedBy);
-            statement.setString(4, text);
-
-            int rows = statement.executeUpdate();
-            if (Config.LOGD) Log.d(TAG, "insert rows=" + rows);
-            updateRandomAfterInsert();
-
-            ResultSet resultSet = statement.getGeneratedKeys();
-            if (resultSet.next()) {
-                long res = resultSet.getLong(1);
-                if (Config.LOGD) Log.d(TAG, "insert res=" + res);
-                return res;
+            statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery(SQL_CHECK_FTS_EXISTS);
+            resultSet.next();
+            if (resultSet.getInt(1) > 0) return true;
+
+            if (Config.LOGD) Log.d(TAG, "createFtsIfNeeded Creating and filling the full text index");
+            connection.setAutoCommit(false);
+            try {
+                statement.execute(SQL_CREATE_FTS);
+                statement.execute(SQL_CREATE_FTS_TRIGGER_INSERT);
+                statement.execute(SQL_CREATE_FTS_TRIGGER_DELETE);
+                statement.execute(SQL_CREATE_FTS_TRIGGER_UPDATE);
+                statement.execute(SQL_REBUILD_FTS);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
+            return true;
         } catch (SQLException e) {
-            Log.e(TAG, "insert Could not insert", e);
+            Log.w(TAG, "createFtsIfNeeded Could not create the full text index: text searches will be slow", e);
+            return false;
         } finally {
             if (statement != null) try {
                 statement.close();
             } catch (SQLException e) {
-                Log.w(TAG, "insert", e);
+                Log.w(TAG, "createFtsIfNeeded", e);
             }
         }
-        return ERR_SQL_PROBLEM;
     }
 
-    private int getCount(String channel) {
-        if (Config.LOGD) Log.d(TAG, "getCount channel=" + channel);
-        PreparedStatement statement = null;
+    /**
+     * Put the latest quotes in {@link #mQuoteCache}: they are the most likely to be asked for right after a (re)start.<br/>
+     * Called before the writer thread is started, so the writer connection can be used.
+     */
+    private void warmQuoteCache() {
         try {
-            statement = mConnection.prepareStatement(SQL_COUNT);
-            statement.setString(1, channel);
+            PreparedStatement statement = mWriter.getStatement(SQL_SELECT_LATEST);
+            statement.setInt(1, QUOTE_CACHE_WARM_COUNT);
             ResultSet resultSet = statement.executeQuery();
-            resultSet.next();
-            int res = resultSet.getInt(1);
-            if (Config.LOGD) Log.d(TAG, "getCount res=" + res);
-            return res;
+            try {
+                while (resultSet.next()) {
+                    Quote quote = new Quote();
+                    quote.id = resultSet.getLong(1);
+                    quote.date = new Date(resultSet.getLong(2));
+                    quote.text = resultSet.getString(3);
+                    mQuoteCache.put(quote.id, quote);
+                }
+            } finally {
+                resultSet.close();
+            }
+            if (Config.LOGD) Log.d(TAG, "warmQuoteCache " + mQuoteCache.size() + " quotes");
         } catch (SQLException e) {
-            Log.e(TAG, "Could not get a random quote", e);
-        } finally {
-            if (statement != null) try {
-                statement.close();
+            // Not fatal: the cache is filled as quotes are read
+            Log.w(TAG, "warmQuoteCache Could not load the latest quotes", e);
+        }
+    }
+
+    private DbConnection acquireReader() throws SQLException {
+        DbConnection res = mIdleReaders.poll();
+        if (res != null) return res;
+        synchronized (mIdleReaders) {
+            if (mReaderCount < READER_COUNT_MAX) {
+                Properties properties = new Properties();
+                properties.setProperty("open_mode", String.valueOf(SQLITE_OPEN_READONLY));
+                res = new DbConnection(DriverManager.getConnection("jdbc:sqlite:" + mDbPath, properties));
+                mReaderCount++;
+                if (Config.LOGD) Log.d(TAG, "acquireReader Opened reader " + mReaderCount);
+                return res;
+            }
+        }
+        try {
+            return mIdleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader", e);
+        }
+    }
+
+    private void releaseReader(DbConnection reader) {
+        mIdleReaders.offer(reader);
+    }
+
+    /**
+     * Close all the connections. This {@link DbManager} must not be used afterwards.
+     */
+    public void close() {
+        if (Config.LOGD) Log.d(TAG, "close");
+        synchronized (sDbManagers) {
+            sDbManagers.remove(mDbPath);
+        }
+        mClosed = true;
+        // The writer thread writes the pending operations, then closes the writer connection
+        mWriteQueue.add(WriteOperation.STOP);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DbConnection reader;
+        while ((reader = mIdleReaders.poll()) != null) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add a quote. Blocks until it is written.
+     * 
+     * @return The id of the new quote, {@link #ERR_QUOTE_ALREADY_EXISTS} or {@link #ERR_SQL_PROBLEM}.
+     */
+    public long insert(String channel, String addedBy, String text) {
+        return await(insertAsync(channel, addedBy, text), (long) ERR_SQL_PROBLEM);
+    }
+
+    /**
+     * Add a quote, dated now.
+     * 
+     * @return A future completed once the quote is committed, with its id or {@link #ERR_QUOTE_ALREADY_EXISTS}. It is completed on the writer
+     *         thread: long running work should be done elsewhere.
+     */
+    public CompletableFuture<Long> insertAsync(String channel, String addedBy, String text) {
+        return insertAsync(channel, System.currentTimeMillis(), addedBy, text);
+    }
+
+    /**
+     * Add a quote with the given date, for instance when importing quotes.
+     * 
+     * @see #insertAsync(String, String, String)
+     */
+    public CompletableFuture<Long> insertAsync(String channel, long date, String addedBy, String text) {
+        if (Config.LOGD) Log.d(TAG, "insertAsync channel=" + channel + " addedBy=" + addedBy + " text=" + text);
+        WriteOperation<Long> operation = new WriteOperation<Long>(WriteOperation.INSERT);
+        operation.channel = channel;
+        operation.date = date;
+        operation.addedBy = addedBy;
+        operation.text = text;
+        // Throttling must see this quote right away (see getLatestQuoteDate); this is undone if it is not actually inserted
+        updateLatestQuoteDate(channel, date);
+        return enqueue(operation);
+    }
+
+    /**
+     * Delete a quote. Blocks until it is written.
+     * 
+     * @return The number of deleted quotes, or {@link #ERR_SQL_PROBLEM}.
+     */
+    public int delete(long id) {
+        return await(deleteAsync(id), ERR_SQL_PROBLEM);
+    }
+
+    /**
+     * @return A future completed once the deletion is committed, with the number of deleted quotes.
+     */
+    public CompletableFuture<Integer> deleteAsync(long id) {
+        if (Config.LOGD) Log.d(TAG, "deleteAsync id=" + id);
+        WriteOperation<Integer> operation = new WriteOperation<Integer>(WriteOperation.DELETE);
+        operation.id = id;
+        return enqueue(operation);
+    }
+
+    private <T> CompletableFuture<T> enqueue(WriteOperation<T> operation) {
+        if (mClosed) {
+            operation.future.completeExceptionally(new SQLException("DbManager is closed"));
+        } else {
+            mWriteQueue.add(operation);
+        }
+        return operation.future;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, T errorValue) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not write", e.getCause());
+        }
+        return errorValue;
+    }
+
+    private void writeLoop() {
+        List<WriteOperation<?>> batch = new ArrayList<WriteOperation<?>>(BATCH_SIZE_MAX);
+        while (true) {
+            try {
+                WriteOperation<?> first = mWriteQueue.take();
+                if (first == WriteOperation.STOP) break;
+                batch.add(first);
+                // Wait a bit for more operations, so they can share the transaction
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_DELAY);
+                while (batch.size() < BATCH_SIZE_MAX) {
+                    WriteOperation<?> next = mWriteQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    if (next == WriteOperation.STOP) {
+                        // Stop after this batch
+                        mWriteQueue.add(next);
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            writeBatchOrFail(batch);
+            batch.clear();
+        }
+
+        // Closing: the pending operations are still written
+        List<WriteOperation<?>> remaining = new ArrayList<WriteOperation<?>>();
+        mWriteQueue.drainTo(remaining);
+        remaining.remove(WriteOperation.STOP);
+        if (!remaining.isEmpty()) writeBatchOrFail(remaining);
+        synchronized (mWriter) {
+            mWriter.close();
+        }
+    }
+
+    /**
+     * Like {@link #writeBatch(List)}, but an unexpected exception (e.g. a driver bug) fails the operations of the batch instead of killing the writer
+     * thread, which would leave all the pending and future operations waiting forever.
+     */
+    private void writeBatchOrFail(List<WriteOperation<?>> batch) {
+        try {
+            writeBatch(batch);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "writeBatchOrFail Could not write batch", e);
+            for (WriteOperation<?> operation : batch) {
+                if (operation.fail(e) && operation.type == WriteOperation.INSERT) undoLatestQuoteDate(operation);
+            }
+        }
+    }
+
+    /**
+     * Write the given operations in one transaction. If it fails, each operation is retried in its own transaction, so that one bad operation doesn't
+     * make the others fail.
+     */
+    private void writeBatch(List<WriteOperation<?>> batch) {
+        if (Config.LOGD) Log.d(TAG, "writeBatch size=" + batch.size());
+        synchronized (mWriter) {
+            Connection connection = mWriter.mConnection;
+            try {
+                connection.setAutoCommit(false);
+                try {
+                    for (WriteOperation<?> operation : batch) {
+                        operation.result = write(operation);
+                    }
+                    connection.commit();
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
             } catch (SQLException e) {
-                Log.w(TAG, "getCount", e);
+                if (batch.size() == 1) {
+                    WriteOperation<?> operation = batch.get(0);
+                    if (operation.fail(e) && operation.type == WriteOperation.INSERT) undoLatestQuoteDate(operation);
+                    return;
+                }
+                Log.w(TAG, "writeBatch Could not write batch, retrying one by one", e);
+                for (WriteOperation<?> operation : batch) {
+                    try {
+                        operation.result = write(operation);
+                    } catch (SQLException e2) {
+                        operation.fail(e2);
+                    }
+                }
+            }
+
+            // Committed: update the random indexes and the cache, and report the results
+            for (WriteOperation<?> operation : batch) {
+                if (operation.future.isDone()) {
+                    // Failed
+                    if (operation.type == WriteOperation.INSERT) undoLatestQuoteDate(operation);
+                    continue;
+                }
+                long result = ((Number) operation.result).longValue();
+                if (operation.type == WriteOperation.INSERT) {
+                    if (result < 0) {
+                        // Already exists
+                        undoLatestQuoteDate(operation);
+                    } else {
+                        RandomIndex randomIndex = mRandomIndexes.get(operation.channel);
+                        if (randomIndex != null) randomIndex.add(result);
+                        // New quotes are likely to be asked for soon
+                        Quote quote = new Quote();
+                        quote.id = result;
+                        quote.date = new Date(operation.date);
+                        quote.text = operation.text;
+                        mQuoteCache.put(result, quote);
+                    }
+                } else if (result > 0) {
+                    mDeleteCount.incrementAndGet();
+                    mQuoteCache.invalidate(operation.id);
+                    for (RandomIndex randomIndex : mRandomIndexes.values()) {
+                        if (randomIndex.remove(operation.id)) break;
+                    }
+                }
             }
         }
-        return 0;
+        for (WriteOperation<?> operation : batch) {
+            operation.complete();
+        }
     }
 
-    private boolean isExistingQuote(String channel, String text) {
-        if (Config.LOGD) Log.d(TAG, "isExistingQuote");
-        PreparedStatement statement = null;
+    /**
+     * Must be called with the {@link #mWriter} monitor held.
+     */
+    private Object write(WriteOperation<?> operation) throws SQLException {
+        if (operation.type == WriteOperation.DELETE) {
+            PreparedStatement statement = mWriter.getStatement(SQL_DELETE);
+            statement.setLong(1, operation.id);
+            return statement.executeUpdate();
+        }
+
+        PreparedStatement statement = mWriter.getStatement(SQL_INSERT);
+        statement.setString(1, operation.channel);
+        statement.setLong(2, operation.date);
+        statement.setString(3, operation.addedBy);
+        statement.setString(4, operation.text);
+        if (statement.executeUpdate() == 0) return (long) ERR_QUOTE_ALREADY_EXISTS;
+
+        ResultSet resultSet = mWriter.getStatement(SQL_SELECT_LAST_INSERT_ID).executeQuery();
         try {
-            statement = mConnection.prepareStatement(SQL_CHECK_QUOTE_EXISTS);
-            statement.setString(1, channel);
-            statement.setString(2, text);
-            ResultSet resultSet = statement.executeQuery();
             resultSet.next();
-            int count = resultSet.getInt(1);
-            if (Config.LOGD) Log.d(TAG, "isExistingQuote count=" + count);
-            return count > 0;
-        } catch (SQLException e) {
-            Log.e(TAG, "Could not check if quote exists", e);
+            return resultSet.getLong(1);
         } finally {
-            if (statement != null) try {
-                statement.close();
-            } catch (SQLException e) {
-                Log.w(TAG, "isExistingQuote", e);
-            }
+            resultSet.close();
         }
-        return false;
     }
 
     public static class Quote {
@@ -235,214 +930,403 @@ public class DbManager {
         public Date date;
         public String text;
 
+        /**
+         * Only set by {@link DbManager#exportQuotes(Consumer)}, and needed by {@link DbManager#importQuotes(Iterator)}.
+         */
+        public String channel;
+        public String addedBy;
+
+        /**
+         * Reply line rendered by {@link QuoteHandler}, cached here since quotes never change once inserted.
+         */
+        volatile String displayText;
+
         @Override
         public String toString() {
             return "Quote [id=" + id + ", date=" + date + ", text=" + text + "]";
         }
     }
 
-    public Quote getRandom(String channel) {
-        if (Config.LOGD) Log.d(TAG, "getRandom channel=" + channel);
+    /**
+     * Add many quotes at once, with batched inserts in large transactions. Quotes that already exist in their channel are ignored, as well as the
+     * ids of the given quotes.<br/>
+     * The quotes are read from the iterator as they are inserted, so they don't need to fit in memory.
+     * 
+     * @return The number of quotes actually added.
+     */
+    public long importQuotes(Iterator<Quote> quotes) throws SQLException {
+        long res = 0;
+        synchronized (mWriter) {
+            Connection connection = mWriter.mConnection;
+            PreparedStatement statement = mWriter.getStatement(SQL_INSERT);
+            connection.setAutoCommit(false);
+            try {
+                int batchSize = 0;
+                int transactionSize = 0;
+                while (quotes.hasNext()) {
+                    Quote quote = quotes.next();
+                    statement.setString(1, quote.channel);
+                    statement.setLong(2, quote.date.getTime());
+                    statement.setString(3, quote.addedBy);
+                    statement.setString(4, quote.text);
+                    statement.addBatch();
+                    batchSize++;
+                    transactionSize++;
+                    if (batchSize == IMPORT_BATCH_SIZE) {
+                        res += executeBatch(statement);
+                        batchSize = 0;
+                    }
+                    if (transactionSize == IMPORT_TRANSACTION_SIZE) {
+                        connection.commit();
+                        transactionSize = 0;
+                        if (Config.LOGD) Log.d(TAG, "importQuotes " + res + " quotes added so far");
+                    }
+                }
+                if (batchSize > 0) res += executeBatch(statement);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+                // Reloaded when needed
+                mRandomIndexes.clear();
+            }
+        }
+        return res;
+    }
 
-        int count = getCount(channel);
-        if (count == 0) return null;
-        PreparedStatement statement = null;
+    private static int executeBatch(PreparedStatement statement) throws SQLException {
+        int res = 0;
+        for (int count : statement.executeBatch()) {
+            // Ignored quotes have a count of 0
+            if (count > 0) res += count;
+        }
+        return res;
+    }
+
+    /**
+     * Give all the quotes, of all the channels, to the given consumer, in the order they were added. The rows are read as they are consumed, so they
+     * don't need to fit in memory.<br/>
+     * The same {@link Quote} instance is given for every row.
+     */
+    public void exportQuotes(Consumer<Quote> consumer) throws SQLException {
+        DbConnection reader = acquireReader();
         try {
-            statement = mConnection.prepareStatement(SQL_SELECT_ALL);
-            statement.setString(1, channel);
-            ResultSet resultSet = statement.executeQuery();
-            int random = getRandom(count);
-            if (Config.LOGD) Log.d(TAG, "getRandom random=" + random);
-            //            resultSet.relative(random); // Not supported by the sqlite driver
-            for (int i = 0; i < random + 1; i++) {
-                resultSet.next();
+            ResultSet resultSet = reader.getStatement(SQL_SELECT_ALL).executeQuery();
+            try {
+                Quote quote = new Quote();
+                while (resultSet.next()) {
+                    quote.id = resultSet.getLong(1);
+                    quote.date = new Date(resultSet.getLong(2));
+                    quote.text = resultSet.getString(3);
+                    quote.channel = resultSet.getString(4);
+                    quote.addedBy = resultSet.getString(5);
+                    consumer.accept(quote);
+                }
+            } finally {
+                resultSet.close();
             }
-            Quote res = new Quote();
-            res.id = resultSet.getLong(1);
-            res.date = new Date(resultSet.getLong(2));
-            res.text = resultSet.getString(3);
-            if (Config.LOGD) Log.d(TAG, "getRandom res=" + res);
-            return res;
-        } catch (SQLException e) {
-            Log.e(TAG, "Could not get a random quote", e);
         } finally {
-            if (statement != null) try {
-                statement.close();
+            releaseReader(reader);
+        }
+    }
+
+    public Quote getRandom(String channel) {
+        if (Config.LOGD) Log.d(TAG, "getRandom channel=" + channel);
+
+        // The index can be out of date if the database was modified by something else: in that case reload it, and try again once
+        for (int attempt = 0; attempt < 2; attempt++) {
+            RandomIndex randomIndex = attempt == 0 ? mRandomIndexes.get(channel) : null;
+            if (randomIndex == null) {
+                randomIndex = loadRandomIndex(channel);
+                if (randomIndex == null) return null;
+            }
+            long id = randomIndex.next();
+            if (id == -1) return null;
+            if (Config.LOGD) Log.d(TAG, "getRandom id=" + id);
+            Quote res = getQuote(id);
+            if (res != null) return res;
+        }
+        return null;
+    }
+
+    private RandomIndex loadRandomIndex(String channel) {
+        if (Config.LOGD) Log.d(TAG, "loadRandomIndex channel=" + channel);
+        synchronized (mWriter) {
+            try {
+                PreparedStatement statement = mWriter.getStatement(SQL_SELECT_IDS);
+                statement.setString(1, channel);
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    long[] ids = new long[16];
+                    int size = 0;
+                    while (resultSet.next()) {
+                        if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+                        ids[size++] = resultSet.getLong(1);
+                    }
+                    if (Config.LOGD) Log.d(TAG, "loadRandomIndex size=" + size);
+                    RandomIndex res = new RandomIndex(ids, size);
+                    mRandomIndexes.put(channel, res);
+                    return res;
+                } finally {
+                    resultSet.close();
+                }
             } catch (SQLException e) {
-                Log.w(TAG, "getRandom", e);
+                Log.e(TAG, "Could not load the quote ids", e);
             }
         }
         return null;
     }
 
+    /**
+     * @return The quote with the given id, or {@code null} if there is none. The returned instance can be shared: it must not be modified.
+     */
     public Quote getQuote(long id) {
         if (Config.LOGD) Log.d(TAG, "getQuote id=" + id);
-
-        PreparedStatement statement = null;
+        Quote res = mQuoteCache.getIfPresent(id);
+        if (res != null) return res;
         try {
-            statement = mConnection.prepareStatement(SQL_SELECT_BY_ID);
-            statement.setLong(1, id);
-            ResultSet resultSet = statement.executeQuery();
-            if (!resultSet.next()) return null;
-            Quote res = new Quote();
-            res.id = resultSet.getLong(1);
-            res.date = new Date(resultSet.getLong(2));
-            res.text = resultSet.getString(3);
-            if (Config.LOGD) Log.d(TAG, "getQuote res=" + res);
+            // A quote deleted while it is being read must not end up in the cache
+            long deleteCount = mDeleteCount.get();
+            DbConnection reader = acquireReader();
+            try {
+                PreparedStatement statement = reader.getStatement(SQL_SELECT_BY_ID);
+                statement.setLong(1, id);
+                res = readQuote(statement.executeQuery());
+            } finally {
+                releaseReader(reader);
+            }
+            if (res != null && mDeleteCount.get() == deleteCount) mQuoteCache.put(id, res);
             return res;
         } catch (SQLException e) {
             Log.e(TAG, "Could not get a quote by id", e);
-        } finally {
-            if (statement != null) try {
-                statement.close();
-            } catch (SQLException e) {
-                Log.w(TAG, "getQuote", e);
-            }
         }
         return null;
     }
 
-    public Quote getQuote(String query) {
-        if (Config.LOGD) Log.d(TAG, "getQuote query=" + query);
-        if (!query.contains("%")) query = "%" + query + "%";
-        if (Config.LOGD) Log.d(TAG, "getQuote query=" + query);
-
-        PreparedStatement statement = null;
-        try {
-            int count = 1;
-            if (!query.startsWith("%\"") || !query.endsWith("\"%")) {
-
-                statement = mConnection.prepareStatement(SQL_SELECT_BY_LIKE_COUNT);
-                statement.setString(1, query);
-                ResultSet resultSetCount = statement.executeQuery();
-                if (!resultSetCount.next()) return null;
-
-                count = resultSetCount.getInt(1);
-                statement.close();
-                if (count == 0) {
-                    return null;
-                }
-            } else {
-                query = "%" + query.substring(2, query.length() - 2) + "%";
+    /**
+     * Find a random quote of the given channel matching the given query.<br/>
+     * The words of the query are matched as prefixes of the words of the quote ({@code foo} finds "foobar" but not "barfoo"). A query between double
+     * quotes must match whole words, in that order. The quote is picked among the {@code MATCH_TOP_COUNT} best ranked ones ({@code bm25}).<br/>
+     * A query containing {@code %} is used as a {@code LIKE} pattern instead.
+     */
+    public Quote getQuote(String channel, String query) {
+        if (Config.LOGD) Log.d(TAG, "getQuote channel=" + channel + " query=" + query);
+        if (mFtsAvailable && !query.contains("%")) {
+            String match = toMatchExpression(query);
+            if (match == null) return null;
+            if (Config.LOGD) Log.d(TAG, "getQuote match=" + match);
+            try {
+                return getQuote(SQL_SELECT_BY_MATCH, match, channel);
+            } catch (SQLException e) {
+                Log.w(TAG, "getQuote Could not use the full text index, falling back to LIKE", e);
             }
+        }
 
-            if (Config.LOGD) Log.d(TAG, "getQuote count=" + count);
-
-            // get a random index
-            double randNumber = Math.random() * count;
+        if (!query.contains("%")) query = "%" + StringUtils.strip(query, "\"") + "%";
+        if (Config.LOGD) Log.d(TAG, "getQuote like=" + query);
+        try {
+            return getQuote(SQL_SELECT_BY_LIKE, channel, query);
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not get a quote by text", e);
+        }
+        return null;
+    }
 
-            // Type cast double to int
-            int randomInt = (int) randNumber;
+    private Quote getQuote(String sql, String param1, String param2) throws SQLException {
+        DbConnection reader = acquireReader();
+        try {
+            PreparedStatement statement = reader.getStatement(sql);
+            statement.setString(1, param1);
+            statement.setString(2, param2);
+            return readQuote(statement.executeQuery());
+        } finally {
+            releaseReader(reader);
+        }
+    }
 
-            statement = mConnection.prepareStatement(SQL_SELECT_BY_LIKE);
-            statement.setString(1, query);
-            statement.setInt(2, randomInt);
-            ResultSet resultSet = statement.executeQuery();
+    /**
+     * @return The quote of the first row of the given result set (which is closed), or {@code null} if it is empty.
+     */
+    private static Quote readQuote(ResultSet resultSet) throws SQLException {
+        try {
             if (!resultSet.next()) return null;
-
             Quote res = new Quote();
             res.id = resultSet.getLong(1);
             res.date = new Date(resultSet.getLong(2));
             res.text = resultSet.getString(3);
-            if (Config.LOGD) Log.d(TAG, "getQuote res=" + res);
+            if (Config.LOGD) Log.d(TAG, "readQuote res=" + res);
             return res;
-        } catch (SQLException e) {
-            Log.e(TAG, "Could not get a quote by id", e);
         } finally {
-            if (statement != null) try {
-                statement.close();
-            } catch (SQLException e) {
-                Log.w(TAG, "getQuote", e);
+            resultSet.close();
+        }
+    }
+
+    /**
+     * Turn a user query into an FTS5 expression. Every word is quoted, so the FTS5 syntax (operators, column filters...) can't be used by accident.
+     * 
+     * @return {@code null} if the query has no words.
+     */
+    private static String toMatchExpression(String query) {
+        query = query.trim();
+        boolean phrase = query.length() > 1 && query.startsWith("\"") && query.endsWith("\"");
+        if (phrase) query = query.substring(1, query.length() - 1);
+        String[] words = StringUtils.split(query.replace("\"", " "));
+        if (words.length == 0) return null;
+        StringBuilder res = new StringBuilder();
+        if (phrase) {
+            res.append('"').append(StringUtils.join(words, ' ')).append('"');
+        } else {
+            for (String word : words) {
+                if (res.length() > 0) res.append(' ');
+                res.append('"').append(word).append("\"*");
             }
         }
-        return null;
+        return res.toString();
     }
 
-    public int delete(long id) {
-        if (Config.LOGD) Log.d(TAG, "delete id=" + id);
+    /**
+     * @return The hit and miss counts of the cache used by {@link #getQuote(long)}.
+     */
+    public CacheStats getQuoteCacheStats() {
+        return mQuoteCache.stats();
+    }
 
-        PreparedStatement statement = null;
-        try {
-            statement = mConnection.prepareStatement(SQL_DELETE);
-            statement.setLong(1, id);
+    /**
+     * A count of quotes, for a nickname or a month.
+     */
+    public static class StatsEntry {
+        public final String key;
+        public final long count;
 
-            int rows = statement.executeUpdate();
-            if (Config.LOGD) Log.d(TAG, "delete rows=" + rows);
-            updateRandomAfterDelete();
-            return rows;
-        } catch (SQLException e) {
-            Log.e(TAG, "delete Could not delete", e);
-        } finally {
-            if (statement != null) try {
-                statement.close();
-            } catch (SQLException e) {
-                Log.w(TAG, "delete", e);
-            }
+        StatsEntry(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return key + " (" + count + ")";
         }
-        return ERR_SQL_PROBLEM;
     }
 
-    public long getLatestQuoteDate(String channel) {
-        if (Config.LOGD) Log.d(TAG, "getLatestQuoteDate channel=" + channel);
-        PreparedStatement statement = null;
+    /**
+     * @return The number of quotes of the given channel.
+     */
+    public long getCount(String channel) {
+        if (Config.LOGD) Log.d(TAG, "getCount channel=" + channel);
         try {
-            statement = mConnection.prepareStatement(SQL_SELECT_MAX_DATE);
-            statement.setString(1, channel);
-            ResultSet resultSet = statement.executeQuery();
-            resultSet.next();
-            long res = resultSet.getLong(1);
-            if (Config.LOGD) Log.d(TAG, "getLatestQuoteDate res=" + res);
-            return res;
-        } catch (SQLException e) {
-            Log.e(TAG, "Could not execute query", e);
-        } finally {
-            if (statement != null) try {
-                statement.close();
-            } catch (SQLException e) {
-                Log.w(TAG, "getLatestQuoteDate", e);
+            DbConnection reader = acquireReader();
+            try {
+                PreparedStatement statement = reader.getStatement(SQL_SELECT_STATS_COUNT);
+                statement.setString(1, channel);
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    return resultSet.next() ? resultSet.getLong(1) : 0;
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                releaseReader(reader);
             }
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not get the quote count", e);
         }
         return 0;
     }
 
-    private int getRandom(int count) {
-        if (mRandomOrder == null) {
-            // Shuffle order
-            mRandomOrder = new ArrayList<Integer>(count);
-            for (int i = 0; i < count; i++) {
-                mRandomOrder.add(i);
-            }
-            Collections.shuffle(mRandomOrder);
-            mRandomIdx = 0;
-        }
+    /**
+     * @return The nicknames who added the most quotes to the given channel, with their count, most first.
+     */
+    public List<StatsEntry> getTopNicknames(String channel, int limit) {
+        if (Config.LOGD) Log.d(TAG, "getTopNicknames channel=" + channel);
+        return getStatsEntries(SQL_SELECT_STATS_TOP_NICKNAMES, channel, limit);
+    }
 
-        int res = mRandomOrder.get(mRandomIdx);
-        mRandomIdx += RANDOM.nextInt(3) + 1;
-        if (mRandomIdx >= mRandomOrder.size()) mRandomIdx = 0;
+    /**
+     * @return The number of quotes added to the given channel for each month ({@code yyyy-MM}, UTC), latest first.
+     */
+    public List<StatsEntry> getCountPerMonth(String channel, int limit) {
+        if (Config.LOGD) Log.d(TAG, "getCountPerMonth channel=" + channel);
+        return getStatsEntries(SQL_SELECT_STATS_MONTHS, channel, limit);
+    }
 
+    private List<StatsEntry> getStatsEntries(String sql, String channel, int limit) {
+        List<StatsEntry> res = new ArrayList<StatsEntry>(limit);
+        try {
+            DbConnection reader = acquireReader();
+            try {
+                PreparedStatement statement = reader.getStatement(sql);
+                statement.setString(1, channel);
+                statement.setInt(2, limit);
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    while (resultSet.next()) {
+                        res.add(new StatsEntry(resultSet.getString(1), resultSet.getLong(2)));
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                releaseReader(reader);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not get statistics", e);
+        }
         return res;
     }
 
-    private void updateRandomAfterInsert() {
-        if (mRandomOrder == null) return;
-        int newValue = mRandomOrder.size();
-        int newValueIndex = RANDOM.nextInt(newValue);
-        mRandomOrder.add(newValueIndex, newValue);
-        if (newValueIndex <= mRandomIdx) {
-            mRandomIdx += RANDOM.nextInt(3) + 1;
-            if (mRandomIdx >= mRandomOrder.size()) mRandomIdx = 0;
+    /**
+     * @return The date of the latest quote of the given channel, including the quotes that are queued but not written yet (and the ones deleted
+     *         since they were added), or {@code 0} if there is none.
+     */
+    public long getLatestQuoteDate(String channel) {
+        if (Config.LOGD) Log.d(TAG, "getLatestQuoteDate channel=" + channel);
+        Long latestQuoteDate = mLatestQuoteDates.get(channel);
+        if (latestQuoteDate != null) return latestQuoteDate;
+        try {
+            DbConnection reader = acquireReader();
+            try {
+                PreparedStatement statement = reader.getStatement(SQL_SELECT_MAX_DATE);
+                statement.setString(1, channel);
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    resultSet.next();
+                    long res = updateLatestQuoteDate(channel, resultSet.getLong(1));
+                    if (Config.LOGD) Log.d(TAG, "getLatestQuoteDate res=" + res);
+                    return res;
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                releaseReader(reader);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not execute query", e);
         }
+        return 0;
     }
 
-    private void updateRandomAfterDelete() {
-        if (mRandomOrder == null) return;
-        int valueToRemove = mRandomOrder.size() - 1;
-        for (Iterator<Integer> i = mRandomOrder.iterator(); i.hasNext();) {
-            int val = i.next();
-            if (val == valueToRemove) {
-                i.remove();
-                break;
-            }
+    /**
+     * Forget the latest quote date raised by the given insert, which was not actually inserted. It is read again from the db when needed.<br/>
+     * Nothing is done if a later insert raised it since: that one is still the latest.
+     */
+    private void undoLatestQuoteDate(WriteOperation<?> operation) {
+        mLatestQuoteDates.remove(operation.channel, operation.date);
+    }
+
+    /**
+     * Raise the latest quote date of the given channel to the given date, if it is later.
+     * 
+     * @return The resulting latest quote date.
+     */
+    private long updateLatestQuoteDate(String channel, long date) {
+        while (true) {
+            Long latestQuoteDate = mLatestQuoteDates.putIfAbsent(channel, date);
+            if (latestQuoteDate == null) return date;
+            if (latestQuoteDate >= date) return latestQuoteDate;
+            if (mLatestQuoteDates.replace(channel, latestQuoteDate, date)) return date;
         }
     }
 }
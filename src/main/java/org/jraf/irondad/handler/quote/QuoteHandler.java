@@ -25,11 +25,12 @@
  */
 package org.jraf.irondad.handler.quote;
 
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jraf.irondad.Config;
@@ -38,6 +39,7 @@ import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
 import org.jraf.irondad.handler.quote.DbManager.Quote;
 import org.jraf.irondad.protocol.ClientConfig;
+import org.jraf.irondad.protocol.ClientConfig.HandlerClassAndConfig;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -46,22 +48,20 @@ import org.jraf.irondad.util.Log;
 public class QuoteHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + QuoteHandler.class.getSimpleName();
 
-    private static final String DATE_FORMAT = "yyyy-MM-dd";
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.US).withZone(ZoneId.systemDefault());
     private static final long MIN_DELAY_BETWEEN_QUOTES = 2 * 60 * 1000;
-
-    private Map<String, DbManager> mDbManagers = new HashMap<String, DbManager>();
-    private ClientConfig mClientConfig;
+    private static final String SEARCH = "?";
+    private static final String STATS = "stats";
+    private static final String STATS_TOP = "top";
+    private static final String STATS_MONTHS = "months";
+    private static final int STATS_TOP_COUNT = 5;
+    private static final int STATS_MONTH_COUNT = 6;
 
     @Override
     protected String getCommand() {
         return "!quote";
     }
 
-    @Override
-    public void init(ClientConfig clientConfig) {
-        mClientConfig = clientConfig;
-    }
-
     @Override
     protected void handlePrivmsgMessage(Connection connection, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
@@ -76,20 +76,26 @@ public class QuoteHandler extends CommandHandler {
             return;
         }
         String password = textAsList.get(4);
-        if (!mClientConfig.getAdminPassword().equals(password)) return;
-        DbManager dbManager = mDbManagers.get(channel);
-        if (dbManager == null) {
+        ClientConfig clientConfig = connection.getClient().getClientConfig();
+        if (!clientConfig.getAdminPassword().equals(password)) return;
+        String dbPath = getDbPath(clientConfig, channel);
+        if (dbPath == null) {
             connection.send(Command.PRIVMSG, fromNickname, "0");
             return;
         }
-        int res = dbManager.delete(id);
+        int res = DbManager.get(dbPath).delete(id);
         connection.send(Command.PRIVMSG, fromNickname, String.valueOf(res));
     }
 
     @Override
     public void handleChannelMessage(Connection connection, String channel, String fromNickname, String text, List<String> textAsList, Message message,
             HandlerContext handlerContext) throws Exception {
-        DbManager dbManager = getDbManager(channel, handlerContext);
+        DbManager dbManager = DbManager.get(((QuoteHandlerConfig) handlerContext.getHandlerConfig()).getDbPath());
+
+        if (isStatsCommand(textAsList)) {
+            connection.send(Command.PRIVMSG, channel, getStatsText(dbManager, channel, textAsList.size() == 3 ? textAsList.get(2) : null));
+            return;
+        }
 
         String displayText;
         if (textAsList.size() == 1) {
@@ -98,9 +104,12 @@ public class QuoteHandler extends CommandHandler {
             if (randomQuote == null) {
                 displayText = "No quotes currently in db.";
             } else {
-                SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-                displayText = "\"" + randomQuote.text + "\" - " + sdf.format(randomQuote.date) + " (#" + randomQuote.id + ")";
+                displayText = getDisplayText(randomQuote);
             }
+        } else if (textAsList.size() > 2 && textAsList.get(1).equals(SEARCH)) {
+            // Find quote by text search, with several words, or a phrase between double quotes: "!quote ? <query>"
+            String query = text.substring(text.indexOf(SEARCH, text.indexOf(' ')) + SEARCH.length()).trim();
+            displayText = getSearchDisplayText(dbManager, channel, query);
         } else if (textAsList.size() == 2) {
             if (textAsList.get(1).startsWith("#")) {
                 // Find quote by id
@@ -117,21 +126,13 @@ public class QuoteHandler extends CommandHandler {
                         if (quote == null) {
                             displayText = "Could not find this quote.";
                         } else {
-                            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-                            displayText = "\"" + quote.text + "\" - " + sdf.format(quote.date) + " (#" + quote.id + ")";
+                            displayText = getDisplayText(quote);
                         }
                     }
                 }
             } else {
                 // Find quote by text search
-                String query = textAsList.get(1);
-                Quote quote = dbManager.getQuote(query);
-                if (quote == null) {
-                    displayText = "Could not find this quote.";
-                } else {
-                    SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-                    displayText = "\"" + quote.text + "\" - " + sdf.format(quote.date) + " (#" + quote.id + ")";
-                }
+                displayText = getSearchDisplayText(dbManager, channel, textAsList.get(1));
             }
         } else {
             // New quote
@@ -142,46 +143,102 @@ public class QuoteHandler extends CommandHandler {
             } else {
                 // Check for black list
                 String nameUserHost = message.origin.toFormattedString();
-                boolean blackListed = false;
                 QuoteHandlerConfig quoteHandlerConfig = (QuoteHandlerConfig) handlerContext.getHandlerConfig();
-                for (String item : quoteHandlerConfig.getBlackList()) {
-                    if (nameUserHost.matches(item)) {
-                        if (Config.LOGD) Log.d(TAG, "handleChannelMessage " + nameUserHost + " matches " + item + " - blacklisted");
-                        blackListed = true;
-                        break;
-                    }
-                }
-                if (blackListed) {
+                if (quoteHandlerConfig.getBlackListMatcher().matches(nameUserHost)) {
+                    if (Config.LOGD) Log.d(TAG, "handleChannelMessage " + nameUserHost + " is blacklisted");
                     displayText = "Did not add quote.";
                 } else {
-                    // Add the new quote
-                    long id = dbManager.insert(channel, message.origin.toFormattedString(), text.substring(text.indexOf(' ') + 1));
-                    switch ((int) id) {
-                        case DbManager.ERR_SQL_PROBLEM:
-                            displayText = "Could not add quote.";
-                            break;
-
-                        case DbManager.ERR_QUOTE_ALREADY_EXISTS:
-                            displayText = "This quote already exists!";
-                            break;
-
-                        default:
-                            displayText = "Quote #" + id + " added.";
-                            break;
-                    }
+                    // Add the new quote: reply once it is written, without holding the handler
+                    final Connection finalConnection = connection;
+                    final String finalChannel = channel;
+                    dbManager.insertAsync(channel, message.origin.toFormattedString(), text.substring(text.indexOf(' ') + 1)).whenComplete(
+                            new BiConsumer<Long, Throwable>() {
+                                @Override
+                                public void accept(Long id, Throwable t) {
+                                    String displayText;
+                                    if (t != null) {
+                                        Log.e(TAG, "handleChannelMessage Could not add quote", t);
+                                        displayText = "Could not add quote.";
+                                    } else if (id == DbManager.ERR_QUOTE_ALREADY_EXISTS) {
+                                        displayText = "This quote already exists!";
+                                    } else {
+                                        displayText = "Quote #" + id + " added.";
+                                    }
+                                    try {
+                                        finalConnection.send(Command.PRIVMSG, finalChannel, displayText);
+                                    } catch (IOException e) {
+                                        Log.w(TAG, "handleChannelMessage Could not send reply", e);
+                                    }
+                                }
+                            });
+                    return;
                 }
             }
         }
         connection.send(Command.PRIVMSG, channel, displayText);
     }
 
-    private DbManager getDbManager(String channel, HandlerContext handlerContext) {
-        DbManager res = mDbManagers.get(channel);
+    private static String getSearchDisplayText(DbManager dbManager, String channel, String query) {
+        Quote quote = dbManager.getQuote(channel, query);
+        if (quote == null) return "Could not find this quote.";
+        return getDisplayText(quote);
+    }
+
+    /**
+     * Render a quote as {@code "text" - date (#id)}.<br/>
+     * The result is cached in the quote itself, which is safe since quotes never change once inserted (a race only computes the same value twice).
+     */
+    private static String getDisplayText(Quote quote) {
+        String res = quote.displayText;
         if (res == null) {
-            QuoteHandlerConfig quoteHandlerConfig = (QuoteHandlerConfig) handlerContext.getHandlerConfig();
-            res = new DbManager(quoteHandlerConfig.getDbPath());
-            mDbManagers.put(channel, res);
+            StringBuilder sb = new StringBuilder(quote.text.length() + 24);
+            sb.append('"').append(quote.text).append("\" - ");
+            DATE_FORMATTER.formatTo(quote.date.toInstant(), sb);
+            sb.append(" (#").append(quote.id).append(')');
+            res = sb.toString();
+            quote.displayText = res;
         }
         return res;
     }
+
+    /**
+     * Only exactly {@code !quote stats}, {@code !quote stats top} and {@code !quote stats months}: anything else (e.g. {@code !quote stats foo}) is
+     * still a search or a new quote.
+     */
+    private static boolean isStatsCommand(List<String> textAsList) {
+        int size = textAsList.size();
+        if ((size != 2 && size != 3) || !textAsList.get(1).equals(STATS)) return false;
+        return size == 2 || textAsList.get(2).equals(STATS_TOP) || textAsList.get(2).equals(STATS_MONTHS);
+    }
+
+    private static String getStatsText(DbManager dbManager, String channel, String subCommand) {
+        if (subCommand == null) {
+            long count = dbManager.getCount(channel);
+            return count + (count == 1 ? " quote" : " quotes") + " in " + channel + ".";
+        }
+        List<DbManager.StatsEntry> statsEntries;
+        String title;
+        if (subCommand.equals(STATS_TOP)) {
+            statsEntries = dbManager.getTopNicknames(channel, STATS_TOP_COUNT);
+            title = "Top contributors: ";
+        } else {
+            statsEntries = dbManager.getCountPerMonth(channel, STATS_MONTH_COUNT);
+            title = "Quotes per month: ";
+        }
+        if (statsEntries.isEmpty()) return "No quotes currently in db.";
+        return title + StringUtils.join(statsEntries, ", ") + ".";
+    }
+
+    /**
+     * @return The db path of the quote handler of the given channel, or {@code null} if the channel has none.
+     */
+    private static String getDbPath(ClientConfig clientConfig, String channel) {
+        for (String configName : clientConfig.getChannelHandlerConfigNames(channel)) {
+            HandlerClassAndConfig handlerClassAndConfig = clientConfig.getHandlerConfig(configName);
+            if (handlerClassAndConfig.handlerClass == QuoteHandler.class) {
+                return ((QuoteHandlerConfig) handlerClassAndConfig.handlerConfig).getDbPath();
+            }
+        }
+        return null;
+    }
 }
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.jraf.irondad.handler.HandlerConfig;
+import org.jraf.irondad.util.BanMatcher;
 import org.json.JSONArray;
 
 public class QuoteHandlerConfig extends HandlerConfig {
@@ -43,6 +44,8 @@ public class QuoteHandlerConfig extends HandlerConfig {
         put(DB_PATH, dbPath);
     }
 
+    private volatile BanMatcher mBlackListMatcher = BanMatcher.EMPTY;
+
     public void setBlackList(JSONArray blackList) {
         put(BLACK_LIST, blackList);
     }
@@ -57,4 +60,25 @@ public class QuoteHandlerConfig extends HandlerConfig {
         }
         return res;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return The black list, compiled. It is compiled again only when the black list has changed since the previous call.
+     */
+    public BanMatcher getBlackListMatcher() {
+        BanMatcher res = mBlackListMatcher;
+        if (!isSameList(res.getExpressions(), optJSONArray(BLACK_LIST))) {
+            res = BanMatcher.compile(getBlackList());
+            mBlackListMatcher = res;
+        }
+        return res;
+    }
+
+    private static boolean isSameList(List<String> list, JSONArray jsonArray) {
+        int len = jsonArray == null ? 0 : jsonArray.length();
+        if (list.size() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (!list.get(i).equals(jsonArray.getString(i))) return false;
+        }
+        return true;
+    }
+}
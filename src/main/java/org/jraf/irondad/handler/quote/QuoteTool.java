@@ -0,0 +1,342 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.handler.quote;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import org.jraf.irondad.handler.quote.DbManager.Quote;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Command line tool to import quotes into, or export quotes from, a quote db.<br/>
+ * Two formats are supported, both with one quote per record and the fields {@code channel}, {@code date} (in ms since the epoch), {@code added_by}
+ * and {@code text}:
+ * <ul>
+ * <li>{@code ndjson}: one JSON object per line.</li>
+ * <li>{@code csv}: RFC 4180, with a header line.</li>
+ * </ul>
+ * Quotes are streamed, so files of any size can be used. Quotes that already exist in their channel are skipped when importing.
+ */
+public class QuoteTool {
+    private static final String FIELD_CHANNEL = "channel";
+    private static final String FIELD_DATE = "date";
+    private static final String FIELD_ADDED_BY = "added_by";
+    private static final String FIELD_TEXT = "text";
+    private static final String CSV_HEADER = FIELD_CHANNEL + "," + FIELD_DATE + "," + FIELD_ADDED_BY + "," + FIELD_TEXT;
+
+    private static void usage() {
+        System.err.println("Usage: QuoteTool <db path> import|export ndjson|csv [file]");
+        System.err.println("Without a file, reads from stdin or writes to stdout.");
+        System.exit(1);
+    }
+
+    public static void main(String[] av) throws Exception {
+        if (av.length < 3 || av.length > 4) usage();
+        String dbPath = av[0];
+        boolean isImport = "import".equals(av[1]);
+        if (!isImport && !"export".equals(av[1])) usage();
+        boolean isCsv = "csv".equals(av[2]);
+        if (!isCsv && !"ndjson".equals(av[2])) usage();
+        String file = av.length == 4 ? av[3] : null;
+
+        DbManager dbManager = DbManager.get(dbPath);
+        long start = System.currentTimeMillis();
+        try {
+            if (isImport) {
+                InputStream in = file == null ? System.in : new FileInputStream(file);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+                try {
+                    QuoteIterator quotes = isCsv ? new CsvQuoteIterator(reader) : new NdjsonQuoteIterator(reader);
+                    long added = dbManager.importQuotes(quotes);
+                    System.err.println("Imported " + added + " quotes out of " + quotes.getCount() + " (" + (quotes.getCount() - added)
+                            + " already existed) in " + (System.currentTimeMillis() - start) + " ms");
+                } finally {
+                    reader.close();
+                }
+            } else {
+                OutputStream out = file == null ? System.out : new FileOutputStream(file);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+                try {
+                    long count = export(dbManager, writer, isCsv);
+                    writer.flush();
+                    System.err.println("Exported " + count + " quotes in " + (System.currentTimeMillis() - start) + " ms");
+                } finally {
+                    if (file == null) {
+                        writer.flush();
+                    } else {
+                        writer.close();
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            dbManager.close();
+        }
+    }
+
+    private static long export(DbManager dbManager, final Writer writer, final boolean isCsv) throws IOException, SQLException {
+        if (isCsv) writer.write(CSV_HEADER + "\r\n");
+        final long[] count = { 0 };
+        dbManager.exportQuotes(new Consumer<Quote>() {
+            @Override
+            public void accept(Quote quote) {
+                try {
+                    if (isCsv) {
+                        writeCsvField(writer, quote.channel);
+                        writer.write(',');
+                        writer.write(String.valueOf(quote.date.getTime()));
+                        writer.write(',');
+                        writeCsvField(writer, quote.addedBy);
+                        writer.write(',');
+                        writeCsvField(writer, quote.text);
+                        writer.write("\r\n");
+                    } else {
+                        JSONObject jsonObject = new JSONObject();
+                        jsonObject.put(FIELD_CHANNEL, quote.channel);
+                        jsonObject.put(FIELD_DATE, quote.date.getTime());
+                        jsonObject.put(FIELD_ADDED_BY, quote.addedBy);
+                        jsonObject.put(FIELD_TEXT, quote.text);
+                        writer.write(jsonObject.toString());
+                        writer.write('\n');
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                needsQuotes = true;
+                break;
+            }
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+
+    /*
+     * Readers.
+     */
+
+    /**
+     * Reads the quotes one at a time. Invalid records are reported on stderr and skipped.
+     */
+    private abstract static class QuoteIterator implements Iterator<Quote> {
+        protected final BufferedReader mReader;
+        private Quote mNext;
+        private long mCount;
+        protected long mLineNumber;
+
+        QuoteIterator(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * @return The next quote, or {@code null} at the end of the input.
+         * @throws IllegalArgumentException If the record is invalid.
+         */
+        protected abstract Quote readQuote() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null) {
+                try {
+                    mNext = readQuote();
+                    if (mNext == null) return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Line " + mLineNumber + ": skipped (" + e.getMessage() + ")");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Quote next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Quote res = mNext;
+            mNext = null;
+            mCount++;
+            return res;
+        }
+
+        /**
+         * @return The number of valid quotes read so far.
+         */
+        long getCount() {
+            return mCount;
+        }
+
+        protected static Quote newQuote(String channel, String date, String addedBy, String text) {
+            if (channel == null || channel.isEmpty()) throw new IllegalArgumentException("no " + FIELD_CHANNEL);
+            if (text == null || text.isEmpty()) throw new IllegalArgumentException("no " + FIELD_TEXT);
+            Quote res = new Quote();
+            res.channel = channel;
+            try {
+                res.date = new Date(date == null || date.isEmpty() ? System.currentTimeMillis() : Long.parseLong(date));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid " + FIELD_DATE + ": " + date);
+            }
+            res.addedBy = addedBy == null ? "" : addedBy;
+            res.text = text;
+            return res;
+        }
+    }
+
+    private static class NdjsonQuoteIterator extends QuoteIterator {
+        NdjsonQuoteIterator(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        protected Quote readQuote() throws IOException {
+            String line;
+            do {
+                line = mReader.readLine();
+                if (line == null) return null;
+                mLineNumber++;
+            } while (line.trim().isEmpty());
+            JSONObject jsonObject;
+            try {
+                jsonObject = new JSONObject(line);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("invalid JSON: " + e.getMessage());
+            }
+            Object date = jsonObject.opt(FIELD_DATE);
+            return newQuote(jsonObject.optString(FIELD_CHANNEL, null), date == null ? null : date.toString(),
+                    jsonObject.optString(FIELD_ADDED_BY, null), jsonObject.optString(FIELD_TEXT, null));
+        }
+    }
+
+    private static class CsvQuoteIterator extends QuoteIterator {
+        private final String[] mFields = new String[4];
+        private final StringBuilder mField = new StringBuilder();
+        private boolean mHeaderSkipped;
+
+        CsvQuoteIterator(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        protected Quote readQuote() throws IOException {
+            if (!mHeaderSkipped) {
+                mHeaderSkipped = true;
+                if (readRecord() == -1) return null;
+            }
+            int fieldCount;
+            do {
+                fieldCount = readRecord();
+                if (fieldCount == -1) return null;
+                // Skip empty lines
+            } while (fieldCount == 1 && mFields[0].isEmpty());
+            if (fieldCount != 4) throw new IllegalArgumentException("expected 4 fields, got " + fieldCount);
+            return newQuote(mFields[0], mFields[1], mFields[2], mFields[3]);
+        }
+
+        /**
+         * Read one record (which can span several lines if a quoted field contains line breaks) into {@link #mFields}.
+         * 
+         * @return The number of fields of the record, or {@code -1} at the end of the input.
+         */
+        private int readRecord() throws IOException {
+            Reader reader = mReader;
+            int c = reader.read();
+            if (c == -1) return -1;
+            mLineNumber++;
+            int fieldCount = 0;
+            boolean quoted = false;
+            mField.setLength(0);
+            while (true) {
+                if (quoted) {
+                    if (c == -1) throw new IllegalArgumentException("unterminated quoted field");
+                    if (c == '"') {
+                        reader.mark(1);
+                        int next = reader.read();
+                        if (next == '"') {
+                            // Escaped quote
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            reader.reset();
+                        }
+                    } else {
+                        if (c == '\n') mLineNumber++;
+                        mField.append((char) c);
+                    }
+                } else if (c == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+                    if (fieldCount < mFields.length) mFields[fieldCount] = mField.toString();
+                    fieldCount++;
+                    mField.setLength(0);
+                    if (c != ',') {
+                        if (c == '\r') {
+                            reader.mark(1);
+                            if (reader.read() != '\n') reader.reset();
+                        }
+                        return fieldCount;
+                    }
+                } else {
+                    mField.append((char) c);
+                }
+                c = reader.read();
+            }
+        }
+    }
+}
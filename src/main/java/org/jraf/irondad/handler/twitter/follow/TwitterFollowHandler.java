@@ -28,8 +28,6 @@ package org.jraf.irondad.handler.twitter.follow;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.jraf.irondad.Config;
@@ -64,8 +62,7 @@ public class TwitterFollowHandler extends BaseHandler {
 
     @Override
     public void init(HandlerContext handlerContext) throws Exception {
-        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
-        scheduledExecutorService.scheduleAtFixedRate(new CheckForNewTweetsRunnable(handlerContext), 3, 3, TimeUnit.MINUTES);
+        handlerContext.getScheduler().scheduleAtFixedRate(new CheckForNewTweetsRunnable(handlerContext), 3, 3, TimeUnit.MINUTES);
     }
 
     @Override
@@ -26,36 +26,39 @@
 package org.jraf.irondad.handler.twitter.links;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jraf.irondad.Constants;
-import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.PatternHandler;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
 import org.jraf.irondad.util.Log;
+import org.jraf.irondad.util.SingleFlight;
 
 import twitter4j.Status;
 import twitter4j.Twitter;
 import twitter4j.TwitterFactory;
 import twitter4j.conf.ConfigurationBuilder;
 
-public class TwitterLinksHandler extends BaseHandler {
+public class TwitterLinksHandler extends PatternHandler {
     private static final String TAG = Constants.TAG + TwitterLinksHandler.class.getSimpleName();
 
-    private static final Pattern PATTERN_TWEET_ID = Pattern.compile("(.*twitter\\.com.*status/)([0-9]+)[^0-9]*.*", Pattern.CASE_INSENSITIVE);
-    private static final int PATTERN_TWEET_ID_GROUP = 2;
+    private static final Pattern PATTERN_TWEET_ID = Pattern.compile("(?:https?://)?(?:[a-z0-9\\-]+\\.)*twitter\\.com/\\S*?status/([0-9]+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final int PATTERN_TWEET_ID_GROUP = 1;
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
+    /**
+     * The same link is often pasted in several channels at once: only ask for it once.
+     */
+    private final SingleFlight<Long, Status> mStatusSingleFlight = new SingleFlight<Long, Status>();
 
     @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        String tweetId = getTweetId(text);
-        return tweetId != null;
+    protected Pattern getPattern() {
+        return PATTERN_TWEET_ID;
     }
 
     @Override
@@ -66,23 +69,25 @@ public class TwitterLinksHandler extends BaseHandler {
             // Text doesn't contain a twitter link: ignore
             return;
         }
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Status status = getTwitter(handlerContext).showStatus(Long.valueOf(tweetId));
-                    String tweetText = status.getText();
-                    connection.send(Command.PRIVMSG, channel, tweetText);
-                } catch (Exception e) {
-                    Log.w(TAG, "handleMessage" + tweetId, e);
+        try {
+            final Twitter twitter = getTwitter(handlerContext);
+            final long id = Long.valueOf(tweetId);
+            Status status = mStatusSingleFlight.get(id, new Callable<Status>() {
+                @Override
+                public Status call() throws Exception {
+                    return twitter.showStatus(id);
                 }
-            }
-        });
+            });
+            String tweetText = status.getText();
+            connection.send(Command.PRIVMSG, channel, tweetText);
+        } catch (Exception e) {
+            Log.w(TAG, "handleMessage" + tweetId, e);
+        }
     }
 
     private static String getTweetId(String text) {
         Matcher matcher = PATTERN_TWEET_ID.matcher(text);
-        if (!matcher.matches()) return null;
+        if (!matcher.find()) return null;
         return matcher.group(PATTERN_TWEET_ID_GROUP);
     }
 
@@ -26,7 +26,6 @@
  */
 package org.jraf.irondad.handler.wikipedia;
 
-import com.github.kevinsawicki.http.HttpRequest;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -38,6 +37,7 @@ import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -51,8 +51,6 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class WikipediaHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + WikipediaHandler.class.getSimpleName();
@@ -74,8 +72,6 @@ public class WikipediaHandler extends CommandHandler {
     private static final String REPLY_USAGE = "Usage: " + COMMAND + " keywords | " + COMMAND + " [fr/it/...] keywords | " + COMMAND + " help";
     private static final String REPLY_NO_MATCH = "No match";
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
-
     @Override
     protected String getCommand() {
         return COMMAND;
@@ -125,34 +121,29 @@ public class WikipediaHandler extends CommandHandler {
         param = URLEncoder.encode(param, "UTF-8");
 
         final String finalParam = param;
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    if (isUsage) {
-                        connection.send(Command.PRIVMSG, channel, REPLY_USAGE);
-                        return;
-                    }
-
-                    // First we query Google to get the right keywords
-                    String[] linkAndResourceName = queryGoogle(handlerContext, finalParam);
-                    // No keywords => no match
-                    if (linkAndResourceName == null) {
-                        connection.send(Command.PRIVMSG, channel, REPLY_NO_MATCH);
-                        return;
-                    }
-
-                    String link = linkAndResourceName[0];
-                    String keywords = linkAndResourceName[1];
-
-
-                    keywords = URLEncoder.encode(keywords, "UTF-8");
-                    connection.send(Command.PRIVMSG, channel, getResult(keywords, link, locale));
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
+        try {
+            if (isUsage) {
+                connection.send(Command.PRIVMSG, channel, REPLY_USAGE);
+                return;
+            }
+
+            // First we query Google to get the right keywords
+            String[] linkAndResourceName = queryGoogle(handlerContext, finalParam);
+            // No keywords => no match
+            if (linkAndResourceName == null) {
+                connection.send(Command.PRIVMSG, channel, REPLY_NO_MATCH);
+                return;
             }
-        });
+
+            String link = linkAndResourceName[0];
+            String keywords = linkAndResourceName[1];
+
+
+            keywords = URLEncoder.encode(keywords, "UTF-8");
+            connection.send(Command.PRIVMSG, channel, getResult(keywords, link, locale));
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
     private String[] queryGoogle(HandlerContext handlerContext, String searchTerms) throws IOException {
@@ -176,11 +167,11 @@ public class WikipediaHandler extends CommandHandler {
         return new String[]{link, resourceName};
     }
 
-    private static String getResult(String param, String url, String locale) {
+    private static String getResult(String param, String url, String locale) throws IOException {
         // Reconstruct wikipedia API url with the locale and keywords
         String wikiUrl = "https://" + locale + URL_HTML + param;
         if (Config.LOGD) Log.d(TAG, wikiUrl);
-        String jsonStr = HttpRequest.get(wikiUrl).body();
+        String jsonStr = HttpService.getDefault().getBody(wikiUrl);
         if (Config.LOGD) Log.d(TAG, jsonStr);
 
         JSONObject jsonRoot = new JSONObject(jsonStr);
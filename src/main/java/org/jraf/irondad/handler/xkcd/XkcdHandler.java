@@ -28,13 +28,12 @@ package org.jraf.irondad.handler.xkcd;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.CommandHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -43,18 +42,16 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
-import com.github.kevinsawicki.http.HttpRequest;
-
 public class XkcdHandler extends CommandHandler {
     private static final String TAG = Constants.TAG + XkcdHandler.class.getSimpleName();
 
     private static final String URL_HTML = "https://xkcd.com/";
     private static final String URL_HTML_RANDOM = "http://c.xkcd.com/random/comic/";
+    private static final long TTL_LATEST = 10 * 60 * 1000;
+    private static final long TTL_NUMBER = 24 * 60 * 60 * 1000;
 
     private static String mLastTitle;
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
-
     @Override
     protected String getCommand() {
         return "!xkcd";
@@ -70,33 +67,33 @@ public class XkcdHandler extends CommandHandler {
         } else {
             param = "";
         }
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    connection.send(Command.PRIVMSG, channel, getResult(param));
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String result = getResult(param);
+        try {
+            connection.send(Command.PRIVMSG, channel, result);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
-    private static String getResult(String param) {
+    private static String getResult(String param) throws IOException {
         if (param.equals("title")) {
             return mLastTitle;
         } else if (param.equals("help")) {
             return "Options: [random|number|title(displays the last comic title)|help]";
         }
         String url = URL_HTML;
+        long ttl = TTL_LATEST;
         if (param.equals("random")) {
             url = URL_HTML_RANDOM;
+            // Each request redirects to a different comic
+            ttl = HttpService.TTL_NONE;
         } else if (param.matches("^-?\\d+$")) {
             url = URL_HTML + param + "/";
+            // Published comics don't change
+            ttl = TTL_NUMBER;
         }
 
-        String html;
-        html = HttpRequest.get(url).body();
+        String html = HttpService.getDefault().getBody(url, ttl);
 
         Document doc = Jsoup.parse(html);
 
@@ -119,7 +116,7 @@ public class XkcdHandler extends CommandHandler {
         return "http:" + src;
     }
 
-    public static void main(String[] av) {
+    public static void main(String[] av) throws Exception {
         getResult("");
     }
 }
@@ -27,14 +27,13 @@ package org.jraf.irondad.handler.youtube;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.jraf.irondad.Constants;
-import org.jraf.irondad.handler.BaseHandler;
 import org.jraf.irondad.handler.HandlerContext;
+import org.jraf.irondad.handler.PatternHandler;
+import org.jraf.irondad.http.HttpService;
 import org.jraf.irondad.protocol.Command;
 import org.jraf.irondad.protocol.Connection;
 import org.jraf.irondad.protocol.Message;
@@ -42,23 +41,17 @@ import org.jraf.irondad.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.github.kevinsawicki.http.HttpRequest;
-import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
-
-public class YoutubeHandler extends BaseHandler {
+public class YoutubeHandler extends PatternHandler {
     private static final String TAG = Constants.TAG + YoutubeHandler.class.getSimpleName();
 
-    private static final Pattern PATTERN_VIDEO_ID = Pattern.compile("((.*youtube\\.com.*v=)|(.*youtu\\.be/))([a-zA-Z0-9_\\-]+)[^a-zA-Z0-9_\\-]*.*",
+    private static final Pattern PATTERN_VIDEO_ID = Pattern.compile("(?:https?://)?(?:[a-z0-9\\-]+\\.)*(?:youtube\\.com/\\S*?v=|youtu\\.be/)([a-z0-9_\\-]+)",
             Pattern.CASE_INSENSITIVE);
-    private static final int PATTERN_VIDEO_ID_GROUP = 4;
+    private static final int PATTERN_VIDEO_ID_GROUP = 1;
     private static final String URL_API_VIDEO = "http://gdata.youtube.com/feeds/api/videos/%s?alt=json&prettyprint=true";
 
-    private final ExecutorService mThreadPool = Executors.newCachedThreadPool();
-
     @Override
-    public boolean isMessageHandled(String channel, String fromNickname, String text, List<String> textAsList, Message message, HandlerContext handlerContext) {
-        String videoId = getVideoId(text);
-        return videoId != null;
+    protected Pattern getPattern() {
+        return PATTERN_VIDEO_ID;
     }
 
     @Override
@@ -69,31 +62,30 @@ public class YoutubeHandler extends BaseHandler {
             // Text doesn't contain a youtube link: ignore
             return;
         }
-        mThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                String uri = String.format(URL_API_VIDEO, videoId);
-                try {
-                    String jsonStr = HttpRequest.get(uri).body();
-                    JSONObject mainObject = new JSONObject(jsonStr);
-                    JSONObject entryObject = mainObject.getJSONObject("entry");
-                    JSONObject titleObject = entryObject.getJSONObject("title");
-                    String title = titleObject.getString("$t");
-                    connection.send(Command.PRIVMSG, channel, title);
-                } catch (HttpRequestException e) {
-                    Log.w(TAG, "handleMessage Could not get " + uri, e);
-                } catch (JSONException e) {
-                    Log.w(TAG, "handleMessage Could not parse json", e);
-                } catch (IOException e) {
-                    Log.e(TAG, "handleMessage Could not send to connection", e);
-                }
-            }
-        });
+        String uri = String.format(URL_API_VIDEO, videoId);
+        String jsonStr;
+        try {
+            jsonStr = HttpService.getDefault().getBody(uri);
+        } catch (IOException e) {
+            Log.w(TAG, "handleMessage Could not get " + uri, e);
+            return;
+        }
+        try {
+            JSONObject mainObject = new JSONObject(jsonStr);
+            JSONObject entryObject = mainObject.getJSONObject("entry");
+            JSONObject titleObject = entryObject.getJSONObject("title");
+            String title = titleObject.getString("$t");
+            connection.send(Command.PRIVMSG, channel, title);
+        } catch (JSONException e) {
+            Log.w(TAG, "handleMessage Could not parse json", e);
+        } catch (IOException e) {
+            Log.e(TAG, "handleMessage Could not send to connection", e);
+        }
     }
 
     private static String getVideoId(String text) {
         Matcher matcher = PATTERN_VIDEO_ID.matcher(text);
-        if (!matcher.matches()) return null;
+        if (!matcher.find()) return null;
         return matcher.group(PATTERN_VIDEO_ID_GROUP);
     }
 }
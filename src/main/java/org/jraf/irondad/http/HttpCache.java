@@ -0,0 +1,372 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.http.HttpService.Response;
+import org.jraf.irondad.util.Log;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Cache of the responses of {@link HttpService}, keyed by url.<br/>
+ * <ul>
+ * <li>Entries are kept in memory in an LRU cache bounded by size, and optionally also on disk, which survives restarts.</li>
+ * <li>How long an entry is fresh comes from {@code Cache-Control: max-age} or {@code Expires}, unless the caller gives its own ttl.
+ * {@code no-store} responses are never stored.</li>
+ * <li>Stale entries with an {@code ETag} or a {@code Last-Modified} are kept, so the next request can be conditional: a {@code 304} just makes
+ * them fresh again.</li>
+ * <li>Entries are written to disk in the background, by a single thread, so the threads of {@link HttpService} never wait for the disk.</li>
+ * </ul>
+ */
+class HttpCache {
+    private static final String TAG = Constants.TAG + HttpCache.class.getSimpleName();
+
+    private static final long MEMORY_SIZE_MAX = 8 * 1024 * 1024; // bytes (approximately)
+    private static final long DISK_SIZE_MAX = 64 * 1024 * 1024; // bytes
+    private static final int DISK_TRIM_INTERVAL = 100; // writes
+    private static final int DISK_FORMAT_VERSION = 1;
+    private static final String DISK_FILE_SUFFIX = ".cache";
+
+    private static final BiPredicate<String, String> ALL_HEADERS = new BiPredicate<String, String>() {
+        @Override
+        public boolean test(String name, String value) {
+            return true;
+        }
+    };
+
+    static class Entry {
+        final Response response;
+        final String eTag;
+        final String lastModified;
+        final long expiresAt;
+
+        Entry(Response response, String eTag, String lastModified, long expiresAt) {
+            this.response = response;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        boolean hasValidators() {
+            return eTag != null || lastModified != null;
+        }
+    }
+
+    private final Cache<String, Entry> mMemoryCache = CacheBuilder.newBuilder().maximumWeight(MEMORY_SIZE_MAX).weigher(new Weigher<String, Entry>() {
+        @Override
+        public int weigh(String url, Entry entry) {
+            return 2 * (url.length() + entry.response.body.length()) + 512;
+        }
+    }).build();
+
+    private final File mDirectory;
+
+    /**
+     * Writes to the disk, in order. {@code null} if there is no disk cache.
+     */
+    private final ExecutorService mDiskWriteExecutor;
+
+    /**
+     * Only accessed by {@link #mDiskWriteExecutor}.
+     */
+    private int mDiskWriteCount;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mRevalidatedCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param directory Where to store the entries on disk, or {@code null} to only keep them in memory.
+     */
+    HttpCache(File directory) {
+        mDirectory = directory;
+        if (mDirectory != null && !mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "HttpCache Could not create " + mDirectory + ", only caching in memory");
+        }
+        if (mDirectory == null) {
+            mDiskWriteExecutor = null;
+        } else {
+            mDiskWriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread res = new Thread(runnable, "irondad-http-cache");
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The entry for the given url, fresh or stale, or {@code null}.
+     */
+    Entry get(String url) {
+        Entry res = mMemoryCache.getIfPresent(url);
+        if (res == null && mDirectory != null) {
+            res = readFromDisk(url);
+            if (res != null) mMemoryCache.put(url, res);
+        }
+        return res;
+    }
+
+    /**
+     * Store the given successful response, if it can be.
+     *
+     * @param ttl How long the response is fresh, in ms, or {@link HttpService#TTL_DEFAULT} to use the response headers.
+     * @return The stored entry, or {@code null} if the response can't be stored.
+     */
+    Entry put(String url, Response response, long ttl) {
+        long now = System.currentTimeMillis();
+        String cacheControl = response.headers.firstValue("Cache-Control").orElse("").toLowerCase(Locale.ROOT);
+        if (cacheControl.contains("no-store") || "*".equals(response.headers.firstValue("Vary").orElse(null))) return null;
+        long expiresAt = ttl == HttpService.TTL_DEFAULT ? getExpiresAt(response.headers, cacheControl, now) : now + ttl;
+        Entry res = new Entry(response, response.headers.firstValue("ETag").orElse(null), response.headers.firstValue("Last-Modified").orElse(null),
+                expiresAt);
+        if (!res.isFresh(now) && !res.hasValidators()) return null;
+        put(url, res);
+        return res;
+    }
+
+    /**
+     * The server answered {@code 304 Not Modified} to a conditional request for the given entry: it is fresh again.
+     *
+     * @param headers The headers of the {@code 304} response.
+     */
+    Entry revalidate(String url, Entry entry, HttpHeaders headers, long ttl) {
+        long now = System.currentTimeMillis();
+        String cacheControl = headers.firstValue("Cache-Control").orElse("").toLowerCase(Locale.ROOT);
+        long expiresAt = ttl == HttpService.TTL_DEFAULT ? getExpiresAt(headers, cacheControl, now) : now + ttl;
+        String eTag = headers.firstValue("ETag").orElse(entry.eTag);
+        String lastModified = headers.firstValue("Last-Modified").orElse(entry.lastModified);
+        Entry res = new Entry(entry.response, eTag, lastModified, expiresAt);
+        put(url, res);
+        mRevalidatedCount.incrementAndGet();
+        return res;
+    }
+
+    private void put(final String url, final Entry entry) {
+        mMemoryCache.put(url, entry);
+        if (mDiskWriteExecutor == null) return;
+        mDiskWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(url, entry);
+            }
+        });
+    }
+
+    void countHit() {
+        mHitCount.incrementAndGet();
+    }
+
+    void countMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    private static long getExpiresAt(HttpHeaders headers, String cacheControl, long now) {
+        if (cacheControl.contains("no-cache")) return now;
+        int idx = cacheControl.indexOf("max-age=");
+        if (idx != -1) {
+            int start = idx + "max-age=".length();
+            int end = start;
+            while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) end++;
+            try {
+                long maxAge = Long.parseLong(cacheControl.substring(start, end));
+                long age = Long.parseLong(headers.firstValue("Age").orElse("0").trim());
+                return now + (maxAge - age) * 1000;
+            } catch (NumberFormatException e) {
+                return now;
+            }
+        }
+        String expires = headers.firstValue("Expires").orElse(null);
+        if (expires != null) {
+            try {
+                return ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // Invalid dates (typically "0" or "-1") mean already expired
+                return now;
+            }
+        }
+        return now;
+    }
+
+
+    /*
+     * Disk.
+     */
+
+    private File getFile(String url) {
+        return new File(mDirectory, Hashing.sha256().hashString(url, StandardCharsets.UTF_8).toString() + DISK_FILE_SUFFIX);
+    }
+
+    private Entry readFromDisk(String url) {
+        File file = getFile(url);
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != DISK_FORMAT_VERSION) return null;
+            // Different urls can't have the same hash in practice, but check anyway
+            if (!url.equals(in.readUTF())) return null;
+            URI uri = URI.create(in.readUTF());
+            int statusCode = in.readInt();
+            String eTag = readNullableUtf(in);
+            String lastModified = readNullableUtf(in);
+            long expiresAt = in.readLong();
+            int headerCount = in.readInt();
+            Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount; i++) {
+                String name = in.readUTF();
+                int valueCount = in.readInt();
+                List<String> values = new ArrayList<String>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(in.readUTF());
+                }
+                headers.put(name, values);
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            Response response = new Response(uri, statusCode, HttpHeaders.of(headers, ALL_HEADERS), new String(body, StandardCharsets.UTF_8));
+            return new Entry(response, eTag, lastModified, expiresAt);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "readFromDisk Could not read " + file + ", deleting it", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String url, Entry entry) {
+        File file = getFile(url);
+        File tmpFile = new File(mDirectory, file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(DISK_FORMAT_VERSION);
+                out.writeUTF(url);
+                out.writeUTF(entry.response.uri.toString());
+                out.writeInt(entry.response.statusCode);
+                writeNullableUtf(out, entry.eTag);
+                writeNullableUtf(out, entry.lastModified);
+                out.writeLong(entry.expiresAt);
+                Map<String, List<String>> headers = entry.response.headers.map();
+                out.writeInt(headers.size());
+                for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                    out.writeUTF(header.getKey());
+                    out.writeInt(header.getValue().size());
+                    for (String value : header.getValue()) {
+                        out.writeUTF(value);
+                    }
+                }
+                byte[] body = entry.response.body.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            // Atomically replace the previous file, so a concurrent read never sees a partial one
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "writeToDisk Could not write " + file, e);
+            tmpFile.delete();
+            return;
+        }
+        if (++mDiskWriteCount % DISK_TRIM_INTERVAL == 0) trimDisk();
+    }
+
+    private static String readNullableUtf(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUtf(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    /**
+     * Delete the least recently written files until the total size is under {@link #DISK_SIZE_MAX}.
+     */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= DISK_SIZE_MAX) return;
+        if (Config.LOGD) Log.d(TAG, "trimDisk size=" + size);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (size <= DISK_SIZE_MAX) break;
+            if (!file.getName().endsWith(DISK_FILE_SUFFIX)) continue;
+            long length = file.length();
+            if (file.delete()) size -= length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpCache{hits=" + mHitCount.get() + ", revalidated=" + mRevalidatedCount.get() + ", misses=" + mMissCount.get() + ", memoryEntries="
+                + mMemoryCache.size() + ", disk=" + (mDirectory != null) + "}";
+    }
+}
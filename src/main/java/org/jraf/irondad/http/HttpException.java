@@ -0,0 +1,53 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.http;
+
+import java.io.IOException;
+
+/**
+ * A request that could not be completed, or that got a response with an unexpected status code.
+ */
+public class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatusCode;
+
+    public HttpException(String message) {
+        this(message, -1);
+    }
+
+    public HttpException(String message, int statusCode) {
+        super(message);
+        mStatusCode = statusCode;
+    }
+
+    /**
+     * @return The status code of the response, or {@code -1} if there was no response.
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+}
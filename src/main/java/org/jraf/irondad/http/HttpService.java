@@ -0,0 +1,703 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.util.Log;
+import org.jraf.irondad.util.SingleFlight;
+
+/**
+ * HTTP client shared by the handlers.<br/>
+ * <ul>
+ * <li>Connections are kept alive and reused, and HTTP/2 is used when the server supports it.</li>
+ * <li>Responses are requested gzipped, and decoded with the charset given by the server (UTF-8 by default).</li>
+ * <li>Every request has a connect timeout, a timeout to get the response headers, and a total timeout.</li>
+ * <li>Bodies bigger than a few MB, compressed or not, make the request fail instead of being read in memory.</li>
+ * <li>The number of concurrent requests to the same host is capped. Requests over the cap are queued, and the queue is bounded too.</li>
+ * <li>Responses are cached (see {@link HttpCache}), in memory and on disk if the {@code irondad.http.cache.dir} system property is set. Callers can
+ * override how long a response is fresh.</li>
+ * </ul>
+ * This way a slow site only delays the requests to itself, and never holds more than a few connections.
+ */
+public class HttpService {
+    private static final String TAG = Constants.TAG + HttpService.class.getSimpleName();
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(15);
+    private static final long TOTAL_TIMEOUT = 30 * 1000; // ms
+    private static final int THREAD_COUNT = 4;
+    private static final int HOST_CONCURRENCY_MAX = 4;
+    private static final int HOST_QUEUE_SIZE_MAX = 32;
+    private static final int BODY_SIZE_MAX = 4 * 1024 * 1024; // bytes, once decompressed
+    private static final String USER_AGENT = "irondad";
+    private static final String HEAD_END_MARKER = "</head>";
+    private static final String HEAD_KEY_PREFIX = "head ";
+
+    /**
+     * How long a response is fresh is given by its {@code Cache-Control} or {@code Expires} headers.
+     */
+    public static final long TTL_DEFAULT = -1;
+
+    /**
+     * Don't use the cache at all: always get from the network, and don't store the response.
+     */
+    public static final long TTL_NONE = 0;
+
+    private static HttpService sDefault;
+
+    private final ExecutorService mExecutor;
+    private final HttpClient mHttpClient;
+    private final ConcurrentMap<String, HostLimiter> mHostLimiters = new ConcurrentHashMap<String, HostLimiter>();
+    private final HttpCache mHttpCache;
+    private final SingleFlight<String, Response> mSingleFlight = new SingleFlight<String, Response>();
+
+    public static class Response {
+        /**
+         * The uri of the response, which is different from the requested one if there were redirects.
+         */
+        public final URI uri;
+        public final int statusCode;
+        public final HttpHeaders headers;
+        public final String body;
+
+        public Response(URI uri, int statusCode, HttpHeaders headers, String body) {
+            this.uri = uri;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        @Override
+        public String toString() {
+            return "Response [uri=" + uri + ", statusCode=" + statusCode + ", body length=" + (body == null ? 0 : body.length()) + "]";
+        }
+    }
+
+    /**
+     * Requests to the same host: at most {@link #HOST_CONCURRENCY_MAX} run at the same time, the others wait in {@link #mPending}.
+     */
+    private static class HostLimiter {
+        private final String mHost;
+        private final Deque<Runnable> mPending = new ArrayDeque<Runnable>();
+        private int mActiveCount;
+        private boolean mRemoved;
+
+        private HostLimiter(String host) {
+            mHost = host;
+        }
+    }
+
+    /**
+     * Reads a body as it arrives, and stops reading it once it contains a given marker, or reached a given size.
+     */
+    private static class PrefixBodySubscriber implements BodySubscriber<String> {
+        private final CompletableFuture<String> mResult = new CompletableFuture<String>();
+        private final int mSizeMax;
+        private final byte[] mEndMarker;
+        private final Charset mCharset;
+        private Flow.Subscription mSubscription;
+        private byte[] mBytes = new byte[0];
+        private int mLength;
+        private boolean mDone;
+
+        /**
+         * @param sizeMax If {@code 0}, nothing is read and the result is {@code null}.
+         * @param endMarker Lowercase ascii marker, matched ignoring case.
+         */
+        private PrefixBodySubscriber(int sizeMax, String endMarker, Charset charset) {
+            mSizeMax = sizeMax;
+            mEndMarker = endMarker == null ? null : endMarker.getBytes(StandardCharsets.US_ASCII);
+            mCharset = charset;
+        }
+
+        @Override
+        public CompletionStage<String> getBody() {
+            return mResult;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            if (mSizeMax == 0) {
+                mDone = true;
+                subscription.cancel();
+                mResult.complete(null);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (mDone) return;
+            int previousLength = mLength;
+            for (ByteBuffer buffer : buffers) {
+                int count = Math.min(buffer.remaining(), mSizeMax - mLength);
+                if (mLength + count > mBytes.length) mBytes = Arrays.copyOf(mBytes, Math.min(mSizeMax, Math.max(mLength + count, mBytes.length * 2)));
+                buffer.get(mBytes, mLength, count);
+                mLength += count;
+                if (mLength == mSizeMax) break;
+            }
+            // The marker may straddle two chunks
+            int markerIndex = indexOfIgnoreCase(mBytes, mLength, mEndMarker, Math.max(0, previousLength - mEndMarker.length + 1));
+            if (markerIndex != -1) {
+                finish(markerIndex + mEndMarker.length);
+            } else if (mLength == mSizeMax) {
+                finish(mLength);
+            } else {
+                mSubscription.request(1);
+            }
+        }
+
+        private void finish(int length) {
+            mDone = true;
+            // Stop the download
+            mSubscription.cancel();
+            mResult.complete(new String(mBytes, 0, length, mCharset));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (mDone) return;
+            mDone = true;
+            mResult.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (mDone) return;
+            mDone = true;
+            mResult.complete(new String(mBytes, 0, mLength, mCharset));
+        }
+
+        private static int indexOfIgnoreCase(byte[] bytes, int length, byte[] marker, int from) {
+            outer:
+            for (int i = from; i <= length - marker.length; i++) {
+                for (int j = 0; j < marker.length; j++) {
+                    byte b = bytes[i + j];
+                    if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                    if (b != marker[j]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a whole body, but fails with an {@link HttpException} as soon as it is bigger than a given size.
+     */
+    private static class SizeLimitedBodySubscriber implements BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> mResult = new CompletableFuture<byte[]>();
+        private final int mSizeMax;
+        private Flow.Subscription mSubscription;
+        private ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream();
+        private boolean mDone;
+
+        private SizeLimitedBodySubscriber(int sizeMax) {
+            mSizeMax = sizeMax;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return mResult;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (mDone) return;
+            for (ByteBuffer buffer : buffers) {
+                if (mOutputStream.size() + buffer.remaining() > mSizeMax) {
+                    mDone = true;
+                    mOutputStream = null;
+                    // Stop the download
+                    mSubscription.cancel();
+                    mResult.completeExceptionally(new HttpException("Body bigger than " + mSizeMax + " bytes"));
+                    return;
+                }
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                mOutputStream.write(bytes, 0, bytes.length);
+            }
+            mSubscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (mDone) return;
+            mDone = true;
+            mOutputStream = null;
+            mResult.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (mDone) return;
+            mDone = true;
+            mResult.complete(mOutputStream.toByteArray());
+            mOutputStream = null;
+        }
+    }
+
+    private static final BodyHandler<String> BODY_HANDLER = new BodyHandler<String>() {
+        @Override
+        public BodySubscriber<String> apply(ResponseInfo responseInfo) {
+            final boolean gzip = "gzip".equalsIgnoreCase(responseInfo.headers().firstValue("Content-Encoding").orElse(""));
+            final Charset charset = getCharset(responseInfo.headers());
+            return BodySubscribers.mapping(new SizeLimitedBodySubscriber(BODY_SIZE_MAX), new Function<byte[], String>() {
+                @Override
+                public String apply(byte[] bytes) {
+                    if (gzip) {
+                        try {
+                            bytes = gunzip(bytes, BODY_SIZE_MAX);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    return new String(bytes, charset);
+                }
+            });
+        }
+    };
+
+    public HttpService() {
+        this(System.getProperty("irondad.http.cache.dir") == null ? null : new File(System.getProperty("irondad.http.cache.dir")));
+    }
+
+    /**
+     * @param cacheDirectory Where to store the cached responses on disk, or {@code null} to only cache them in memory.
+     */
+    public HttpService(File cacheDirectory) {
+        mHttpCache = new HttpCache(cacheDirectory);
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread res = new Thread(runnable, "irondad-http-" + mThreadNumber.incrementAndGet());
+                res.setDaemon(true);
+                return res;
+            }
+        });
+        mHttpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT).executor(mExecutor).build();
+    }
+
+    /**
+     * @return The service shared by all the handlers of the process.
+     */
+    public static synchronized HttpService getDefault() {
+        if (sDefault == null) sDefault = new HttpService();
+        return sDefault;
+    }
+
+    public CompletableFuture<Response> getAsync(String url) {
+        return getAsync(url, null, TTL_DEFAULT);
+    }
+
+    public CompletableFuture<Response> getAsync(String url, Map<String, String> headers) {
+        return getAsync(url, headers, TTL_DEFAULT);
+    }
+
+    /**
+     * Get the given url.<br/>
+     * The returned future completes on one of the threads of this service, so what is done when it completes should be quick.<br/>
+     * It completes exceptionally with an {@link IOException} if the request fails, but not if the response has an error status code.<br/>
+     * If a fresh response is in the cache, the returned future is already completed. If the same url (once normalized with {@link UrlNormalizer})
+     * is already being fetched, no new request is made and the returned future completes with the response of the one in flight.
+     *
+     * @param headers Additional request headers, can be {@code null}. They are not part of what identifies identical requests.
+     * @param ttl How long the response stays fresh in the cache, in ms, overriding its headers.<br/>
+     *            Can also be {@link #TTL_DEFAULT} or {@link #TTL_NONE}.
+     */
+    public CompletableFuture<Response> getAsync(final String url, final Map<String, String> headers, final long ttl) {
+        final URI uri;
+        try {
+            uri = UrlNormalizer.normalize(url);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Response> res = new CompletableFuture<Response>();
+            res.completeExceptionally(new HttpException("Invalid url " + url + ": " + e.getMessage()));
+            return res;
+        }
+        final String key = uri.toString();
+        if (ttl == TTL_NONE) {
+            // Not coalesced either: the caller wants a response of its own (for instance, a random page)
+            if (Config.LOGD) Log.d(TAG, "getAsync url=" + url);
+            return fetch(uri, key, headers, ttl, null, BODY_HANDLER);
+        }
+
+        final HttpCache.Entry cachedEntry = mHttpCache.get(key);
+        if (cachedEntry != null && cachedEntry.isFresh(System.currentTimeMillis())) {
+            if (Config.LOGD) Log.d(TAG, "getAsync url=" + url + " from cache");
+            mHttpCache.countHit();
+            return CompletableFuture.completedFuture(cachedEntry.response);
+        }
+        if (Config.LOGD) Log.d(TAG, "getAsync url=" + url + (cachedEntry == null ? "" : " (revalidating)"));
+        mHttpCache.countMiss();
+        return mSingleFlight.execute(key, new Supplier<CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> get() {
+                return fetch(uri, key, headers, ttl, cachedEntry, BODY_HANDLER);
+            }
+        });
+    }
+
+    /**
+     * Get the beginning of the given html page, up to its {@code </head>}, for instance to read its {@code <meta>} tags.<br/>
+     * The body is read as it arrives, and the download is stopped as soon as {@code </head>} is found or {@code sizeMax} bytes were read, so this
+     * costs at most {@code sizeMax} bytes of memory, whatever the size of the page.<br/>
+     * The {@code Content-Type} is checked before reading anything: if it isn't html (an image, a video...), the body of the response is
+     * {@code null} and nothing is downloaded. Its body is {@code null} too if its status code is not 2xx.<br/>
+     * These responses are not cached, but identical concurrent requests are coalesced.
+     */
+    public CompletableFuture<Response> getHtmlHeadAsync(String url, final int sizeMax) {
+        final URI uri;
+        try {
+            uri = UrlNormalizer.normalize(url);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Response> res = new CompletableFuture<Response>();
+            res.completeExceptionally(new HttpException("Invalid url " + url + ": " + e.getMessage()));
+            return res;
+        }
+        final String key = uri.toString();
+        if (Config.LOGD) Log.d(TAG, "getHtmlHeadAsync url=" + url);
+        final BodyHandler<String> bodyHandler = new BodyHandler<String>() {
+            @Override
+            public BodySubscriber<String> apply(ResponseInfo responseInfo) {
+                boolean successful = responseInfo.statusCode() >= 200 && responseInfo.statusCode() < 300;
+                String contentType = responseInfo.headers().firstValue("Content-Type").orElse("").toLowerCase(Locale.ROOT);
+                // No content type: let's hope it's html
+                boolean html = contentType.isEmpty() || contentType.startsWith("text/html") || contentType.startsWith("application/xhtml+xml");
+                if (!successful || !html) {
+                    if (Config.LOGD) Log.d(TAG, "getHtmlHeadAsync Not reading " + key + ": " + responseInfo.statusCode() + " " + contentType);
+                    return new PrefixBodySubscriber(0, null, null);
+                }
+                return new PrefixBodySubscriber(sizeMax, HEAD_END_MARKER, getCharset(responseInfo.headers()));
+            }
+        };
+        return mSingleFlight.execute(HEAD_KEY_PREFIX + key, new Supplier<CompletableFuture<Response>>() {
+            @Override
+            public CompletableFuture<Response> get() {
+                // Streaming a gzipped body would need to decompress it as it arrives: since only the beginning is read, it's not worth it
+                return fetch(uri, key, Collections.singletonMap("Accept-Encoding", "identity"), TTL_NONE, null, bodyHandler);
+            }
+        });
+    }
+
+    /**
+     * Make the request, when the per host cap allows it, and store the response in the cache.
+     *
+     * @param cachedEntry The stale entry for this url, to make a conditional request, or {@code null}.
+     * @param bodyHandler How to read the body.
+     */
+    private CompletableFuture<Response> fetch(URI uri, final String key, Map<String, String> headers, final long ttl,
+            final HttpCache.Entry cachedEntry, final BodyHandler<String> bodyHandler) {
+        final CompletableFuture<Response> res = new CompletableFuture<Response>();
+        final HttpRequest request;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(READ_TIMEOUT).header("User-Agent", USER_AGENT)
+                    .header("Accept-Encoding", "gzip");
+            if (cachedEntry != null) {
+                // Conditional request: if the resource didn't change, the server answers 304 with no body
+                if (cachedEntry.eTag != null) builder.header("If-None-Match", cachedEntry.eTag);
+                if (cachedEntry.lastModified != null) builder.header("If-Modified-Since", cachedEntry.lastModified);
+            }
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    builder.setHeader(header.getKey(), header.getValue());
+                }
+            }
+            request = builder.GET().build();
+        } catch (IllegalArgumentException e) {
+            // Typically an unsupported scheme, or an invalid header
+            res.completeExceptionally(new HttpException("Invalid url " + key + ": " + e.getMessage()));
+            return res;
+        }
+
+        final String host = uri.getHost();
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                final CompletableFuture<HttpResponse<String>> responseFuture;
+                try {
+                    responseFuture = mHttpClient.sendAsync(request, bodyHandler);
+                } catch (RuntimeException e) {
+                    release(host);
+                    res.completeExceptionally(toIOException(e));
+                    return;
+                }
+                // Release the host slot when the exchange itself is over, not when we stop waiting for it
+                responseFuture.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+                    @Override
+                    public void accept(HttpResponse<String> response, Throwable t) {
+                        release(host);
+                    }
+                });
+                // Time out a copy: orTimeout completes the future it is called on, which would make it impossible to cancel the exchange
+                responseFuture.copy().orTimeout(TOTAL_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+                            @Override
+                            public void accept(HttpResponse<String> response, Throwable t) {
+                                if (t instanceof TimeoutException) {
+                                    // Abort the exchange, which also releases the host slot
+                                    responseFuture.cancel(true);
+                                }
+                                if (t != null) {
+                                    IOException e = toIOException(t);
+                                    if (Config.LOGD) Log.d(TAG, "fetch Could not get " + key + ": " + e);
+                                    res.completeExceptionally(e);
+                                } else if (cachedEntry != null && response.statusCode() == 304) {
+                                    res.complete(mHttpCache.revalidate(key, cachedEntry, response.headers(), ttl).response);
+                                } else {
+                                    Response result = new Response(response.uri(), response.statusCode(), response.headers(), response.body());
+                                    // Only store redirected responses under the requested url if the caller gave a ttl: the redirect may not always
+                                    // go to the same place
+                                    if (ttl != TTL_NONE && result.statusCode == 200 && (ttl > 0 || result.uri.equals(request.uri()))) {
+                                        mHttpCache.put(key, result, ttl);
+                                    }
+                                    res.complete(result);
+                                }
+                            }
+                        });
+            }
+        };
+        if (!acquire(host, send)) {
+            Log.w(TAG, "fetch Too many pending requests to " + host + ", not getting " + key);
+            res.completeExceptionally(new HttpException("Too many pending requests to " + host));
+        }
+        return res;
+    }
+
+    /**
+     * Get the given url, and wait for the response.
+     *
+     * @return The response, even if its status code is an error.
+     * @throws IOException If the request failed.
+     */
+    public Response get(String url, Map<String, String> headers, long ttl) throws IOException {
+        try {
+            return getAsync(url, headers, ttl).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while getting " + url);
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        }
+    }
+
+    public String getBody(String url) throws IOException {
+        return getBody(url, null, TTL_DEFAULT);
+    }
+
+    public String getBody(String url, long ttl) throws IOException {
+        return getBody(url, null, ttl);
+    }
+
+    public String getBody(String url, Map<String, String> headers) throws IOException {
+        return getBody(url, headers, TTL_DEFAULT);
+    }
+
+    /**
+     * Get the given url, and wait for the response.
+     *
+     * @param headers Additional request headers, can be {@code null}.
+     * @param ttl See {@link #getAsync(String, Map, long)}.
+     * @return The body of the response.
+     * @throws HttpException If the response doesn't have a 2xx status code.
+     * @throws IOException If the request failed.
+     */
+    public String getBody(String url, Map<String, String> headers, long ttl) throws IOException {
+        Response response = get(url, headers, ttl);
+        if (!response.isSuccessful()) throw new HttpException("Got " + response.statusCode + " for " + url, response.statusCode);
+        return response.body;
+    }
+
+    /**
+     * Start the given request now if the host is under the cap, or else queue it.
+     *
+     * @return {@code false} if the request was rejected because too many requests to this host are pending.
+     */
+    private boolean acquire(String host, Runnable send) {
+        while (true) {
+            HostLimiter hostLimiter = mHostLimiters.get(host);
+            if (hostLimiter == null) {
+                mHostLimiters.putIfAbsent(host, new HostLimiter(host));
+                continue;
+            }
+            synchronized (hostLimiter) {
+                if (hostLimiter.mRemoved) continue;
+                if (hostLimiter.mActiveCount >= HOST_CONCURRENCY_MAX) {
+                    if (hostLimiter.mPending.size() >= HOST_QUEUE_SIZE_MAX) return false;
+                    hostLimiter.mPending.addLast(send);
+                    return true;
+                }
+                hostLimiter.mActiveCount++;
+            }
+            send.run();
+            return true;
+        }
+    }
+
+    /**
+     * A request to the given host is done: start the next pending one, if any.
+     */
+    private void release(String host) {
+        // The limiter can't have been removed since it has at least one active request
+        HostLimiter hostLimiter = mHostLimiters.get(host);
+        Runnable next;
+        synchronized (hostLimiter) {
+            next = hostLimiter.mPending.pollFirst();
+            if (next == null) {
+                hostLimiter.mActiveCount--;
+                if (hostLimiter.mActiveCount == 0) {
+                    // Idle: forget about this host, a new limiter will be created if needed
+                    hostLimiter.mRemoved = true;
+                    mHostLimiters.remove(hostLimiter.mHost, hostLimiter);
+                }
+                return;
+            }
+        }
+        next.run();
+    }
+
+    private static IOException toIOException(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException || t instanceof UncheckedIOException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof IOException) return (IOException) t;
+        if (t instanceof TimeoutException) return new HttpTimeoutException("Timed out after " + TOTAL_TIMEOUT + "ms");
+        return new IOException(t);
+    }
+
+    private static Charset getCharset(HttpHeaders headers) {
+        String contentType = headers.firstValue("Content-Type").orElse(null);
+        if (contentType == null) return StandardCharsets.UTF_8;
+        int idx = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (idx == -1) return StandardCharsets.UTF_8;
+        String charsetName = contentType.substring(idx + "charset=".length());
+        int end = charsetName.indexOf(';');
+        if (end != -1) charsetName = charsetName.substring(0, end);
+        charsetName = charsetName.trim().replace("\"", "");
+        try {
+            return Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            if (Config.LOGD) Log.d(TAG, "getCharset Unknown charset " + charsetName);
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * @throws HttpException If the decompressed bytes are bigger than {@code sizeMax}.
+     */
+    private static byte[] gunzip(byte[] bytes, int sizeMax) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) Math.min(sizeMax, bytes.length * 4L));
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                if (outputStream.size() + len > sizeMax) throw new HttpException("Decompressed body bigger than " + sizeMax + " bytes");
+                outputStream.write(buffer, 0, len);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * @return Hit, revalidation and miss counts of the response cache.
+     */
+    public String getCacheStats() {
+        return mHttpCache.toString();
+    }
+
+    /**
+     * @return How many requests were not made because an identical one was already in flight.
+     */
+    public long getCoalescedCount() {
+        return mSingleFlight.getCoalescedCount();
+    }
+
+    public void shutdown() {
+        if (Config.LOGD) Log.d(TAG, "shutdown");
+        mExecutor.shutdown();
+    }
+}
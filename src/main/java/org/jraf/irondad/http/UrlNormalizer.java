@@ -0,0 +1,107 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.http;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns the different ways of writing the same url into one, so it can be used as a key (caches, coalescing of identical requests):
+ * <ul>
+ * <li>the scheme and host are lowercased, and the default port is removed,</li>
+ * <li>an empty path becomes {@code /},</li>
+ * <li>tracking parameters ({@code utm_*}, {@code fbclid}...) are removed from the query,</li>
+ * <li>the fragment is removed, since it is not sent to the server anyway.</li>
+ * </ul>
+ * The order of the query parameters is kept, since some servers care about it.
+ */
+public class UrlNormalizer {
+    private static final Set<String> TRACKING_PARAMETERS = new HashSet<String>(
+            Arrays.asList("fbclid", "gclid", "dclid", "mc_cid", "mc_eid", "igshid"));
+    private static final String TRACKING_PARAMETER_PREFIX = "utm_";
+
+    private UrlNormalizer() {}
+
+    /**
+     * @throws IllegalArgumentException If the given url is invalid, or has no host.
+     */
+    public static URI normalize(String url) {
+        URI uri = toUri(url);
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(scheme).append("://");
+        if (uri.getRawUserInfo() != null) sb.append(uri.getRawUserInfo()).append('@');
+        sb.append(uri.getHost().toLowerCase(Locale.ROOT));
+        int port = uri.getPort();
+        boolean defaultPort = port == 80 && scheme.equals("http") || port == 443 && scheme.equals("https");
+        if (port != -1 && !defaultPort) sb.append(':').append(port);
+        String path = uri.getRawPath();
+        sb.append(path == null || path.isEmpty() ? "/" : path);
+        String query = removeTrackingParameters(uri.getRawQuery());
+        if (query != null) sb.append('?').append(query);
+        return URI.create(sb.toString());
+    }
+
+    /**
+     * Urls found in messages are not always valid {@link URI}s (spaces, non ascii characters...): in that case, let {@link URI} quote them.
+     */
+    private static URI toUri(String url) {
+        URI res;
+        try {
+            res = new URI(url);
+        } catch (URISyntaxException e) {
+            try {
+                URL parsedUrl = new URL(url);
+                res = new URI(parsedUrl.getProtocol(), parsedUrl.getUserInfo(), parsedUrl.getHost(), parsedUrl.getPort(), parsedUrl.getPath(),
+                        parsedUrl.getQuery(), parsedUrl.getRef());
+            } catch (MalformedURLException | URISyntaxException e2) {
+                throw new IllegalArgumentException(e2.getMessage(), e2);
+            }
+        }
+        if (res.getScheme() == null || res.getHost() == null) throw new IllegalArgumentException("No scheme or host");
+        return res;
+    }
+
+    private static String removeTrackingParameters(String query) {
+        if (query == null || query.isEmpty()) return null;
+        StringBuilder res = new StringBuilder(query.length());
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) continue;
+            int idx = parameter.indexOf('=');
+            String name = (idx == -1 ? parameter : parameter.substring(0, idx)).toLowerCase(Locale.ROOT);
+            if (name.startsWith(TRACKING_PARAMETER_PREFIX) || TRACKING_PARAMETERS.contains(name)) continue;
+            if (res.length() > 0) res.append('&');
+            res.append(parameter);
+        }
+        return res.length() == 0 ? null : res.toString();
+    }
+}
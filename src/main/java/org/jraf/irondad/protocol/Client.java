@@ -26,15 +26,18 @@
 package org.jraf.irondad.protocol;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.handler.HandlerManager;
+import org.jraf.irondad.protocol.ClientConfig.ServerAddress;
 import org.jraf.irondad.util.Log;
 
 public class Client {
@@ -42,101 +45,191 @@ public class Client {
 
     private static final String ABOUT = Constants.PROJECT_FULL_NAME + " " + Constants.VERSION_NAME + " - " + Constants.PROJECT_URL;
 
-    private static final int READ_TIMEOUT = 5 * 60 * 1000; // ms
-
     private ClientConfig mClientConfig;
-    private Connection mConnection;
+    private final ClientRuntime mClientRuntime;
+    private final ScheduledExecutorService mScheduler;
+    private volatile Connection mConnection;
     private int mAlternateNickCounter;
-    private String mCurrentNickname;
-    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(4);
-    private boolean mRegistered;
+    private volatile String mCurrentNickname;
+    private volatile boolean mRegistered;
+    private volatile boolean mStarted;
     private volatile boolean mStopRequested;
+    private final CountDownLatch mStoppedLatch = new CountDownLatch(1);
+    private ScheduledFuture<?> mConnectFuture;
+
+    /**
+     * {@code true} while a connection attempt is scheduled but not started, so that a failure seen both by the attempt and by the event loop
+     * only schedules one reconnection. Guarded by this.
+     */
+    private boolean mConnectPending;
     private HandlerManager mHandlerManager;
-    private boolean mJoinChannelsScheduled;
+    private ScheduledFuture<?> mJoinChannelsFuture;
+    private final ReconnectPolicy mReconnectPolicy;
 
     public Client(ClientConfig clientConfig) {
+        this(clientConfig, ClientRuntime.getDefault());
+    }
+
+    /**
+     * @param clientRuntime The event loop, executors and handlers of this client. It can be shared with other clients.
+     */
+    public Client(ClientConfig clientConfig, ClientRuntime clientRuntime) {
         mClientConfig = clientConfig;
-        mHandlerManager = new HandlerManager(clientConfig);
+        mClientRuntime = clientRuntime;
+        mScheduler = clientRuntime.getClientScheduler();
+        mHandlerManager = new HandlerManager(clientConfig, clientRuntime);
+        mReconnectPolicy = new ReconnectPolicy(clientConfig);
     }
 
+    /**
+     * Start this client, and wait until it is stopped.
+     */
     public void startMainLoop() {
         if (Config.LOGD) Log.d(TAG, "startMainLoop");
-        while (true) {
-            try {
-                mRegistered = false;
-                connectAndStartReceiveLoop();
-            } catch (IOException e) {
-                Log.e(TAG, "startMainLoop Exception caught in connectAndStartReceiveLoop", e);
-            }
-
-            // Testing end of loop before waiting
-            if (mStopRequested) {
-                if (Config.LOGD) Log.d(TAG, "startMainLoop Exiting from main loop");
-                return;
-            }
-
-            if (Config.LOGD) Log.d(TAG, "startMainLoop Waiting a bit before retrying...");
-            try {
-                Thread.sleep(30000);
-            } catch (InterruptedException e) {}
+        start();
+        try {
+            mStoppedLatch.await();
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+        }
+        if (Config.LOGD) Log.d(TAG, "startMainLoop Exiting from main loop");
+    }
 
+    /**
+     * Connect in the background, and reconnect whenever the connection is lost, until {@link #stop()} is called.<br/>
+     * Attempts go to the servers of the {@link ClientConfig} in turn, with a growing delay between them (see
+     * {@link ClientConfig#setReconnectDelay(long, long)}).<br/>
+     * No thread is dedicated to this client: connecting is done on the client scheduler of the runtime, and the I/O on its event loop.
+     */
+    public synchronized void start() {
+        if (Config.LOGD) Log.d(TAG, "start");
+        if (mStarted) return;
+        mStarted = true;
+        scheduleConnect(0);
+    }
 
-            // Testing end of loop after waiting
-            if (mStopRequested) {
-                if (Config.LOGD) Log.d(TAG, "startMainLoop Exiting from main loop");
-                return;
-            }
+    private synchronized void scheduleConnect(long delay) {
+        if (mStopRequested) {
+            mStoppedLatch.countDown();
+            return;
         }
+        if (mConnectPending) {
+            if (Config.LOGD) Log.d(TAG, "scheduleConnect A connection attempt is already scheduled");
+            return;
+        }
+        if (delay > 0) {
+            if (Config.LOGD) Log.d(TAG, "scheduleConnect Waiting " + delay + " ms before retrying...");
+        }
+        mConnectPending = true;
+        mConnectFuture = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Client.this) {
+                    mConnectPending = false;
+                    // Forget the previous connection: if it closes only now, it must not schedule another attempt
+                    mConnection = null;
+                }
+                try {
+                    mRegistered = false;
+                    connectAndRegister();
+                } catch (IOException e) {
+                    Log.e(TAG, "scheduleConnect Could not connect", e);
+                    // Don't leave a half registered connection behind
+                    Connection connection = mConnection;
+                    if (connection != null) connection.close();
+                    scheduleReconnect();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void scheduleReconnect() {
+        scheduleConnect(mStopRequested ? 0 : mReconnectPolicy.nextDelay());
     }
 
     public synchronized void stop() {
         if (Config.LOGD) Log.d(TAG, "stop");
         mStopRequested = true;
-        if (mConnection != null) {
+        if (mConnectFuture != null) mConnectFuture.cancel(false);
+        if (mJoinChannelsFuture != null) mJoinChannelsFuture.cancel(false);
+        Connection connection = mConnection;
+        if (connection != null && !connection.isClosed()) {
             try {
-                send(Command.QUIT, ABOUT);
+                connection.send(Command.QUIT, ABOUT);
+                // mStoppedLatch will be released when the server closes the connection
+                return;
             } catch (IOException e) {
                 Log.w(TAG, "stop Could not send QUIT", e);
             }
         }
+        mStoppedLatch.countDown();
+    }
+
+    /**
+     * Wait until this client is stopped.
+     */
+    public void awaitStop() throws InterruptedException {
+        mStoppedLatch.await();
     }
 
+    /**
+     * Connect and wait until the connection is closed. Does not reconnect.
+     */
     public void connectAndStartReceiveLoop() throws IOException {
         if (Config.LOGD) Log.d(TAG, "connectAndStartReceiveLoop");
+        connectAndRegister();
+        try {
+            startReceiveLoop();
+        } catch (IOException e) {
+            Log.w(TAG, "connectAndStartReceiveLoop Exception caught in receive loop", e);
+            throw e;
+        }
+    }
 
-        Socket socket;
+    private void connectAndRegister() throws IOException {
+        if (Config.LOGD) Log.d(TAG, "connectAndRegister");
+        mHandlerManager.onConnectionStateChanged(ConnectionState.CONNECTING);
+        SocketChannel channel;
         try {
-            socket = connect();
+            channel = connect();
         } catch (IOException e) {
-            Log.w(TAG, "connectAndStartReceiveLoop Could not connect", e);
+            Log.w(TAG, "connectAndRegister Could not connect", e);
             throw e;
         }
         try {
-            mConnection = new Connection(this, socket);
+            mConnection = new Connection(this, channel, mClientRuntime.getEventLoop());
         } catch (IOException e) {
-            Log.w(TAG, "connectAndStartReceiveLoop Could not create connection from socket", e);
+            Log.w(TAG, "connectAndRegister Could not create connection from channel", e);
+            channel.close();
             throw e;
         }
+        mConnection.setPingInterval(mClientConfig.getPingInterval(), mClientConfig.getPingTimeout());
         mHandlerManager.setConnection(mConnection);
+        mConnection.start();
         try {
             register();
         } catch (IOException e) {
-            Log.w(TAG, "connectAndStartReceiveLoop Could not register", e);
+            Log.w(TAG, "connectAndRegister Could not register", e);
             throw e;
         }
+    }
+
+    private SocketChannel connect() throws IOException {
+        ServerAddress server;
+        synchronized (this) {
+            server = mReconnectPolicy.nextServer();
+        }
+        if (Config.LOGD) Log.d(TAG, "connect server=" + server);
+        SocketChannel channel = SocketChannel.open();
         try {
-            startReceiveLoop();
+            // Connect in blocking mode, so the timeout applies; the connection switches to non blocking mode afterwards
+            channel.socket().connect(new InetSocketAddress(server.host, server.port), mClientConfig.getConnectTimeout());
         } catch (IOException e) {
-            Log.w(TAG, "connectAndStartReceiveLoop Exception caught in receive loop", e);
+            channel.close();
             throw e;
         }
-    }
-
-    private Socket connect() throws IOException {
-        if (Config.LOGD) Log.d(TAG, "connect");
-        Socket socket = new Socket(mClientConfig.getHost(), mClientConfig.getPort());
-        socket.setSoTimeout(READ_TIMEOUT);
-        return socket;
+        return channel;
     }
 
     private void register() throws IOException {
@@ -177,34 +270,59 @@ public class Client {
         }
     }
 
+    /**
+     * Wait until the connection is closed. The messages themselves are received on the event loop thread (see {@link #onMessageReceived}).
+     */
     private void startReceiveLoop() throws IOException {
         if (Config.LOGD) Log.d(TAG, "startReceiveLoop");
-        while (true) {
-            // Testing end of loop before receiving
+        try {
+            mConnection.awaitClose();
+        } catch (IOException e) {
             if (mStopRequested) {
+                // Expected: the server closes the connection after a QUIT
                 if (Config.LOGD) Log.d(TAG, "startReceiveLoop Exiting from receive loop");
                 return;
             }
+            throw e;
+        }
+        if (Config.LOGD) Log.d(TAG, "startReceiveLoop Exiting from receive loop");
+    }
 
-            Message message = receive();
-
-            // Testing end of loop after receiving
-            if (mStopRequested) {
-                if (Config.LOGD) Log.d(TAG, "startReceiveLoop Exiting from receive loop");
-                return;
-            }
+    /**
+     * Called by the {@link Connection} on the event loop thread, once it is closed.
+     */
+    void onConnectionClosed(Connection connection) {
+        if (connection != mConnection) return;
+        mHandlerManager.onConnectionStateChanged(ConnectionState.DISCONNECTED);
+        if (!mStarted) return;
+        scheduleReconnect();
+    }
 
-            if (message == null) {
-                throw new IOException("startReceiveLoop Received null message");
-            }
-            handleMessage(message);
+    /**
+     * Called by the {@link Connection} on the event loop thread.
+     */
+    void onMessageReceived(Connection connection, RawMessage message) throws IOException {
+        if (connection != mConnection) return;
+        if (mStopRequested) {
+            connection.close();
+            return;
         }
+        handleMessage(message);
     }
 
-    protected void handleMessage(Message message) throws IOException {
-        switch (message.command) {
+    /**
+     * @param message Only valid during this call.
+     */
+    protected void handleMessage(RawMessage message) throws IOException {
+        switch (message.getCommand()) {
             case RPL_WELCOME:
                 mRegistered = true;
+                synchronized (this) {
+                    mReconnectPolicy.reset();
+                }
+                mHandlerManager.onConnectionStateChanged(ConnectionState.CONNECTED);
+                // Join right away after each (re)connection; the periodic join is only a safety net (e.g. after a kick)
+                joinChannels();
                 scheduleJoinChannels();
                 break;
 
@@ -219,7 +337,7 @@ public class Client {
                 break;
 
             case PING:
-                send(Command.PONG, message.parameters);
+                send(Command.PONG, message.getParameters());
                 break;
 
             case PRIVMSG:
@@ -227,17 +345,16 @@ public class Client {
                 break;
 
             case PART:
-                send(Command.NAMES, message.parameters.get(0));
+                send(Command.NAMES, message.getParameter(0));
                 break;
         }
     }
 
 
-    private void scheduleJoinChannels() {
+    private synchronized void scheduleJoinChannels() {
         if (Config.LOGD) Log.d(TAG, "scheduleJoinChannels Scheduling to join channels every 5 minutes");
-        if (mJoinChannelsScheduled) return;
-        mJoinChannelsScheduled = true;
-        mScheduler.scheduleWithFixedDelay(new Runnable() {
+        if (mJoinChannelsFuture != null || mStopRequested) return;
+        mJoinChannelsFuture = mScheduler.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -246,13 +363,13 @@ public class Client {
                     Log.w(TAG, "scheduleJoinChannels Could not join channels", e);
                 }
             }
-        }, 0, 5 * 60, TimeUnit.SECONDS);
+        }, 5 * 60, 5 * 60, TimeUnit.SECONDS);
     }
 
-    private void gainOpIfNecessary(Message message) {
+    private void gainOpIfNecessary(RawMessage message) {
         if (Config.LOGD) Log.d(TAG, "gainOp message=" + message);
-        String channel = message.parameters.get(2);
-        String namesStr = message.parameters.get(3);
+        String channel = message.getParameter(2);
+        String namesStr = message.getParameter(3);
         String[] names = namesStr.split(" ");
         if (names.length == 1 && names[0].equals(mCurrentNickname)) {
             if (Config.LOGD) Log.d(TAG, "gainOp Only user on the chan: gaining op");
@@ -265,7 +382,9 @@ public class Client {
         }
     }
 
-    private void handlePrivmsg(Message message) {
+    private void handlePrivmsg(RawMessage rawMessage) {
+        // Handlers may keep the message: make a copy
+        Message message = rawMessage.toMessage();
         if (Config.LOGD) Log.d(TAG, "handlePrivmsg message=" + message);
         String dest = message.parameters.get(0);
         String channel = dest.startsWith("#") ? dest : null;
@@ -280,18 +399,27 @@ public class Client {
      */
 
     private void send(Command command, List<String> params) throws IOException {
-        mConnection.send(command, params);
+        getConnection().send(command, params);
     }
 
     private void send(Command command, String... params) throws IOException {
-        mConnection.send(command, params);
+        getConnection().send(command, params);
     }
 
-    private Message receive() throws IOException {
-        return mConnection.receive();
+    /**
+     * @throws IOException If there is no connection, which is the case while (re)connecting.
+     */
+    private Connection getConnection() throws IOException {
+        Connection res = mConnection;
+        if (res == null) throw new IOException("Not connected");
+        return res;
     }
 
     public ClientConfig getClientConfig() {
         return mClientConfig;
     }
+
+    public ClientRuntime getClientRuntime() {
+        return mClientRuntime;
+    }
 }
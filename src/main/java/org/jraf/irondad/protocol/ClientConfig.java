@@ -26,6 +26,7 @@
 package org.jraf.irondad.protocol;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -34,6 +35,7 @@ import java.util.Set;
 
 import org.jraf.irondad.handler.Handler;
 import org.jraf.irondad.handler.HandlerConfig;
+import org.jraf.irondad.util.BanMatcher;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
@@ -44,10 +46,60 @@ public class ClientConfig {
         public HandlerConfig handlerConfig;
     }
 
+    public static class ServerAddress {
+        public final String host;
+        public final int port;
+
+        public ServerAddress(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Once {@code messageCountMax} messages have been handled within {@code period} ms, the following ones are ignored for
+     * {@code pauseDuration} ms.
+     */
+    public static class FloodLimit {
+        public final int messageCountMax;
+        public final long period;
+        public final long pauseDuration;
+
+        public FloodLimit(int messageCountMax, long period, long pauseDuration) {
+            if (messageCountMax < 1) throw new IllegalArgumentException("messageCountMax must be at least 1");
+            this.messageCountMax = messageCountMax;
+            this.period = period;
+            this.pauseDuration = pauseDuration;
+        }
+
+        @Override
+        public String toString() {
+            return messageCountMax + " in " + period + " ms, pause " + pauseDuration + " ms";
+        }
+    }
+
+    // No more than 5 messages in 20 seconds
+    private static final FloodLimit DEFAULT_FLOOD_LIMIT = new FloodLimit(5, 20 * 1000, 2 * 60 * 1000);
+
     private final String mHost;
     private final int mPort;
     private final String mNickname;
     private final String mAdminPassword;
+    private final List<ServerAddress> mServers = new ArrayList<ServerAddress>();
+    private int mConnectTimeout = 10 * 1000; // ms
+    private long mPingInterval = 30 * 1000; // ms
+    private long mPingTimeout = 15 * 1000; // ms
+    private long mReconnectDelayMin = 1000; // ms
+    private long mReconnectDelayMax = 2 * 60 * 1000; // ms
+    private FloodLimit mChannelFloodLimit = DEFAULT_FLOOD_LIMIT;
+    private final Map<String, FloodLimit> mChannelFloodLimits = new HashMap<String, FloodLimit>();
+    private FloodLimit mPrivmsgFloodLimit = DEFAULT_FLOOD_LIMIT;
+    private volatile BanMatcher mBanMatcher = BanMatcher.EMPTY;
     private final Map<String, HandlerClassAndConfig> mHandlerConfigs = new HashMap<String, HandlerClassAndConfig>();
     private final List<String> mPrivmsgHandlerConfigNames = new ArrayList<String>();
     private final ListMultimap<String, String> mChannelHandlerConfigNames = ArrayListMultimap.create();
@@ -57,6 +109,7 @@ public class ClientConfig {
         mPort = port;
         mNickname = nickname;
         mAdminPassword = adminPassword;
+        mServers.add(new ServerAddress(host, port));
     }
 
     public String getHost() {
@@ -67,6 +120,106 @@ public class ClientConfig {
         return mPort;
     }
 
+    /**
+     * Add a server to try when the main one can't be reached. Servers are tried in turn, in the order they were added.
+     */
+    public void addAlternateServer(String host, int port) {
+        mServers.add(new ServerAddress(host, port));
+    }
+
+    /**
+     * @return The main server, followed by the alternate ones.
+     */
+    public List<ServerAddress> getServers() {
+        return Collections.unmodifiableList(mServers);
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    /**
+     * @param connectTimeout In ms.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        mConnectTimeout = connectTimeout;
+    }
+
+    public long getPingInterval() {
+        return mPingInterval;
+    }
+
+    public long getPingTimeout() {
+        return mPingTimeout;
+    }
+
+    /**
+     * When nothing has been received for {@code pingInterval} ms, a {@code PING} is sent to the server. If still nothing has been received after
+     * {@code pingTimeout} more ms, the connection is considered dead.
+     */
+    public void setPingInterval(long pingInterval, long pingTimeout) {
+        mPingInterval = pingInterval;
+        mPingTimeout = pingTimeout;
+    }
+
+    public long getReconnectDelayMin() {
+        return mReconnectDelayMin;
+    }
+
+    public long getReconnectDelayMax() {
+        return mReconnectDelayMax;
+    }
+
+    /**
+     * The delay before reconnecting starts at {@code reconnectDelayMin} ms, and doubles after each failed attempt, up to {@code reconnectDelayMax} ms.
+     */
+    public void setReconnectDelay(long reconnectDelayMin, long reconnectDelayMax) {
+        mReconnectDelayMin = reconnectDelayMin;
+        mReconnectDelayMax = reconnectDelayMax;
+    }
+
+    /**
+     * @return The flood limit of the given channel, or the one of all channels if it doesn't have a specific one.
+     */
+    public FloodLimit getChannelFloodLimit(String channel) {
+        FloodLimit res = mChannelFloodLimits.get(channel);
+        return res == null ? mChannelFloodLimit : res;
+    }
+
+    /**
+     * Set the flood limit of all the channels that don't have a specific one.
+     */
+    public void setChannelFloodLimit(FloodLimit floodLimit) {
+        mChannelFloodLimit = floodLimit;
+    }
+
+    public void setChannelFloodLimit(String channel, FloodLimit floodLimit) {
+        mChannelFloodLimits.put(channel, floodLimit);
+    }
+
+    /**
+     * @return The flood limit of private messages, applied to each nickname separately.
+     */
+    public FloodLimit getPrivmsgFloodLimit() {
+        return mPrivmsgFloodLimit;
+    }
+
+    public void setPrivmsgFloodLimit(FloodLimit floodLimit) {
+        mPrivmsgFloodLimit = floodLimit;
+    }
+
+    /**
+     * Ignore all the messages from the users matching any of the given regular expressions (matched against {@code nickname!user@host}). Can be
+     * called at any time: the new list applies to the next messages.
+     */
+    public void setBanList(Collection<String> banList) {
+        mBanMatcher = BanMatcher.compile(banList);
+    }
+
+    public BanMatcher getBanMatcher() {
+        return mBanMatcher;
+    }
+
     public Set<String> getChannels() {
         return Collections.unmodifiableSet(mChannelHandlerConfigNames.keySet());
     }
@@ -0,0 +1,162 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.handler.Handler;
+import org.jraf.irondad.handler.HandlerExecutor;
+import org.jraf.irondad.util.Log;
+
+/**
+ * What several {@link Client}s, typically connected to different networks, can share in one process:
+ * <ul>
+ * <li>the {@link EventLoop} doing the socket I/O,</li>
+ * <li>a scheduler for the timers of the clients (connections, reconnections, periodic joins...),</li>
+ * <li>a separate scheduler for the periodic tasks of the handlers (polling...), so that a slow poll never delays a reconnection or a
+ * join,</li>
+ * <li>the {@link HandlerExecutor} running the handlers,</li>
+ * <li>the {@link Handler} instances: there is one instance of each handler class per runtime.</li>
+ * </ul>
+ * The number of threads doesn't depend on the number of clients.
+ */
+public class ClientRuntime {
+    private static final String TAG = Constants.TAG + ClientRuntime.class.getSimpleName();
+
+    private static final int CLIENT_SCHEDULER_THREAD_COUNT = 2;
+    private static final int SCHEDULER_THREAD_COUNT = 2;
+
+    private static ClientRuntime sDefault;
+
+    private final EventLoop mEventLoop;
+    private final ScheduledExecutorService mClientScheduler;
+    private final ScheduledExecutorService mScheduler;
+    private final HandlerExecutor mHandlerExecutor;
+    private final Map<Class<? extends Handler>, Handler> mHandlers = new HashMap<Class<? extends Handler>, Handler>();
+
+    public ClientRuntime() throws IOException {
+        this(new HandlerExecutor());
+    }
+
+    public ClientRuntime(HandlerExecutor handlerExecutor) throws IOException {
+        mEventLoop = new EventLoop("irondad-eventloop");
+        mClientScheduler = newScheduler(CLIENT_SCHEDULER_THREAD_COUNT, "irondad-client-scheduler-");
+        mScheduler = newScheduler(SCHEDULER_THREAD_COUNT, "irondad-scheduler-");
+        mHandlerExecutor = handlerExecutor;
+    }
+
+    private static ScheduledExecutorService newScheduler(int threadCount, final String threadNamePrefix) {
+        return Executors.newScheduledThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread res = new Thread(runnable, threadNamePrefix + mThreadNumber.incrementAndGet());
+                res.setDaemon(true);
+                return res;
+            }
+        });
+    }
+
+    /**
+     * @return The runtime shared by all the {@link Client}s that were not given one explicitly.
+     */
+    public static synchronized ClientRuntime getDefault() {
+        if (sDefault == null) {
+            try {
+                sDefault = new ClientRuntime();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open selector", e);
+            }
+        }
+        return sDefault;
+    }
+
+    public EventLoop getEventLoop() {
+        return mEventLoop;
+    }
+
+    /**
+     * @return The scheduler for the timers of the clients. Handlers must not use it.
+     */
+    public ScheduledExecutorService getClientScheduler() {
+        return mClientScheduler;
+    }
+
+    /**
+     * @return The scheduler for the periodic tasks of the handlers.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    public HandlerExecutor getHandlerExecutor() {
+        return mHandlerExecutor;
+    }
+
+    /**
+     * @return The instance of the given handler class for this runtime. It is created, and initialized with the given client config, the first time.
+     */
+    public synchronized Handler getHandler(Class<? extends Handler> handlerClass, ClientConfig clientConfig) throws Exception {
+        Handler res = mHandlers.get(handlerClass);
+        if (res == null) {
+            res = handlerClass.getDeclaredConstructor().newInstance();
+            res.init(clientConfig);
+            mHandlers.put(handlerClass, res);
+        }
+        return res;
+    }
+
+    /**
+     * Stop the event loop and the executors, then shut the handlers down. The clients using this runtime must be stopped first.
+     */
+    public void shutdown() {
+        if (Config.LOGD) Log.d(TAG, "shutdown");
+        mEventLoop.stop();
+        mClientScheduler.shutdownNow();
+        mScheduler.shutdownNow();
+        mHandlerExecutor.shutdown();
+        synchronized (this) {
+            for (Handler handler : mHandlers.values()) {
+                try {
+                    handler.shutdown();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "shutdown Handler " + handler + " threw an exception while calling shutdown", e);
+                }
+            }
+            mHandlers.clear();
+        }
+    }
+}
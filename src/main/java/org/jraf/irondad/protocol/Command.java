@@ -25,10 +25,9 @@
  */
 package org.jraf.irondad.protocol;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
-import org.apache.commons.lang3.StringUtils;
-
 public enum Command {
     //@formatter:off
     
@@ -65,13 +64,18 @@ public enum Command {
 
     //@formatter:on
 
+    private static final int CODE_LENGTH = 3;
+
     private static final HashMap<String, Command> sCommandByName = new HashMap<String, Command>(40);
-    private static final HashMap<Integer, Command> sCommandByCode = new HashMap<Integer, Command>(40);
+    private static final Command[] sCommandByCode = new Command[1000];
+    private static final Command[] sValues = values();
+    private static final byte[][] sNameBytes = new byte[sValues.length][];
 
     static {
-        for (Command command : values()) {
+        for (Command command : sValues) {
             sCommandByName.put(command.name(), command);
-            if (command.mCode != -1) sCommandByCode.put(command.mCode, command);
+            sNameBytes[command.ordinal()] = command.name().getBytes(StandardCharsets.US_ASCII);
+            if (command.mCode != -1) sCommandByCode[command.mCode] = command;
         }
     }
 
@@ -86,9 +90,10 @@ public enum Command {
     }
 
     public static Command from(String commandStr) {
-        if (StringUtils.isNumeric(commandStr)) {
+        int code = parseCode(commandStr);
+        if (code != -1) {
             // Reply (numeric command)
-            return from(Integer.valueOf(commandStr));
+            return from(code);
         }
         // Message (string command)
         Command res = sCommandByName.get(commandStr);
@@ -96,9 +101,52 @@ public enum Command {
         return res;
     }
 
+    /**
+     * Same as {@link #from(String)}, but reads the command directly from the given buffer.
+     */
+    public static Command from(byte[] buffer, int offset, int length) {
+        if (length == CODE_LENGTH) {
+            int code = 0;
+            for (int i = offset; i < offset + CODE_LENGTH; i++) {
+                byte b = buffer[i];
+                if (b < '0' || b > '9') {
+                    code = -1;
+                    break;
+                }
+                code = code * 10 + b - '0';
+            }
+            if (code != -1) return from(code);
+        }
+        for (Command command : sValues) {
+            byte[] name = sNameBytes[command.ordinal()];
+            if (name.length != length) continue;
+            int i = 0;
+            while (i < length && name[i] == buffer[offset + i]) {
+                i++;
+            }
+            if (i == length) return command;
+        }
+        return UNKNOWN;
+    }
+
     public static Command from(int code) {
-        Command res = sCommandByCode.get(code);
+        if (code < 0 || code >= sCommandByCode.length) return UNKNOWN;
+        Command res = sCommandByCode[code];
         if (res == null) return UNKNOWN;
         return res;
     }
+
+    /**
+     * @return The numeric value of the given command, or {@code -1} if it is not a 3 digit reply code.
+     */
+    private static int parseCode(String commandStr) {
+        if (commandStr.length() != CODE_LENGTH) return -1;
+        int res = 0;
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            char c = commandStr.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            res = res * 10 + c - '0';
+        }
+        return res;
+    }
 }
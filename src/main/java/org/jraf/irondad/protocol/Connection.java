@@ -25,66 +25,343 @@
  */
 package org.jraf.irondad.protocol;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang3.StringUtils;
+import org.jraf.irondad.Config;
 import org.jraf.irondad.Constants;
 import org.jraf.irondad.util.Log;
 
+/**
+ * A connection to an IRC server, driven by an {@link EventLoop}.<br/>
+ * Received lines are split on CR LF directly from the socket buffer, parsed in place by a {@link RawMessage} and handed to the {@link Client} on the
+ * event loop thread.<br/>
+ * {@code send} can be called from any thread: lines are queued in an {@link OutboundQueue} (priorities, pacing) and written by the event loop thread.
+ */
 public class Connection {
     private static final String TAG = Constants.TAG + Connection.class.getSimpleName();
-    private static final String CR_LF = "\r\n";
 
-    private Client mClient;
-    private final BufferedReader mBufferedReader;
-    private final OutputStream mOutputStream;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    private static final int LINE_LENGTH_MAX = 8 * 1024;
+    private static final long PING_INTERVAL = 30 * 1000; // ms
+    private static final long PING_TIMEOUT = 15 * 1000; // ms
+
+    // Send at most 5 lines at once, then 1 line every 2 seconds
+    private static final int SEND_BURST = 5;
+    private static final long SEND_INTERVAL = 2000; // ms
+    private static final int SEND_QUEUE_CAPACITY = 256;
+
+    private final Client mClient;
+    private final SocketChannel mChannel;
+    private final EventLoop mEventLoop;
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private byte[] mLine = new byte[512];
+    private int mLineLength;
+    private boolean mLineTooLong;
+    private final RawMessage mRawMessage = new RawMessage();
+    private long mLastReadTime;
+    private volatile long mPingInterval = PING_INTERVAL;
+    private volatile long mPingTimeout = PING_TIMEOUT;
+    private boolean mPingSent;
+
+    private final OutboundQueue mOutboundQueue = new OutboundQueue(SEND_QUEUE_CAPACITY, SEND_BURST, SEND_INTERVAL);
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private byte[] mPendingBytes;
+    private int mPendingOffset;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flush();
+        }
+    };
+    private boolean mFlushTimerScheduled;
+    private final Runnable mFlushTimerTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushTimerScheduled = false;
+            flush();
+        }
+    };
+
+    private SelectionKey mSelectionKey;
+    private volatile boolean mClosed;
+    private volatile IOException mCloseCause;
+    private final CountDownLatch mClosedLatch = new CountDownLatch(1);
 
-    public Connection(Client client, Socket socket) throws IOException {
+    public Connection(Client client, SocketChannel channel, EventLoop eventLoop) throws IOException {
         mClient = client;
-        mBufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "utf-8"));
-        mOutputStream = socket.getOutputStream();
+        mChannel = channel;
+        mEventLoop = eventLoop;
+        mChannel.configureBlocking(false);
+        mWriteBuffer.flip();
+    }
+
+    /**
+     * Register this connection with its event loop: from now on, received messages are passed to the client.
+     */
+    public void start() {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLastReadTime = System.currentTimeMillis();
+                    mSelectionKey = mEventLoop.register(mChannel, SelectionKey.OP_READ, Connection.this);
+                    // Lines may have been queued before the registration
+                    flush();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        });
     }
 
+    /**
+     * Queue the given line to be sent. Lines are not necessarily sent right away, nor in order: see {@link OutboundQueue}.
+     * 
+     * @throws IOException If the connection is closed, or too many messages are already waiting to be sent.
+     */
     public void send(String line) throws IOException {
-        Log.d(TAG, "SND " + line);
-        mOutputStream.write((line + CR_LF).getBytes("utf-8"));
+        if (mClosed) throw new IOException("Connection is closed");
+        int spaceIndex = line.indexOf(' ');
+        Command command = Command.from(spaceIndex == -1 ? line : line.substring(0, spaceIndex));
+        if (!mOutboundQueue.offer(command, line)) throw new IOException("Send queue is full: dropping " + line);
+        if (Config.LOGD) Log.d(TAG, "SND {}", line);
+        requestFlush();
     }
 
     public void send(Command command, String... params) throws IOException {
+        if (mClosed) throw new IOException("Connection is closed");
+        String line = format(command, params);
+        boolean queued;
+        if (command == Command.PRIVMSG && params.length == 2) {
+            queued = mOutboundQueue.offerPrivmsg(params[0], params[1], line);
+        } else {
+            queued = mOutboundQueue.offer(command, line);
+        }
+        if (!queued) throw new IOException("Send queue is full: dropping " + line);
+        if (Config.LOGD) Log.d(TAG, "SND {}", line);
+        requestFlush();
+    }
+
+    public void send(Command command, List<String> params) throws IOException {
+        String[] paramArray = params.toArray(new String[params.size()]);
+        send(command, paramArray);
+    }
+
+    private void requestFlush() {
+        if (mEventLoop.inEventLoop()) {
+            flush();
+        } else if (mFlushScheduled.compareAndSet(false, true)) {
+            mEventLoop.execute(mFlushTask);
+        }
+    }
+
+    static String format(Command command, String... params) {
         String[] paramsCopy = params.clone();
         if (paramsCopy.length > 0) {
             // Add a colon to the last param if it contains spaces
             if (paramsCopy[paramsCopy.length - 1].contains(" ")) {
                 paramsCopy[paramsCopy.length - 1] = ":" + paramsCopy[paramsCopy.length - 1];
             }
-            send(command.name() + " " + StringUtils.join(paramsCopy, " "));
+            return command.name() + " " + StringUtils.join(paramsCopy, " ");
+        }
+        return command.name();
+    }
+
+    /*
+     * Event loop callbacks.
+     */
+
+    void onReadable() throws IOException {
+        int read = mChannel.read(mReadBuffer);
+        if (read == -1) throw new EOFException("Connection closed by the server");
+        mLastReadTime = System.currentTimeMillis();
+        mPingSent = false;
+        mReadBuffer.flip();
+        while (mReadBuffer.hasRemaining()) {
+            byte b = mReadBuffer.get();
+            if (b == '\n') {
+                int length = mLineLength;
+                if (length > 0 && mLine[length - 1] == '\r') length--;
+                mLineLength = 0;
+                if (mLineTooLong) {
+                    mLineTooLong = false;
+                    continue;
+                }
+                if (length > 0) receiveLine(length);
+                if (mClosed) return;
+            } else if (mLineLength < mLine.length) {
+                mLine[mLineLength++] = b;
+            } else if (mLine.length < LINE_LENGTH_MAX) {
+                byte[] line = new byte[Math.min(mLine.length * 2, LINE_LENGTH_MAX)];
+                System.arraycopy(mLine, 0, line, 0, mLineLength);
+                mLine = line;
+                mLine[mLineLength++] = b;
+            } else if (!mLineTooLong) {
+                Log.w(TAG, "onReadable Line longer than " + LINE_LENGTH_MAX + " bytes: ignoring it");
+                mLineTooLong = true;
+            }
+        }
+        mReadBuffer.clear();
+    }
+
+    private void receiveLine(int length) throws IOException {
+        // The line is parsed in place: mRawMessage is only valid until the next line
+        if (!mRawMessage.parse(mLine, 0, length)) return;
+        // mRawMessage is reused: format it now
+        if (Config.LOGD) Log.d(TAG, "RCV {}", mRawMessage.toString());
+        try {
+            mClient.onMessageReceived(this, mRawMessage);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "receiveLine Could not handle line " + mRawMessage, e);
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Write as much of the queued lines as the socket and the rate limit accept. Must be called from the event loop thread.
+     */
+    private void flush() {
+        if (mSelectionKey == null || mClosed) return;
+        try {
+            while (true) {
+                if (!mWriteBuffer.hasRemaining()) {
+                    mWriteBuffer.clear();
+                    long now = System.currentTimeMillis();
+                    fillWriteBuffer(now);
+                    mWriteBuffer.flip();
+                    if (!mWriteBuffer.hasRemaining()) {
+                        // Everything that could be sent has been written
+                        mSelectionKey.interestOps(SelectionKey.OP_READ);
+                        long delay = mOutboundQueue.getDelay(now);
+                        if (delay > 0 && !mFlushTimerScheduled) {
+                            // Rate limited: try again when the next line can be sent
+                            mFlushTimerScheduled = true;
+                            mEventLoop.schedule(mFlushTimerTask, delay);
+                        }
+                        return;
+                    }
+                }
+                mChannel.write(mWriteBuffer);
+                if (mWriteBuffer.hasRemaining()) {
+                    // The socket is full: wait until it is writable again
+                    mSelectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void fillWriteBuffer(long now) {
+        while (mWriteBuffer.hasRemaining()) {
+            if (mPendingBytes == null) {
+                mPendingBytes = mOutboundQueue.poll(now);
+                mPendingOffset = 0;
+                if (mPendingBytes == null) return;
+            }
+            int length = Math.min(mWriteBuffer.remaining(), mPendingBytes.length - mPendingOffset);
+            mWriteBuffer.put(mPendingBytes, mPendingOffset, length);
+            mPendingOffset += length;
+            if (mPendingOffset == mPendingBytes.length) mPendingBytes = null;
+        }
+    }
+
+    /**
+     * @see ClientConfig#setPingInterval(long, long)
+     */
+    public void setPingInterval(long pingInterval, long pingTimeout) {
+        mPingInterval = pingInterval;
+        mPingTimeout = pingTimeout;
+    }
+
+    /**
+     * Check that the server is still there: {@code PING} it when it has been quiet for a while, and close the connection if it doesn't answer.
+     */
+    void checkTimeout(long now) {
+        long idle = now - mLastReadTime;
+        if (idle > mPingInterval + mPingTimeout) {
+            close(new SocketTimeoutException("Nothing received for " + idle + " ms"));
+        } else if (idle > mPingInterval && !mPingSent) {
+            mPingSent = true;
+            try {
+                send(Command.PING, String.valueOf(now));
+            } catch (IOException e) {
+                Log.w(TAG, "checkTimeout Could not send PING", e);
+            }
+        }
+    }
+
+    /**
+     * Close this connection. Can be called from any thread.
+     */
+    public void close() {
+        if (mEventLoop.inEventLoop()) {
+            close(null);
         } else {
-            send(command.name());
+            mEventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(null);
+                }
+            });
         }
     }
 
-    public void send(Command command, List<String> params) throws IOException {
-        String[] paramArray = params.toArray(new String[params.size()]);
-        send(command, paramArray);
+    /**
+     * Must be called from the event loop thread.
+     * 
+     * @param cause The reason why the connection is closed, or {@code null} if it was closed on purpose.
+     */
+    void close(IOException cause) {
+        if (mClosed) return;
+        if (cause != null) Log.w(TAG, "close Closing connection", cause);
+        mClosed = true;
+        mCloseCause = cause;
+        if (mSelectionKey != null) mSelectionKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close Could not close channel", e);
+        }
+        mClosedLatch.countDown();
+        if (mClient != null) mClient.onConnectionClosed(this);
     }
 
-    public String receiveLine() throws IOException {
-        String line = mBufferedReader.readLine();
-        Log.i(TAG, "RCV " + line);
-        return line;
+    /**
+     * Wait until this connection is closed.
+     * 
+     * @throws IOException If the connection was closed because of an error.
+     */
+    public void awaitClose() throws IOException {
+        try {
+            mClosedLatch.await();
+        } catch (InterruptedException e) {
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for the connection to close");
+        }
+        if (mCloseCause != null) throw mCloseCause;
     }
 
-    public Message receive() throws IOException {
-        String line = receiveLine();
-        if (line == null) return null;
-        Message res = Message.parse(line);
-        //        if (Config.LOGD) Log.d(TAG, "receive res=" + res);
-        return res;
+    public boolean isClosed() {
+        return mClosed;
     }
 
     public Client getClient() {
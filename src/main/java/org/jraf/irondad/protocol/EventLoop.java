@@ -0,0 +1,215 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jraf.irondad.Config;
+import org.jraf.irondad.Constants;
+import org.jraf.irondad.util.Log;
+
+/**
+ * A single thread multiplexing the sockets of any number of {@link Connection}s with a {@link Selector}.<br/>
+ * All the socket I/O (reading, line splitting, writing) happens on this thread; other threads interact with it through {@link #execute(Runnable)}.
+ */
+public class EventLoop {
+    private static final String TAG = Constants.TAG + EventLoop.class.getSimpleName();
+
+    private static final long SELECT_TIMEOUT = 1000; // ms
+
+    private final Selector mSelector;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+    private long mTimerSequence;
+    private final Thread mThread;
+    private volatile boolean mStopRequested;
+
+    private static class Timer implements Comparable<Timer> {
+        private final long mTime;
+        private final long mSequence;
+        private final Runnable mTask;
+
+        private Timer(long time, long sequence, Runnable task) {
+            mTime = time;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (mTime != other.mTime) return mTime < other.mTime ? -1 : 1;
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    public EventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.start();
+    }
+
+    /**
+     * Run the given task on the event loop thread.<br/>
+     * If called from the event loop thread, the task is run at the next iteration of the loop.
+     */
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        if (!inEventLoop()) mSelector.wakeup();
+    }
+
+    /**
+     * Run the given task on the event loop thread, after the given delay.
+     * 
+     * @param delay The delay in ms.
+     */
+    public void schedule(final Runnable task, long delay) {
+        final long time = System.currentTimeMillis() + delay;
+        if (inEventLoop()) {
+            mTimers.add(new Timer(time, mTimerSequence++, task));
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTimers.add(new Timer(time, mTimerSequence++, task));
+                }
+            });
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Must be called from the event loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Connection connection) throws ClosedChannelException {
+        return channel.register(mSelector, ops, connection);
+    }
+
+    public void stop() {
+        if (Config.LOGD) Log.d(TAG, "stop");
+        mStopRequested = true;
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        if (Config.LOGD) Log.d(TAG, "loop");
+        long lastTimeoutCheck = System.currentTimeMillis();
+        while (!mStopRequested) {
+            runTasks();
+            long selectTimeout = runTimers();
+            try {
+                if (mTasks.isEmpty()) {
+                    mSelector.select(selectTimeout);
+                } else {
+                    mSelector.selectNow();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "loop Could not select", e);
+                break;
+            }
+
+            for (Iterator<SelectionKey> i = mSelector.selectedKeys().iterator(); i.hasNext();) {
+                SelectionKey key = i.next();
+                i.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } catch (IOException e) {
+                    connection.close(e);
+                } catch (RuntimeException e) {
+                    // Never let one connection kill the loop shared by all the others
+                    Log.e(TAG, "loop Unexpected exception while handling " + connection, e);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastTimeoutCheck >= SELECT_TIMEOUT) {
+                lastTimeoutCheck = now;
+                for (SelectionKey key : mSelector.keys()) {
+                    ((Connection) key.attachment()).checkTimeout(now);
+                }
+            }
+        }
+
+        if (Config.LOGD) Log.d(TAG, "loop Exiting from event loop");
+        for (SelectionKey key : mSelector.keys()) {
+            ((Connection) key.attachment()).close(null);
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.w(TAG, "loop Could not close selector", e);
+        }
+    }
+
+    /**
+     * Run the timers that are due.
+     * 
+     * @return How long to wait for the next one, capped to {@link #SELECT_TIMEOUT}.
+     */
+    private long runTimers() {
+        long now = System.currentTimeMillis();
+        Timer timer;
+        while ((timer = mTimers.peek()) != null && timer.mTime <= now) {
+            mTimers.poll();
+            try {
+                timer.mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "runTimers Task " + timer.mTask + " threw an exception", e);
+            }
+        }
+        if (timer == null) return SELECT_TIMEOUT;
+        // 0 would mean no timeout
+        return Math.max(1, Math.min(SELECT_TIMEOUT, timer.mTime - now));
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "runTasks Task " + task + " threw an exception", e);
+            }
+        }
+    }
+}
@@ -31,12 +31,17 @@ public class Origin {
     public final String host;
 
     public Origin(String originStr) {
-        if (originStr.contains("!")) {
-            String[] originSplit = originStr.split("\\!");
-            name = originSplit[0];
-            String[] userAtHost = originSplit[1].split("@");
-            user = userAtHost[0];
-            host = userAtHost[1];
+        int bangIndex = originStr.indexOf('!');
+        if (bangIndex != -1) {
+            name = originStr.substring(0, bangIndex);
+            int atIndex = originStr.indexOf('@', bangIndex + 1);
+            if (atIndex == -1) {
+                user = originStr.substring(bangIndex + 1);
+                host = null;
+            } else {
+                user = originStr.substring(bangIndex + 1, atIndex);
+                host = originStr.substring(atIndex + 1);
+            }
         } else {
             name = originStr;
             user = null;
@@ -44,15 +49,22 @@ public class Origin {
         }
     }
 
+    Origin(String name, String user, String host) {
+        this.name = name;
+        this.user = user;
+        this.host = host;
+    }
+
     @Override
     public String toString() {
         return "Origin [name=" + name + ", user=" + user + ", host=" + host + "]";
     }
 
     public String toFormattedString() {
-        if (user != null) {
-            return name + "!" + user + "@" + host;
-        }
-        return name;
+        if (user == null && host == null) return name;
+        StringBuilder res = new StringBuilder(name);
+        if (user != null) res.append('!').append(user);
+        if (host != null) res.append('@').append(host);
+        return res.toString();
     }
 }
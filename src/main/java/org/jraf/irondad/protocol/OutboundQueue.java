@@ -0,0 +1,247 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The lines waiting to be sent on a {@link Connection}.<br/>
+ * <ul>
+ * <li>Lines are sent by priority: {@code PING}/{@code PONG}/{@code QUIT} first, then the other protocol commands, then {@code PRIVMSG}.</li>
+ * <li>A token bucket paces the output, to stay under the server's flood limits. {@code PING}/{@code PONG}/{@code QUIT} are never delayed.</li>
+ * <li>Consecutive {@code PRIVMSG}s to the same target still waiting to be sent are coalesced into one line, when it fits.</li>
+ * <li>The number of waiting messages is bounded.</li>
+ * </ul>
+ * Thread safe.
+ */
+class OutboundQueue {
+    private static final int PRIORITY_URGENT = 0;
+    private static final int PRIORITY_PROTOCOL = 1;
+    private static final int PRIORITY_MESSAGE = 2;
+
+    /**
+     * Maximum length of a line, without the CR LF.
+     */
+    private static final int LINE_LENGTH_MAX = 510;
+
+    /**
+     * Room left for the {@code :nick!user@host } prefix the server adds when it relays our messages (nick, user and a 63 char host, rounded
+     * up).<br/>
+     * Lines longer than {@code LINE_LENGTH_MAX - PREFIX_LENGTH_MAX} get truncated for the other clients, so coalescing must not produce them.
+     */
+    private static final int PREFIX_LENGTH_MAX = 110;
+    private static final int COALESCED_LINE_LENGTH_MAX = LINE_LENGTH_MAX - PREFIX_LENGTH_MAX;
+    private static final String COALESCE_SEPARATOR = " | ";
+    private static final String CR_LF = "\r\n";
+
+    private static class Entry {
+        private String mLine;
+
+        /**
+         * For coalescable messages: the command and target ({@code "PRIVMSG #channel"}) and the text.
+         */
+        private final String mCommandAndTarget;
+        private StringBuilder mText;
+        private int mLength;
+
+        private Entry(String line, String commandAndTarget, String text) {
+            mLine = line;
+            mCommandAndTarget = commandAndTarget;
+            if (text != null) mText = new StringBuilder(text);
+            mLength = utf8Length(line);
+        }
+
+        private String getLine() {
+            if (mLine == null) mLine = mCommandAndTarget + " :" + mText;
+            return mLine;
+        }
+    }
+
+    private final Deque<Entry> mUrgentQueue = new ArrayDeque<Entry>();
+    private final Deque<Entry> mProtocolQueue = new ArrayDeque<Entry>();
+    private final Deque<Entry> mMessageQueue = new ArrayDeque<Entry>();
+    private final int mCapacity;
+
+    private final int mBurst;
+    private final long mInterval;
+    private int mTokens;
+    private long mLastRefillTime;
+
+    /**
+     * @param capacity Maximum number of messages waiting to be sent. Protocol commands are always accepted.
+     * @param burst Number of lines that can be sent at once.
+     * @param interval Once the burst has been used, one line can be sent every {@code interval} ms.
+     */
+    OutboundQueue(int capacity, int burst, long interval) {
+        mCapacity = capacity;
+        mBurst = burst;
+        mInterval = interval;
+        mTokens = burst;
+        mLastRefillTime = System.currentTimeMillis();
+    }
+
+    private static int getPriority(Command command) {
+        if (command == null) return PRIORITY_PROTOCOL;
+        switch (command) {
+            case PING:
+            case PONG:
+            case QUIT:
+                return PRIORITY_URGENT;
+
+            case PRIVMSG:
+                return PRIORITY_MESSAGE;
+
+            default:
+                return PRIORITY_PROTOCOL;
+        }
+    }
+
+    /**
+     * @param command The command of the line, or {@code null} if unknown.
+     * @param line The line to send, without the CR LF.
+     * @return {@code false} if the queue is full.
+     */
+    synchronized boolean offer(Command command, String line) {
+        return offer(getPriority(command), new Entry(line, null, null));
+    }
+
+    /**
+     * Queue a {@code PRIVMSG}, merging it with the previous one if it is still waiting, has the same target, and the result still fits in a line once
+     * the server adds its prefix.
+     * 
+     * @param line The formatted line, without the CR LF.
+     * @return {@code false} if the queue is full.
+     */
+    synchronized boolean offerPrivmsg(String target, String text, String line) {
+        // Don't touch CTCPs
+        if (text.isEmpty() || text.charAt(0) == '\u0001') return offer(PRIORITY_MESSAGE, new Entry(line, null, null));
+
+        String commandAndTarget = Command.PRIVMSG.name() + " " + target;
+        Entry last = mMessageQueue.peekLast();
+        if (last != null && commandAndTarget.equals(last.mCommandAndTarget)) {
+            int coalescedLength = utf8Length(commandAndTarget) + 2 + utf8Length(last.mText) + COALESCE_SEPARATOR.length() + utf8Length(text);
+            if (coalescedLength <= COALESCED_LINE_LENGTH_MAX) {
+                last.mText.append(COALESCE_SEPARATOR).append(text);
+                last.mLine = null;
+                last.mLength = coalescedLength;
+                return true;
+            }
+        }
+        return offer(PRIORITY_MESSAGE, new Entry(line, commandAndTarget, text));
+    }
+
+    private boolean offer(int priority, Entry entry) {
+        switch (priority) {
+            case PRIORITY_URGENT:
+                mUrgentQueue.addLast(entry);
+                return true;
+
+            case PRIORITY_PROTOCOL:
+                mProtocolQueue.addLast(entry);
+                return true;
+
+            default:
+                if (mMessageQueue.size() >= mCapacity) return false;
+                mMessageQueue.addLast(entry);
+                return true;
+        }
+    }
+
+    /**
+     * @return The next line to send, with its CR LF, or {@code null} if there is none or if the rate limit doesn't allow it yet.
+     */
+    synchronized byte[] poll(long now) {
+        Entry entry = mUrgentQueue.pollFirst();
+        if (entry == null) {
+            refill(now);
+            if (mTokens == 0) return null;
+            entry = mProtocolQueue.pollFirst();
+            if (entry == null) entry = mMessageQueue.pollFirst();
+            if (entry == null) return null;
+            mTokens--;
+        }
+        return (entry.getLine() + CR_LF).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void refill(long now) {
+        if (mTokens >= mBurst) {
+            mLastRefillTime = now;
+            return;
+        }
+        long elapsed = now - mLastRefillTime;
+        if (elapsed < mInterval) return;
+        long newTokens = elapsed / mInterval;
+        if (mTokens + newTokens >= mBurst) {
+            mTokens = mBurst;
+            mLastRefillTime = now;
+        } else {
+            mTokens += (int) newTokens;
+            mLastRefillTime += newTokens * mInterval;
+        }
+    }
+
+    /**
+     * @return How long to wait before {@link #poll(long)} can return a line, or {@code -1} if the queue is empty.
+     */
+    synchronized long getDelay(long now) {
+        if (!mUrgentQueue.isEmpty()) return 0;
+        if (mProtocolQueue.isEmpty() && mMessageQueue.isEmpty()) return -1;
+        refill(now);
+        if (mTokens > 0) return 0;
+        return mLastRefillTime + mInterval - now;
+    }
+
+    synchronized int size() {
+        return mUrgentQueue.size() + mProtocolQueue.size() + mMessageQueue.size();
+    }
+
+    synchronized void clear() {
+        mUrgentQueue.clear();
+        mProtocolQueue.clear();
+        mMessageQueue.clear();
+    }
+
+    private static int utf8Length(CharSequence s) {
+        int res = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                res++;
+            } else if (c < 0x800) {
+                res += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                res += 4;
+                i++;
+            } else {
+                res += 3;
+            }
+        }
+        return res;
+    }
+}
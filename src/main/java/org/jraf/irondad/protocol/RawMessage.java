@@ -0,0 +1,233 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A received line, parsed in place.<br/>
+ * Parsing only records the offsets of the prefix, command and parameters in the given buffer: no {@code String} is created until one of the
+ * {@code get} methods asks for it.<br/>
+ * An instance is meant to be reused for every line of a connection, so it is only valid until the next call to {@link #parse(byte[], int, int)}.
+ * Use {@link #toMessage()} to get a copy that can be kept.
+ */
+public class RawMessage {
+    private static final int PARAMETER_COUNT_INITIAL = 16;
+
+    private byte[] mBuffer;
+    private int mStart;
+    private int mEnd;
+
+    private int mPrefixStart;
+    private int mPrefixEnd;
+    private int mNameEnd;
+    private int mUserEnd;
+
+    private Command mCommand;
+
+    private int mParameterCount;
+    private int[] mParameterStarts = new int[PARAMETER_COUNT_INITIAL];
+    private int[] mParameterEnds = new int[PARAMETER_COUNT_INITIAL];
+
+    /**
+     * Parse the given line (without its trailing CR LF).
+     * 
+     * @return {@code false} if the line contains no command.
+     */
+    public boolean parse(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mStart = offset;
+        mEnd = offset + length;
+        mPrefixStart = -1;
+        mCommand = null;
+        mParameterCount = 0;
+
+        int i = skipSpaces(offset);
+        if (i < mEnd && buffer[i] == ':') {
+            // Prefix is an optional origin: name[!user][@host]
+            mPrefixStart = i + 1;
+            mNameEnd = -1;
+            mUserEnd = -1;
+            for (i = mPrefixStart; i < mEnd && buffer[i] != ' '; i++) {
+                if (buffer[i] == '!' && mNameEnd == -1 && mUserEnd == -1) {
+                    mNameEnd = i;
+                } else if (buffer[i] == '@' && mUserEnd == -1) {
+                    mUserEnd = i;
+                }
+            }
+            mPrefixEnd = i;
+            if (mNameEnd == -1) mNameEnd = mUserEnd == -1 ? mPrefixEnd : mUserEnd;
+            i = skipSpaces(i);
+        }
+
+        int commandStart = i;
+        while (i < mEnd && buffer[i] != ' ') {
+            i++;
+        }
+        if (i == commandStart) return false;
+        mCommand = Command.from(buffer, commandStart, i - commandStart);
+
+        while (true) {
+            i = skipSpaces(i);
+            if (i == mEnd) break;
+            if (buffer[i] == ':') {
+                // Trailing parameter: the remainder of the line (can have spaces)
+                addParameter(i + 1, mEnd);
+                break;
+            }
+            int parameterStart = i;
+            while (i < mEnd && buffer[i] != ' ') {
+                i++;
+            }
+            addParameter(parameterStart, i);
+        }
+        return true;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < mEnd && mBuffer[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private void addParameter(int start, int end) {
+        if (mParameterCount == mParameterStarts.length) {
+            mParameterStarts = Arrays.copyOf(mParameterStarts, mParameterCount * 2);
+            mParameterEnds = Arrays.copyOf(mParameterEnds, mParameterCount * 2);
+        }
+        mParameterStarts[mParameterCount] = start;
+        mParameterEnds[mParameterCount] = end;
+        mParameterCount++;
+    }
+
+    public Command getCommand() {
+        return mCommand;
+    }
+
+    public boolean hasOrigin() {
+        return mPrefixStart != -1;
+    }
+
+    /**
+     * @return The nickname (or server name) part of the origin, or {@code null} if this message has no origin.
+     */
+    public String getOriginName() {
+        if (mPrefixStart == -1) return null;
+        return newString(mPrefixStart, mNameEnd);
+    }
+
+    /**
+     * @return A new {@link Origin}, or {@code null} if this message has no origin.
+     */
+    public Origin getOrigin() {
+        if (mPrefixStart == -1) return null;
+        String name = newString(mPrefixStart, mNameEnd);
+        if (mNameEnd == mPrefixEnd) return new Origin(name, null, null);
+        String user;
+        String host;
+        if (mUserEnd == -1) {
+            // name!user
+            user = newString(mNameEnd + 1, mPrefixEnd);
+            host = null;
+        } else if (mUserEnd == mNameEnd) {
+            // name@host
+            user = null;
+            host = newString(mUserEnd + 1, mPrefixEnd);
+        } else {
+            user = newString(mNameEnd + 1, mUserEnd);
+            host = newString(mUserEnd + 1, mPrefixEnd);
+        }
+        return new Origin(name, user, host);
+    }
+
+    public int getParameterCount() {
+        return mParameterCount;
+    }
+
+    public String getParameter(int index) {
+        checkParameterIndex(index);
+        return newString(mParameterStarts[index], mParameterEnds[index]);
+    }
+
+    /**
+     * @return A new list containing all the parameters.
+     */
+    public ArrayList<String> getParameters() {
+        ArrayList<String> res = new ArrayList<String>(mParameterCount);
+        for (int i = 0; i < mParameterCount; i++) {
+            res.add(newString(mParameterStarts[i], mParameterEnds[i]));
+        }
+        return res;
+    }
+
+    /**
+     * @return {@code true} if the given parameter starts with the given ASCII character, without creating a {@code String}.
+     */
+    public boolean parameterStartsWith(int index, char c) {
+        checkParameterIndex(index);
+        return mParameterEnds[index] > mParameterStarts[index] && mBuffer[mParameterStarts[index]] == c;
+    }
+
+    /**
+     * @return {@code true} if the given parameter is equal to the given ASCII string, without creating a {@code String}.
+     */
+    public boolean parameterEquals(int index, String s) {
+        checkParameterIndex(index);
+        int start = mParameterStarts[index];
+        int length = s.length();
+        if (mParameterEnds[index] - start != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (mBuffer[start + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void checkParameterIndex(int index) {
+        if (index < 0 || index >= mParameterCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mParameterCount);
+        }
+    }
+
+    private String newString(int start, int end) {
+        return new String(mBuffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A {@link Message} holding a copy of this message, which stays valid after this instance is reused.
+     */
+    public Message toMessage() {
+        return new Message(getOrigin(), mCommand, getParameters());
+    }
+
+    @Override
+    public String toString() {
+        if (mBuffer == null) return "";
+        return newString(mStart, mEnd);
+    }
+}
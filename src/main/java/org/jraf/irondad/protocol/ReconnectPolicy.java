@@ -0,0 +1,79 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.protocol;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jraf.irondad.protocol.ClientConfig.ServerAddress;
+
+/**
+ * Decides where and when a {@link Client} reconnects.<br/>
+ * Each attempt goes to the next server of the list. The delay between attempts grows exponentially, with jitter so that several clients
+ * disconnected at the same time (netsplit) don't all come back at the same moment. It goes back to the minimum once registered.<br/>
+ * Not thread safe: used by {@link Client} under its lock.
+ */
+class ReconnectPolicy {
+    private final List<ServerAddress> mServers;
+    private final long mDelayMin;
+    private final long mDelayMax;
+    private int mServerIndex = -1;
+    private int mFailedAttemptCount;
+
+    ReconnectPolicy(ClientConfig clientConfig) {
+        mServers = clientConfig.getServers();
+        mDelayMin = clientConfig.getReconnectDelayMin();
+        mDelayMax = clientConfig.getReconnectDelayMax();
+    }
+
+    /**
+     * @return The server to use for the next attempt.
+     */
+    ServerAddress nextServer() {
+        mServerIndex = (mServerIndex + 1) % mServers.size();
+        return mServers.get(mServerIndex);
+    }
+
+    /**
+     * @return How long to wait before the next attempt, in ms.
+     */
+    long nextDelay() {
+        // Capped exponential backoff, with "equal jitter": half of the delay is fixed, the other half random
+        long delay = mDelayMin << Math.min(mFailedAttemptCount, 20);
+        if (delay > mDelayMax || delay <= 0) delay = mDelayMax;
+        mFailedAttemptCount++;
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * To call when a connection was successful: the next attempt will use the minimum delay, and start over from the main server.
+     */
+    void reset() {
+        mFailedAttemptCount = 0;
+        mServerIndex = -1;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.jraf.irondad.Constants;
+
+/**
+ * Matches a {@code nickname!user@host} against a list of regular expressions.<br/>
+ * All the expressions are compiled once, into a single {@link Pattern}, so matching costs one pass whatever the size of the list. Like
+ * {@link String#matches(String)}, an expression must match the whole string. Invalid expressions are logged and ignored. In the combined pattern,
+ * the groups of an expression are not numbered the same as alone, so expressions with back references ({@code \1}, {@code \k<name>}) are kept
+ * as patterns of their own. If the combined pattern can't be compiled anyway, the expressions are matched one by one instead.<br/>
+ * Compiling never throws.<br/>
+ * Immutable and thread safe.
+ */
+public class BanMatcher {
+    private static final String TAG = Constants.TAG + BanMatcher.class.getSimpleName();
+
+    public static final BanMatcher EMPTY = new BanMatcher(Collections.<String> emptyList(), Collections.<Pattern> emptyList());
+
+    private final List<String> mExpressions;
+
+    /**
+     * Usually only the combined pattern, followed by the expressions with back references, if any.
+     */
+    private final List<Pattern> mPatterns;
+
+    private BanMatcher(List<String> expressions, List<Pattern> patterns) {
+        mExpressions = expressions;
+        mPatterns = patterns;
+    }
+
+    public static BanMatcher compile(Collection<String> expressions) {
+        if (expressions.isEmpty()) return EMPTY;
+        List<Pattern> patterns = new ArrayList<Pattern>(expressions.size());
+        List<Pattern> backReferencePatterns = new ArrayList<Pattern>();
+        StringBuilder combined = new StringBuilder();
+        for (String expression : expressions) {
+            // Validate the expression as it will appear in the combined pattern (e.g. "\Qfoo" is valid alone, but not once wrapped)
+            String wrapped = "(?:" + expression + ")";
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(wrapped);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "compile Ignoring invalid expression '" + expression + "'", e);
+                continue;
+            }
+            if (hasBackReference(expression)) {
+                backReferencePatterns.add(pattern);
+                continue;
+            }
+            patterns.add(pattern);
+            if (combined.length() > 0) combined.append('|');
+            combined.append(wrapped);
+        }
+        List<String> expressionList = Collections.unmodifiableList(new ArrayList<String>(expressions));
+        if (patterns.size() > 1) {
+            try {
+                patterns = new ArrayList<Pattern>(Collections.singletonList(Pattern.compile(combined.toString())));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "compile Could not combine the expressions, matching them one by one", e);
+            }
+        }
+        patterns.addAll(backReferencePatterns);
+        return new BanMatcher(expressionList, Collections.unmodifiableList(patterns));
+    }
+
+    /**
+     * @return {@code true} if the given expression contains a numbered ({@code \1}) or named ({@code \k<name>}) back reference, outside of a
+     *         {@code \Q...\E} quote.
+     */
+    private static boolean hasBackReference(String expression) {
+        int length = expression.length();
+        for (int i = 0; i < length - 1; i++) {
+            if (expression.charAt(i) != '\\') continue;
+            char next = expression.charAt(i + 1);
+            if (next >= '1' && next <= '9') return true;
+            if (next == 'k' && i + 2 < length && expression.charAt(i + 2) == '<') return true;
+            if (next == 'Q') {
+                int end = expression.indexOf("\\E", i + 2);
+                if (end == -1) return false;
+                i = end;
+            }
+            // Skip the escaped character (e.g. "\\1" is a backslash followed by 1)
+            i++;
+        }
+        return false;
+    }
+
+    /**
+     * @param nameUserHost Typically the result of {@link org.jraf.irondad.protocol.Origin#toFormattedString()}.
+     */
+    public boolean matches(String nameUserHost) {
+        for (Pattern pattern : mPatterns) {
+            if (pattern.matcher(nameUserHost).matches()) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return mPatterns.isEmpty();
+    }
+
+    /**
+     * @return The expressions this matcher was compiled from.
+     */
+    public List<String> getExpressions() {
+        return mExpressions;
+    }
+
+    @Override
+    public String toString() {
+        return "BanMatcher" + mExpressions;
+    }
+}
@@ -13,59 +13,262 @@
  * modify it under the terms of the GNU Lesser General Public
  * License as published by the Free Software Foundation; either
  * version 3 of the License, or (at your option) any later version.
- * 
+ *
  * This library is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
  * Lesser General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU Lesser General Public
  * License along with this library; if not, see
  * <http://www.gnu.org/licenses/>.
  */
 package org.jraf.irondad.util;
 
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Logs to the standard output, asynchronously.<br/>
+ * Calls only put an entry in a bounded queue; the line is formatted and written by a background thread. When the queue is full, debug and info
+ * entries are dropped (and counted), while warnings and errors wait a little for room, and are dropped (and counted) too if there is still none:
+ * logging never blocks the caller for long (it can be the connection thread).<br/>
+ * The level is read from the {@code irondad.log.level} system property ({@code debug}, {@code info}, {@code warn} or {@code error}), and defaults to
+ * {@code info}. It can be changed at runtime with {@link #setLevel(int)}, but {@link org.jraf.irondad.Config#LOGD} is fixed at startup.<br/>
+ * Messages can contain {@code {}} placeholders, replaced by the given arguments on the background thread. The arguments must therefore not be changed
+ * after the call.
+ */
 public class Log {
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final int QUEUE_SIZE = 8192;
+    private static final long QUEUE_FULL_WAIT = 10; // ms
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd/HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static class Entry {
+        final long time;
+        final int level;
+        final String tag;
+        final String msg;
+        final Object[] args;
+        final Throwable throwable;
+
+        Entry(int level, String tag, String msg, Object[] args, Throwable throwable) {
+            time = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+            this.args = args;
+            this.throwable = throwable;
+        }
+    }
+
+    private static volatile int sLevel = parseLevel(System.getProperty("irondad.log.level"));
+    private static final BlockingQueue<Entry> sQueue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    private static final AtomicLong sDroppedCount = new AtomicLong();
+    private static final Object sWriteLock = new Object();
+
+    // Only used with sWriteLock held
+    private static final PrintStream sOut = System.out;
+    private static final StringBuilder sLine = new StringBuilder(256);
+    private static long sDateSecond = -1;
+    private static String sDate;
+
+    static {
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Entry entry;
+                    try {
+                        entry = sQueue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (sWriteLock) {
+                        write(entry);
+                        drain();
+                    }
+                }
+            }
+        }, "irondad-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // Don't lose the last entries (typically the reason why the process is exiting)
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "irondad-log-flush"));
+    }
+
+    private static int parseLevel(String level) {
+        if (level == null) return INFO;
+        switch (level.trim().toLowerCase()) {
+            case "debug":
+                return DEBUG;
+            case "warn":
+                return WARN;
+            case "error":
+                return ERROR;
+            default:
+                return INFO;
+        }
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * Write all the pending entries now, from the calling thread.
+     */
+    public static void flush() {
+        synchronized (sWriteLock) {
+            drain();
+        }
+    }
+
     public static void w(String tag, String msg, Throwable t) {
-        System.out.print(getDate() + " W " + tag + " " + msg + "\n" + getStackTraceString(t));
+        log(WARN, tag, msg, NO_ARGS, t);
     }
 
     public static void w(String tag, String msg) {
-        System.out.print(getDate() + " W " + tag + " " + msg + "\n");
+        log(WARN, tag, msg, NO_ARGS, null);
+    }
+
+    public static void w(String tag, String msg, Object... args) {
+        log(WARN, tag, msg, args, null);
     }
 
     public static void e(String tag, String msg, Throwable t) {
-        System.out.print(getDate() + " E " + tag + " " + msg + "\n" + getStackTraceString(t));
+        log(ERROR, tag, msg, NO_ARGS, t);
     }
 
     public static void e(String tag, String msg) {
-        System.out.print(getDate() + " E " + tag + " " + msg + "\n");
+        log(ERROR, tag, msg, NO_ARGS, null);
+    }
+
+    public static void e(String tag, String msg, Object... args) {
+        log(ERROR, tag, msg, args, null);
     }
 
     public static void d(String tag, String msg, Throwable t) {
-        System.out.print(getDate() + " D " + tag + " " + msg + "\n" + getStackTraceString(t));
+        log(DEBUG, tag, msg, NO_ARGS, t);
     }
 
     public static void d(String tag, String msg) {
-        System.out.print(getDate() + " D " + tag + " " + msg + "\n");
+        log(DEBUG, tag, msg, NO_ARGS, null);
+    }
+
+    public static void d(String tag, String msg, Object... args) {
+        log(DEBUG, tag, msg, args, null);
     }
 
     public static void i(String tag, String msg, Throwable t) {
-        System.out.print(getDate() + " I " + tag + " " + msg + "\n" + getStackTraceString(t));
+        log(INFO, tag, msg, NO_ARGS, t);
     }
 
     public static void i(String tag, String msg) {
-        System.out.print(getDate() + " I " + tag + " " + msg + "\n");
+        log(INFO, tag, msg, NO_ARGS, null);
+    }
+
+    public static void i(String tag, String msg, Object... args) {
+        log(INFO, tag, msg, args, null);
     }
 
-    private static String getDate() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd/HH:mm:ss");
-        return sdf.format(new Date());
+    private static void log(int level, String tag, String msg, Object[] args, Throwable t) {
+        if (level < sLevel) return;
+        Entry entry = new Entry(level, tag, msg, args, t);
+        if (sQueue.offer(entry)) return;
+        if (level < WARN) {
+            sDroppedCount.incrementAndGet();
+            return;
+        }
+        try {
+            if (sQueue.offer(entry, QUEUE_FULL_WAIT, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sDroppedCount.incrementAndGet();
+    }
+
+    private static void drain() {
+        Entry entry;
+        while ((entry = sQueue.poll()) != null) {
+            write(entry);
+        }
+        long droppedCount = sDroppedCount.getAndSet(0);
+        if (droppedCount > 0) {
+            write(new Entry(WARN, Log.class.getSimpleName(), "{} entries were dropped: the log queue was full", new Object[] { droppedCount }, null));
+        }
+        sOut.flush();
+    }
+
+    private static void write(Entry entry) {
+        StringBuilder line = sLine;
+        line.setLength(0);
+        line.append(getDate(entry.time)).append(' ').append(getLevelChar(entry.level)).append(' ').append(entry.tag).append(' ');
+        appendFormatted(line, entry.msg, entry.args);
+        line.append('\n');
+        if (entry.throwable != null) line.append(getStackTraceString(entry.throwable));
+        sOut.append(line);
+    }
+
+    private static String getDate(long time) {
+        // Most entries are logged during the same second as the previous one
+        long second = time / 1000;
+        if (second != sDateSecond) {
+            sDateSecond = second;
+            sDate = DATE_FORMATTER.format(Instant.ofEpochMilli(time));
+        }
+        return sDate;
+    }
+
+    private static char getLevelChar(int level) {
+        switch (level) {
+            case DEBUG:
+                return 'D';
+            case INFO:
+                return 'I';
+            case WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+
+    private static void appendFormatted(StringBuilder line, String msg, Object[] args) {
+        if (args.length == 0) {
+            line.append(msg);
+            return;
+        }
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while (argIndex < args.length && (placeholder = msg.indexOf("{}", start)) != -1) {
+            line.append(msg, start, placeholder).append(args[argIndex++]);
+            start = placeholder + 2;
+        }
+        line.append(msg, start, msg.length());
     }
 
     private static String getStackTraceString(Throwable tr) {
@@ -0,0 +1,145 @@
+/*
+ * This source is part of the
+ *      _____  ___   ____
+ *  __ / / _ \/ _ | / __/___  _______ _
+ * / // / , _/ __ |/ _/_/ _ \/ __/ _ `/
+ * \___/_/|_/_/ |_/_/ (_)___/_/  \_, /
+ *                              /___/
+ * repository.
+ *
+ * Copyright (C) 2013 Benoit 'BoD' Lubek (BoD@JRAF.org)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.jraf.irondad.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent calls: while a call for a key is in flight, other callers for the same key don't start their own call, and
+ * instead get the result of the one in flight.<br/>
+ * Nothing is kept once the call completes: the next call for the same key starts a new one (caching results is not the point here).
+ *
+ * @param <K> The type of the keys identifying identical calls (a normalized url, an API request...).
+ * @param <V> The type of the results.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> mInFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+    private final AtomicLong mCallCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Start the given asynchronous call, unless one is already in flight for the given key.
+     *
+     * @return A future completed with the result of the call, shared by all the concurrent callers.
+     */
+    public CompletableFuture<V> execute(final K key, Supplier<CompletableFuture<V>> call) {
+        final CompletableFuture<V> flight = new CompletableFuture<V>();
+        CompletableFuture<V> inFlight = mInFlight.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            mCoalescedCount.incrementAndGet();
+            // Each caller gets its own copy, so one caller completing or cancelling it doesn't affect the others
+            return inFlight.copy();
+        }
+        mCallCount.incrementAndGet();
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            mInFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            return flight.copy();
+        }
+        result.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable t) {
+                // Remove first, so a caller arriving after this point starts a new call instead of getting this (older) result
+                mInFlight.remove(key, flight);
+                if (t != null) {
+                    flight.completeExceptionally(t);
+                } else {
+                    flight.complete(value);
+                }
+            }
+        });
+        return flight.copy();
+    }
+
+    /**
+     * Run the given blocking call on the current thread, unless one is already in flight for the given key: in that case, wait for its result.
+     *
+     * @return The result of the call.
+     * @throws Exception What the call threw.
+     */
+    public V get(K key, Callable<V> call) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<V>();
+        CompletableFuture<V> inFlight = mInFlight.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            mCoalescedCount.incrementAndGet();
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            }
+        }
+        mCallCount.incrementAndGet();
+        try {
+            V res = call.call();
+            mInFlight.remove(key, flight);
+            flight.complete(res);
+            return res;
+        } catch (Exception | Error e) {
+            mInFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of calls actually made.
+     */
+    public long getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * @return The number of callers that got the result of a call that was already in flight, instead of making their own.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * @return The number of calls currently in flight.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{calls=" + getCallCount() + ", coalesced=" + getCoalescedCount() + ", inFlight=" + getInFlightCount() + "}";
+    }
+}